@@ -0,0 +1,177 @@
+package com.googlecode.wage_engine;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Runs everything that touches the engine on one thread, in the order it
+ * was asked for. The queue is bounded: input from the event dispatch thread
+ * is dropped when it is full, while the console reader waits, so a player
+ * typing or clicking faster than turns can run doesn't pile up work. A click
+ * on something that is already waiting to be clicked, or being clicked, is
+ * dropped too. Loading, saving and reverting are rare and must not be
+ * dropped or keep the event dispatch thread waiting for room, so they are
+ * queued past the limit.
+ */
+class EngineExecutor implements Runnable {
+	public static final int TEXT = 0;
+	public static final int CLICK = 1;
+	public static final int MENU = 2;
+	public static final int SAVE = 3;
+	public static final int LOAD = 4;
+	public static final int REVERT = 5;
+	public static final int UNDO = 6;
+	public static final int START = 7;
+
+	public interface Handler {
+		public void handle(int type, Object argument) throws IOException;
+	}
+
+	private static class Command {
+		public int type;
+		public Object argument;
+		public boolean waitedFor;
+		public boolean done;
+		public IOException error;
+
+		public Command(int type, Object argument) {
+			this.type = type;
+			this.argument = argument;
+		}
+	}
+
+	private Handler handler;
+	private int capacity;
+	private LinkedList<Command> queue = new LinkedList<Command>();
+	private Command current;
+	private boolean stopped;
+	private Thread thread;
+
+	public EngineExecutor(Handler handler, int capacity) {
+		this.handler = handler;
+		this.capacity = capacity;
+	}
+
+	public synchronized void start() {
+		thread = new Thread(this, "Engine");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops once the command being run finishes, and waits for that unless
+	 * called from a command; queued commands are dropped. Once this returns,
+	 * nothing more will be done to the engine.
+	 */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			stopped = true;
+			queue.clear();
+			notifyAll();
+			t = thread;
+		}
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queues a command without waiting.
+	 * @return false if the command was dropped
+	 */
+	public synchronized boolean offer(int type, Object argument) {
+		Command command = new Command(type, argument);
+		if (stopped || queue.size() >= capacity || isDuplicate(command))
+			return false;
+		queue.add(command);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Queues a command, waiting for room if the queue is full.
+	 */
+	public synchronized void put(int type, Object argument) throws InterruptedException {
+		while (!stopped && queue.size() >= capacity)
+			wait();
+		if (stopped)
+			return;
+		queue.add(new Command(type, argument));
+		notifyAll();
+	}
+
+	/**
+	 * Queues a command even if the queue is full, for commands that must not
+	 * be dropped and are too rare to pile up, and waits until it has been
+	 * run.
+	 * @return false if the executor was stopped before the command could run
+	 * @throws IOException if the command failed with one
+	 */
+	public boolean call(int type, Object argument) throws IOException, InterruptedException {
+		Command command = new Command(type, argument);
+		command.waitedFor = true;
+		synchronized (this) {
+			if (stopped)
+				return false;
+			queue.add(command);
+			notifyAll();
+			while (!command.done && !(stopped && command != current))
+				wait();
+		}
+		if (command.error != null)
+			throw command.error;
+		return command.done;
+	}
+
+	private boolean isDuplicate(Command command) {
+		if (command.type != CLICK)
+			return false;
+		if (current != null && current.type == CLICK && current.argument == command.argument)
+			return true;
+		for (Command queued : queue) {
+			if (queued.type == CLICK && queued.argument == command.argument)
+				return true;
+		}
+		return false;
+	}
+
+	public void run() {
+		while (true) {
+			Command command;
+			synchronized (this) {
+				while (!stopped && queue.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (stopped)
+					return;
+				command = queue.removeFirst();
+				current = command;
+				notifyAll();
+			}
+			try {
+				handler.handle(command.type, command.argument);
+			} catch (IOException e) {
+				if (command.waitedFor)
+					command.error = e;
+				else
+					e.printStackTrace();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				command.done = true;
+				current = null;
+				notifyAll();
+			}
+		}
+	}
+}
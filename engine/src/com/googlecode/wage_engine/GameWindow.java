@@ -3,6 +3,8 @@ package com.googlecode.wage_engine;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.*;
 
@@ -12,14 +14,20 @@ import com.googlecode.wage_engine.engine.MenuBar;
 import com.googlecode.wage_engine.engine.MenuBarBuilder;
 import com.googlecode.wage_engine.engine.MenuItem;
 import com.googlecode.wage_engine.engine.Obj;
+import com.googlecode.wage_engine.engine.PresentationScheduler;
 import com.googlecode.wage_engine.engine.Scene;
+import com.googlecode.wage_engine.engine.SceneView;
 import com.googlecode.wage_engine.engine.SoundManager;
 import com.googlecode.wage_engine.engine.World;
 
 public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuilder.Callbacks {
+	private static final int UNDO_LIMIT = 100;
+
 	private World world;
 	private DesignRenderer renderer;
 	private Engine engine;
+	private PresentationScheduler presentation;
+	private EngineExecutor executor;
 	private SceneViewer viewer;
 	private ConsoleView console;
 	private SoundManager soundManager;
@@ -81,13 +89,20 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 	}
 	
 	private void initializeGame() {
+		// the last game's engine must be done with the world before it is reset
+		if (executor != null)
+			executor.stop();
+		if (presentation != null)
+			presentation.stop();
 		gameInProgress = true;
 		world.reset();
 		soundManager = new SoundManager(world);
-		viewer = new SceneViewer(renderer, world) {
+		viewer = new SceneViewer(renderer) {
 			public void handleMouseEvent(int type, int x, int y) {
 				if (type == MOUSE_CLICKED && isEnabled()) {
-					startThread(new ClickHandler(x, y));
+					Object target = getClickTarget(x, y);
+					if (target != null)
+						executor.offer(EngineExecutor.CLICK, target);
 				}
 			}
 		};
@@ -99,53 +114,91 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 		wm.setMenuBar(menubar);
 		setContentPane(new WindowManagerHost(wm));
 		engine = new Engine(world, console.getOut(), this);
-		if (initialGameState == null) {
-			initialGameState = engine.getSaveStateAsByteArray();
-		} else try {
-			engine.loadState(new ByteArrayInputStream(initialGameState));
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-		}
+		presentation = new PresentationScheduler(engine);
+		engine.setPresenter(presentation);
+		presentation.start();
 		updateConsoleForScene(console, world.getPlayerScene());
-		synchronized (engine) {
-			engine.processTurn("look", null);
-		}
-		startThread(new UserInputReader());
+		executor = new EngineExecutor(new CommandHandler(), 32);
+		// the queue is empty, so this isn't dropped, and it runs before any input
+		executor.offer(EngineExecutor.START, null);
+		executor.start();
+		startThread(new UserInputReader(executor));
 	}
 
-	private class ClickHandler implements Runnable {
-		private int x;
-		private int y;
-		public ClickHandler(int x, int y) {
-			this.x = x;
-			this.y = y;
-		}
-		public void run() {
-			synchronized (engine) {
-				final Object target = viewer.getClickTarget(x, y);
-				if (target != null) {
-					engine.processTurn(null, target);
-				}
+	private class CommandHandler implements EngineExecutor.Handler {
+		public void handle(int type, Object argument) throws IOException {
+			switch (type) {
+				case EngineExecutor.START:
+					if (initialGameState == null)
+						initialGameState = engine.getSaveStateAsByteArray();
+					else
+						engine.loadState(new ByteArrayInputStream(initialGameState));
+					engine.processTurn("look", null);
+					engine.setUndoLimit(UNDO_LIMIT);
+					break;
+				case EngineExecutor.TEXT:
+					doCommand((String) argument);
+					break;
+				case EngineExecutor.MENU:
+					// echoed through the engine so it comes after the text of
+					// the turns before it
+					engine.appendText((String) argument);
+					doCommand((String) argument);
+					break;
+				case EngineExecutor.CLICK:
+					engine.processTurn(null, argument);
+					break;
+				case EngineExecutor.SAVE:
+					engine.saveState((File) argument);
+					break;
+				case EngineExecutor.LOAD:
+					engine.loadState((File) argument);
+					engine.redraw();
+					break;
+				case EngineExecutor.REVERT:
+					engine.revert();
+					engine.redraw();
+					break;
+				case EngineExecutor.UNDO:
+					if (!engine.undo())
+						Toolkit.getDefaultToolkit().beep();
+					break;
 			}
 		}
 	}
-	
+
 	private class UserInputReader implements Runnable {
+		private EngineExecutor executor;
+		public UserInputReader(EngineExecutor executor) {
+			this.executor = executor;
+		}
 		public void run() {
 			BufferedReader in = new BufferedReader(new InputStreamReader(console.getIn()));
 			try {
 				String line = in.readLine();
 				while (line != null) {
-					doCommand(line);
+					executor.put(EngineExecutor.TEXT, line);
 					line = in.readLine();
 				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
+			} catch (InterruptedException e) {
 			}
 		}
 	}
 
+	// Runs a command that must not be dropped, without waiting for room in
+	// the queue, and waits for it to finish.
+	private boolean submit(int type, Object argument) throws IOException {
+		try {
+			return executor.call(type, argument);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
 	private void startThread(Runnable runnable) {
 		new Thread(runnable).start();
 	}
@@ -154,16 +207,18 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 		menubar.setMenu(3, menuBuilder.createMenuFromString(world.getCommandsMenuName(), format));
 	}
 
+	// only used by redrawScene(), which the engine calls from the
+	// presentation thread
 	private Scene lastScene = null;
-	public void redrawScene() {
-		final Scene currentScene = world.getPlayerScene();
-		if (currentScene != null) {
+	public void redrawScene(final SceneView view) {
+		if (view != null) {
+			final Scene currentScene = view.getScene();
 			final boolean firstTime = (lastScene != currentScene);
 			lastScene = currentScene;
 			Runnable repainter = new Runnable() {
 				public void run() {
 					updateConsoleForScene(console, currentScene);
-					updateSceneViewerForScene(viewer, currentScene);
+					updateSceneViewerForScene(viewer, view);
 					viewer.paintImmediately(viewer.getBounds());
 					getContentPane().validate();
 					getContentPane().repaint();
@@ -200,6 +255,20 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 				System.out.println(o.getName());
 			return;
 		}
+		if (line.indexOf(';') != -1) {
+			List<String> commands = new ArrayList<String>();
+			for (String command : line.split(";")) {
+				command = normalizeCommand(command);
+				if (command.length() > 0)
+					commands.add(command);
+			}
+			engine.processTurns(commands);
+			return;
+		}
+		engine.processTurn(normalizeCommand(line), null);
+	}
+
+	private static String normalizeCommand(String line) {
 		line = line.trim().toLowerCase();
 		if (line.equals("n"))
 			line = "north";
@@ -211,9 +280,7 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 			line = "east";
 		else
 			line = line.replaceAll("\\s+", " ");
-		synchronized (engine) {
-			engine.processTurn(line, null);
-		}
+		return line;
 	}
 	
 	private void showDialog(Dialog dialog) {
@@ -238,13 +305,11 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 			return;
 		File file = new File(dialog.getDirectory() + "/" + dialog.getFile());
 		try {
-			engine.loadState(file);
-			lastSaveFile = file;
-			redrawScene();
+			if (submit(EngineExecutor.LOAD, file))
+				lastSaveFile = file;
 		} catch (IOException ioe) {
-			// TODO Auto-generated catch block
-			ioe.printStackTrace();
-		 }
+			showErrorDialog("The game could not be opened.", ioe);
+		}
 	}
 
 	public void showCloseDialog(final boolean quitOnClose) {
@@ -283,13 +348,7 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 			return doSaveAs();
 		}
 
-		try {
-			engine.saveState(lastSaveFile);
-		} catch (IOException ioe) {
-			// TODO Auto-generated catch block
-			ioe.printStackTrace();
-		}
-		return true;
+		return save(lastSaveFile);
 	}
 	
 	public boolean doSaveAs() {
@@ -298,26 +357,40 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 		if (dialog.getFile() == null)
 			return false;
 		File file = new File(dialog.getDirectory() + "/" + dialog.getFile());
+		return save(file);
+	}
+
+	private boolean save(File file) {
 		try {
-			engine.saveState(file);
-			lastSaveFile = file;
+			if (!submit(EngineExecutor.SAVE, file))
+				return false;
 		} catch (IOException ioe) {
-			// TODO Auto-generated catch block
-			ioe.printStackTrace();
+			showErrorDialog("The game could not be saved.", ioe);
+			return false;
 		}
+		lastSaveFile = file;
 		return true;
 	}
 	
 	public void doRevert() {
 		try {
-			engine.revert();
-			redrawScene();
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			submit(EngineExecutor.REVERT, null);
+		} catch (IOException ioe) {
+			showErrorDialog("The game could not be reverted.", ioe);
 		}
 	}
 
+	private void showErrorDialog(String message, IOException ioe) {
+		ioe.printStackTrace();
+		if (ioe.getMessage() != null)
+			message += "\n" + ioe.getMessage();
+		JOptionPane.showMessageDialog(GameWindow.this, message, getTitle(), JOptionPane.ERROR_MESSAGE);
+	}
+
+	public void doUndo() {
+		executor.offer(EngineExecutor.UNDO, null);
+	}
+
 	public void showAboutDialog() {
 		String aboutMessage = world.getAboutMessage();
 		aboutMessage = "<html><center>" + aboutMessage.replace("\n", "<br>");
@@ -325,8 +398,7 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 	}
 
 	public void performCommand(String command) {
-		console.getOut().append(command + "\n");
-		doCommand(command);
+		executor.offer(EngineExecutor.MENU, command);
 	}
 
 	private void updateConsoleForScene(ConsoleView console, Scene scene) {
@@ -334,9 +406,9 @@ public class GameWindow extends JFrame implements Engine.Callbacks, MenuBarBuild
 		console.setFont(new Font(scene.getFontName(), 0, scene.getFontSize()));
 	}
 
-	private void updateSceneViewerForScene(SceneViewer viewer, Scene scene) {
-		viewer.setScene(scene);
-		viewer.setBounds(scene.getDesignBounds());
+	private void updateSceneViewerForScene(SceneViewer viewer, SceneView view) {
+		viewer.setView(view);
+		viewer.setBounds(view.getScene().getDesignBounds());
 	}
 
 	public boolean isGameInProgress() {
@@ -8,15 +8,15 @@ import javax.swing.border.Border;
 import com.googlecode.wage_engine.engine.Chr;
 import com.googlecode.wage_engine.engine.Obj;
 import com.googlecode.wage_engine.engine.Scene;
+import com.googlecode.wage_engine.engine.SceneView;
 
 public class SceneViewer extends WComponent {
 	private DesignRenderer renderer;
 	private Scene scene;
-	private Object lock;
+	private SceneView view;
 
-	public SceneViewer(DesignRenderer renderer, Object lock) {
+	public SceneViewer(DesignRenderer renderer) {
 		this.renderer = renderer;
-		this.lock = lock;
 		setOpaque(false);
 		setFocusable(false);
 	}
@@ -25,8 +25,13 @@ public class SceneViewer extends WComponent {
 		return scene;
 	}
 	
-	public void setScene(Scene scene) {
-		this.scene = scene;
+	/**
+	 * Shows the scene as it was when the view was made, both when drawing
+	 * and when working out what was clicked on.
+	 */
+	public void setView(SceneView view) {
+		this.view = view;
+		this.scene = (view == null ? null : view.getScene());
 		Border border = getBorder();
 		if (border instanceof WindowBorder) {
 			WindowBorder wb = (WindowBorder) border;
@@ -46,12 +51,14 @@ public class SceneViewer extends WComponent {
 			g2d.setColor(Color.WHITE);
 			g2d.fillRect(2, 2, getWidth()-4, getHeight()-4);
 			renderer.paintDesign(scene.getDesign(), g2d);
-			synchronized (lock) {
-				for (Obj o : scene.getState().getObjs())
-					renderer.paintDesign(o.getDesign(), g2d);
-				for (Chr c : scene.getState().getChrs())
-					if (!c.isPlayerCharacter())
-						renderer.paintDesign(c.getDesign(), g2d);
+			List<Obj> objs = view.getObjs();
+			for (int i = 0; i < objs.size(); i++)
+				renderer.paintDesign(objs.get(i).getDesign(), g2d);
+			List<Chr> chrs = view.getChrs();
+			for (int i = 0; i < chrs.size(); i++) {
+				Chr c = chrs.get(i);
+				if (!c.isPlayerCharacter())
+					renderer.paintDesign(c.getDesign(), g2d);
 			}
 			g2d.translate(-2, -2);
 			g2d.setClip(null);
@@ -60,14 +67,16 @@ public class SceneViewer extends WComponent {
 	}
 
 	public Object getClickTarget(int x, int y) {
-		List<Obj> objs = scene.getState().getObjs();
+		if (scene == null)
+			return null;
+		List<Obj> objs = view.getObjs();
 		for (int i = objs.size() - 1; i >= 0; i--) {
 			Obj o = objs.get(i);
 			if (renderer.isPointOpaque(o.getDesign(), x, y)) {
 				return o;
 			}
 		}
-		List<Chr> chrs = scene.getState().getChrs();
+		List<Chr> chrs = view.getChrs();
 		for (int i = chrs.size() - 1; i >= 0; i--) {
 			Chr c = chrs.get(i);
 			if (renderer.isPointOpaque(c.getDesign(), x, y)) {
@@ -1,7 +1,7 @@
 package com.googlecode.wage_engine.engine;
 
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 public interface Chr {
@@ -20,6 +20,12 @@ public interface Chr {
 	public static final int NUMBER_OF_ARMOR_TYPES = 4;
 	
 	public static class State {
+		private static final Comparator<Obj> INVENTORY_ORDER = new Comparator<Obj>() {
+			public int compare(Obj o1, Obj o2) {
+				return o1.getIndex() - o2.getIndex();
+			}
+		};
+
 		private int basePhysicalStrength;
 		private int currentPhysicalStrength;
 		private int basePhysicalHp;
@@ -46,7 +52,7 @@ public interface Chr {
 		private int weaponDamage2;
 
 		private Scene currentScene;
-		private List<Obj> inventory = new ArrayList<Obj>();
+		private List<Obj> inventory = new SortedList<Obj>(INVENTORY_ORDER);
 		private Obj[] armor = new Obj[4];
 		
 		public State(Chr chr) {
@@ -2,8 +2,9 @@ package com.googlecode.wage_engine.engine;
 
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.List;
 
-public class ChrImpl implements Chr {
+public class ChrImpl implements Chr, Cloneable {
 	private int index;
 	private String name;
 	private short resourceID;
@@ -78,6 +79,21 @@ public class ChrImpl implements Chr {
 		this.state = state;
 	}
 
+	/**
+	 * @return a character with the same design and stats as this one, but
+	 *         with a state and context of its own
+	 */
+	ChrImpl copy() {
+		try {
+			ChrImpl copy = (ChrImpl) clone();
+			copy.state = null;
+			copy.context = new Context();
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public Rectangle getDesignBounds() {
 		return designBounds == null ? null : new Rectangle(designBounds);
 	}
@@ -226,7 +242,9 @@ public class ChrImpl implements Chr {
 				}
 			});
 		}
-		for (Obj o : state.getInventory()) {
+		List<Obj> inventory = state.getInventory();
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj o = inventory.get(i);
 			switch (o.getType()) {
 				case Obj.REGULAR_WEAPON:
 				case Obj.THROW_WEAPON:
@@ -244,7 +262,9 @@ public class ChrImpl implements Chr {
 
 	public Obj[] getMagicalObjects() {
 		ArrayList<Obj> magic = new ArrayList<Obj>();
-		for (Obj obj : state.getInventory()) {
+		List<Obj> inventory = state.getInventory();
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj obj = inventory.get(i);
 			if (obj.getType() == Obj.MAGICAL_OBJECT) {
 				magic.add(obj);
 			}
@@ -0,0 +1,368 @@
+package com.googlecode.wage_engine.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the class file of a small generated class, to be defined with
+ * MethodHandles.Lookup.defineHiddenClass(). It only knows what straight-line
+ * code needs: calls, field stores, constants (including the class data of a
+ * hidden class) and forward or backward jumps to labels.
+ *
+ * Every label gets a stack map frame that is the same as the one the method
+ * starts with, i.e. the arguments as locals and nothing on the stack, so code
+ * has to keep to that at each label.
+ */
+class ClassFileWriter {
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+
+	public static final int ICONST_0 = 0x03;
+	public static final int ICONST_1 = 0x04;
+	public static final int BIPUSH = 0x10;
+	public static final int SIPUSH = 0x11;
+	public static final int LDC = 0x12;
+	public static final int LDC_W = 0x13;
+	public static final int ALOAD_0 = 0x2A;
+	public static final int ALOAD_1 = 0x2B;
+	public static final int ALOAD_2 = 0x2C;
+	public static final int IFEQ = 0x99;
+	public static final int IFNE = 0x9A;
+	public static final int GOTO = 0xA7;
+	public static final int IRETURN = 0xAC;
+	public static final int RETURN = 0xB1;
+	public static final int PUTFIELD = 0xB5;
+	public static final int INVOKEVIRTUAL = 0xB6;
+	public static final int INVOKESPECIAL = 0xB7;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int REF_INVOKE_STATIC = 6;
+
+	private static final int VERSION = 61; // Java 17
+	private static final int MAX_JUMP = 0x7FFF;
+
+	private ByteArrayOutputStream constants = new ByteArrayOutputStream();
+	private int constantCount = 1;
+	private Map<String, Integer> constantIndex = new HashMap<String, Integer>();
+	private ByteArrayOutputStream bootstrapMethods = new ByteArrayOutputStream();
+	private int bootstrapMethodCount;
+	private ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private int methodCount;
+	private int access;
+	private int thisClass;
+	private int superClass;
+	private int[] interfaces;
+
+	/**
+	 * @param name the name of the class, with slashes, in the package of the
+	 *             lookup that is to define it
+	 */
+	public ClassFileWriter(int access, String name, String superName, String... interfaceNames) {
+		this.access = access;
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+		interfaces = new int[interfaceNames.length];
+		for (int i = 0; i < interfaceNames.length; i++)
+			interfaces[i] = classRef(interfaceNames[i]);
+	}
+
+	/**
+	 * The code of one method. Jumps are to labels, which can be marked
+	 * before or after the jump.
+	 */
+	public class Code {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private List<Integer> labelOffsets = new ArrayList<Integer>();
+		// where each jump's offset goes, and the label it jumps to
+		private List<int[]> jumps = new ArrayList<int[]>();
+
+		public void op(int opcode) {
+			bytes.write(opcode);
+		}
+
+		/**
+		 * For an instruction taking a constant pool index or a short.
+		 */
+		public void op(int opcode, int operand) {
+			bytes.write(opcode);
+			writeShort(bytes, operand);
+		}
+
+		public void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				op(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op(BIPUSH);
+				op(value & 0xFF);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(SIPUSH, value);
+			} else {
+				pushConstant(integer(value));
+			}
+		}
+
+		/**
+		 * Pushes a loadable constant, e.g. one from classData().
+		 */
+		public void pushConstant(int index) {
+			if (index < 256) {
+				op(LDC);
+				op(index);
+			} else {
+				op(LDC_W, index);
+			}
+		}
+
+		public int newLabel() {
+			labelOffsets.add(-1);
+			return labelOffsets.size() - 1;
+		}
+
+		public void mark(int label) {
+			labelOffsets.set(label, bytes.size());
+		}
+
+		/**
+		 * @param opcode GOTO or a conditional jump such as IFEQ
+		 */
+		public void jump(int opcode, int label) {
+			jumps.add(new int[] { bytes.size(), label });
+			op(opcode, 0);
+		}
+
+		private byte[] toByteArray() {
+			byte[] code = bytes.toByteArray();
+			for (int[] jump : jumps) {
+				int target = labelOffsets.get(jump[1]);
+				if (target < 0)
+					throw new IllegalStateException("Jump to a label that was never marked");
+				int distance = target - jump[0];
+				if (distance > MAX_JUMP || distance < -MAX_JUMP)
+					throw new IllegalArgumentException("Method too large");
+				code[jump[0] + 1] = (byte) (distance >> 8);
+				code[jump[0] + 2] = (byte) distance;
+			}
+			return code;
+		}
+
+		private byte[] getStackMapTable() {
+			ByteArrayOutputStream table = new ByteArrayOutputStream();
+			int count = 0;
+			int last = -1;
+			for (int offset : sortedLabelOffsets()) {
+				int delta = offset - last - 1;
+				if (delta < 64) {
+					table.write(delta); // same_frame
+				} else {
+					table.write(251); // same_frame_extended
+					writeShort(table, delta);
+				}
+				last = offset;
+				count++;
+			}
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			writeShort(result, count);
+			result.write(table.toByteArray(), 0, table.size());
+			return result.toByteArray();
+		}
+
+		// A label at the very end of the code can't have a frame, so nothing
+		// can jump there.
+		private List<Integer> sortedLabelOffsets() {
+			boolean[] marked = new boolean[bytes.size()];
+			for (int offset : labelOffsets) {
+				if (offset >= 0 && offset < marked.length)
+					marked[offset] = true;
+			}
+			List<Integer> result = new ArrayList<Integer>();
+			for (int i = 0; i < marked.length; i++) {
+				if (marked[i])
+					result.add(i);
+			}
+			return result;
+		}
+	}
+
+	public Code newCode() {
+		return new Code();
+	}
+
+	public void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals) {
+		byte[] bytes = code.toByteArray();
+		if (bytes.length > 0xFFFF)
+			throw new IllegalArgumentException("Method too large");
+		byte[] stackMapTable = code.getStackMapTable();
+		writeShort(methods, access);
+		writeShort(methods, utf8(name));
+		writeShort(methods, utf8(descriptor));
+		writeShort(methods, 1);
+		writeShort(methods, utf8("Code"));
+		writeInt(methods, 12 + bytes.length + 6 + stackMapTable.length);
+		writeShort(methods, maxStack);
+		writeShort(methods, maxLocals);
+		writeInt(methods, bytes.length);
+		methods.write(bytes, 0, bytes.length);
+		writeShort(methods, 0); // exception table
+		writeShort(methods, 1);
+		writeShort(methods, utf8("StackMapTable"));
+		writeInt(methods, stackMapTable.length);
+		methods.write(stackMapTable, 0, stackMapTable.length);
+		methodCount++;
+	}
+
+	public int classRef(String name) {
+		return constant("C" + name, CONSTANT_CLASS, utf8(name));
+	}
+
+	public int methodRef(String owner, String name, String descriptor) {
+		return constant("M" + owner + "." + name + descriptor, CONSTANT_METHODREF,
+			classRef(owner), nameAndType(name, descriptor));
+	}
+
+	public int fieldRef(String owner, String name, String descriptor) {
+		return constant("F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF,
+			classRef(owner), nameAndType(name, descriptor));
+	}
+
+	public int integer(int value) {
+		String key = "I" + value;
+		Integer index = constantIndex.get(key);
+		if (index != null)
+			return index;
+		constants.write(CONSTANT_INTEGER);
+		writeInt(constants, value);
+		return addConstant(key);
+	}
+
+	/**
+	 * @return a constant that loads the given element of the hidden class's
+	 *         class data, which has to be a List, through
+	 *         MethodHandles.classDataAt()
+	 */
+	public int classData(int element, String descriptor) {
+		String key = "D" + element + ":" + descriptor;
+		Integer index = constantIndex.get(key);
+		if (index != null)
+			return index;
+		int bootstrap = staticMethodHandle("java/lang/invoke/MethodHandles", "classDataAt",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;I)Ljava/lang/Object;");
+		int argument = integer(element);
+		writeShort(bootstrapMethods, bootstrap);
+		writeShort(bootstrapMethods, 1);
+		writeShort(bootstrapMethods, argument);
+		int nameAndType = nameAndType("_", descriptor);
+		constants.write(CONSTANT_DYNAMIC);
+		writeShort(constants, bootstrapMethodCount++);
+		writeShort(constants, nameAndType);
+		return addConstant(key);
+	}
+
+	public byte[] toByteArray() {
+		if (bootstrapMethodCount > 0)
+			utf8("BootstrapMethods");
+		if (constantCount > 0xFFFF)
+			throw new IllegalArgumentException("Too many constants");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeInt(out, 0xCAFEBABE);
+		writeShort(out, 0);
+		writeShort(out, VERSION);
+		writeShort(out, constantCount);
+		out.write(constants.toByteArray(), 0, constants.size());
+		writeShort(out, access);
+		writeShort(out, thisClass);
+		writeShort(out, superClass);
+		writeShort(out, interfaces.length);
+		for (int i : interfaces)
+			writeShort(out, i);
+		writeShort(out, 0); // fields
+		writeShort(out, methodCount);
+		out.write(methods.toByteArray(), 0, methods.size());
+		if (bootstrapMethodCount > 0) {
+			writeShort(out, 1);
+			writeShort(out, utf8("BootstrapMethods"));
+			writeInt(out, 2 + bootstrapMethods.size());
+			writeShort(out, bootstrapMethodCount);
+			out.write(bootstrapMethods.toByteArray(), 0, bootstrapMethods.size());
+		} else {
+			writeShort(out, 0);
+		}
+		return out.toByteArray();
+	}
+
+	// Names and descriptors are plain ASCII, which is the same in the class
+	// file's modified UTF-8.
+	private int utf8(String s) {
+		String key = "U" + s;
+		Integer index = constantIndex.get(key);
+		if (index != null)
+			return index;
+		constants.write(CONSTANT_UTF8);
+		writeShort(constants, s.length());
+		for (int i = 0; i < s.length(); i++)
+			constants.write(s.charAt(i));
+		return addConstant(key);
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		return constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE,
+			utf8(name), utf8(descriptor));
+	}
+
+	private int staticMethodHandle(String owner, String name, String descriptor) {
+		int method = methodRef(owner, name, descriptor);
+		String key = "H" + method;
+		Integer index = constantIndex.get(key);
+		if (index != null)
+			return index;
+		constants.write(CONSTANT_METHOD_HANDLE);
+		constants.write(REF_INVOKE_STATIC);
+		writeShort(constants, method);
+		return addConstant(key);
+	}
+
+	private int constant(String key, int tag, int first, int second) {
+		Integer index = constantIndex.get(key);
+		if (index != null)
+			return index;
+		constants.write(tag);
+		writeShort(constants, first);
+		writeShort(constants, second);
+		return addConstant(key);
+	}
+
+	private int constant(String key, int tag, int name) {
+		Integer index = constantIndex.get(key);
+		if (index != null)
+			return index;
+		constants.write(tag);
+		writeShort(constants, name);
+		return addConstant(key);
+	}
+
+	private int addConstant(String key) {
+		int index = constantCount++;
+		constantIndex.put(key, index);
+		return index;
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value >> 8);
+		out.write(value);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		writeShort(out, value >>> 16);
+		writeShort(out, value & 0xFFFF);
+	}
+}
@@ -0,0 +1,307 @@
+package com.googlecode.wage_engine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Plays out many fights between two characters of a world to see how they
+ * are balanced, using the engine's own combat code: the player attacks
+ * with a randomly chosen weapon, then the opponent takes its turn through
+ * performCombatAction(). A fight ends when one of them dies, the opponent
+ * leaves the scene or the round limit is reached.
+ *
+ * Fights are split between the threads of a fork-join pool. Each batch of
+ * fights gets a WorldInstance and Engine of its own, restored from a
+ * snapshot at the start of each fight, and its own Random seeded from the
+ * simulation's seed and the index of its first fight, so results don't
+ * depend on how many threads there are.
+ */
+public class CombatSimulator {
+	private static final int FIGHTS_PER_TASK = 256;
+	private static final PrintStream NO_OUTPUT = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+	private static final Engine.Callbacks NO_CALLBACKS = new Engine.Callbacks() {
+		public void setCommandsMenu(String format) {
+		}
+		public void redrawScene(SceneView view) {
+		}
+		public void clearOutput() {
+		}
+		public void gameOver() {
+		}
+	};
+
+	private WorldDefinition definition;
+	private int maxRounds = 100;
+	private ForkJoinPool pool;
+
+	public CombatSimulator(WorldDefinition definition) {
+		this(definition, new ForkJoinPool());
+	}
+
+	public CombatSimulator(WorldDefinition definition, ForkJoinPool pool) {
+		this.definition = definition;
+		this.pool = pool;
+	}
+
+	public void setMaxRounds(int maxRounds) {
+		this.maxRounds = maxRounds;
+	}
+
+	/**
+	 * The outcome of a number of fights.
+	 */
+	public static class Result {
+		private long fights;
+		private long wins;
+		private long losses;
+		private long escapes;
+		private long draws;
+		private long[] rounds;
+		private long[] damageToPlayer;
+		private long[] damageToOpponent;
+
+		Result(int maxRounds, int playerHp, int opponentHp) {
+			rounds = new long[maxRounds + 1];
+			damageToPlayer = new long[Math.max(playerHp, 0) + 1];
+			damageToOpponent = new long[Math.max(opponentHp, 0) + 1];
+		}
+
+		void add(Result other) {
+			fights += other.fights;
+			wins += other.wins;
+			losses += other.losses;
+			escapes += other.escapes;
+			draws += other.draws;
+			for (int i = 0; i < rounds.length; i++)
+				rounds[i] += other.rounds[i];
+			for (int i = 0; i < damageToPlayer.length; i++)
+				damageToPlayer[i] += other.damageToPlayer[i];
+			for (int i = 0; i < damageToOpponent.length; i++)
+				damageToOpponent[i] += other.damageToOpponent[i];
+		}
+
+		public long getFights() {
+			return fights;
+		}
+
+		/**
+		 * @return how many fights the opponent died in
+		 */
+		public long getWins() {
+			return wins;
+		}
+
+		/**
+		 * @return how many fights the player died in
+		 */
+		public long getLosses() {
+			return losses;
+		}
+
+		/**
+		 * @return how many fights ended with the opponent leaving the scene
+		 */
+		public long getEscapes() {
+			return escapes;
+		}
+
+		/**
+		 * @return how many fights were still going after the round limit
+		 */
+		public long getDraws() {
+			return draws;
+		}
+
+		public double getWinRate() {
+			return (fights == 0 ? 0 : (double) wins / fights);
+		}
+
+		/**
+		 * @return the number of fights that lasted each number of rounds
+		 */
+		public long[] getRounds() {
+			return rounds;
+		}
+
+		/**
+		 * @return the number of fights in which the player lost each amount of
+		 *         physical hit points; a dead player counts as losing them all
+		 */
+		public long[] getDamageToPlayer() {
+			return damageToPlayer;
+		}
+
+		/**
+		 * @return the same as getDamageToPlayer(), for the opponent
+		 */
+		public long[] getDamageToOpponent() {
+			return damageToOpponent;
+		}
+
+		public void print(PrintStream out) {
+			out.printf("Fights: %d\n", fights);
+			out.printf("Wins: %d (%.1f%%)\n", wins, percent(wins));
+			out.printf("Losses: %d (%.1f%%)\n", losses, percent(losses));
+			out.printf("Escapes: %d (%.1f%%)\n", escapes, percent(escapes));
+			out.printf("Draws: %d (%.1f%%)\n", draws, percent(draws));
+			print(out, "Rounds", rounds);
+			print(out, "Damage to player", damageToPlayer);
+			print(out, "Damage to opponent", damageToOpponent);
+		}
+
+		private double percent(long count) {
+			return (fights == 0 ? 0 : 100.0 * count / fights);
+		}
+
+		private void print(PrintStream out, String title, long[] histogram) {
+			out.println(title + ":");
+			for (int i = 0; i < histogram.length; i++) {
+				if (histogram[i] > 0)
+					out.printf("%6d %10d %5.1f%%\n", i, histogram[i], percent(histogram[i]));
+			}
+		}
+	}
+
+	/**
+	 * @param playerName the character doing the fighting, or null for the
+	 *                   world's player
+	 * @param opponentName the character being fought
+	 */
+	public Result simulate(String playerName, String opponentName, int fights, long seed) {
+		World world = definition.getWorld();
+		Chr player = (playerName == null ? world.getPlayer() : world.getChrs().get(playerName.toLowerCase()));
+		Chr opponent = world.getChrs().get(opponentName.toLowerCase());
+		if (player == null || opponent == null)
+			throw new IllegalArgumentException("No such character: " + (player == null ? playerName : opponentName));
+		if (player == opponent)
+			throw new IllegalArgumentException("A character can't fight itself");
+		return pool.invoke(new FightTask(player.getIndex(), opponent.getIndex(), 0, fights, seed));
+	}
+
+	private class FightTask extends RecursiveTask<Result> {
+		private static final long serialVersionUID = 1L;
+
+		private int player;
+		private int opponent;
+		private int start;
+		private int end;
+		private long seed;
+
+		public FightTask(int player, int opponent, int start, int end, long seed) {
+			this.player = player;
+			this.opponent = opponent;
+			this.start = start;
+			this.end = end;
+			this.seed = seed;
+		}
+
+		@Override
+		protected Result compute() {
+			if (end - start > FIGHTS_PER_TASK) {
+				int middle = start + (end - start) / 2;
+				FightTask left = new FightTask(player, opponent, start, middle, seed);
+				FightTask right = new FightTask(player, opponent, middle, end, seed);
+				left.fork();
+				Result result = right.compute();
+				result.add(left.join());
+				return result;
+			}
+			World world = definition.getWorld();
+			Result result = new Result(maxRounds,
+				world.getOrderedChrs().get(player).getPhysicalHp(),
+				world.getOrderedChrs().get(opponent).getPhysicalHp());
+			Random random = new Random(seed * 31 + start);
+			WorldInstance instance = definition.newInstance();
+			Engine engine = new Engine(instance, NO_OUTPUT, NO_CALLBACKS, random);
+			engine.setSoundEnabled(false);
+			Chr p = instance.getOrderedChrs().get(player);
+			Chr o = instance.getOrderedChrs().get(opponent);
+			Scene scene = o.getState().getCurrentScene();
+			if (scene == instance.getStorageScene())
+				scene = p.getState().getCurrentScene();
+			if (scene == instance.getStorageScene())
+				scene = instance.getOrderedScenes().get(1);
+			instance.move(p, scene);
+			instance.move(o, scene);
+			WorldSnapshot setup = engine.getSnapshot();
+			for (int i = start; i < end; i++) {
+				engine.restore(setup);
+				fight(instance, engine, scene, random, result);
+			}
+			return result;
+		}
+
+		private void fight(World world, Engine engine, Scene scene, RandomGenerator random, Result result) {
+			Chr p = world.getOrderedChrs().get(player);
+			Chr o = world.getOrderedChrs().get(opponent);
+			int playerHp = p.getState().getBasePhysicalHp();
+			int opponentHp = o.getState().getBasePhysicalHp();
+
+			int round = 0;
+			while (true) {
+				if (round == maxRounds) {
+					result.draws++;
+					break;
+				}
+				round++;
+				Weapon[] weapons = p.getWeapons(true);
+				if (weapons.length > 0) {
+					Weapon weapon = weapons[(int) (random.nextDouble() * weapons.length)];
+					if (weapon instanceof Obj && ((Obj) weapon).getType() == Obj.MAGICAL_OBJECT)
+						engine.performMagic(p, o, (Obj) weapon);
+					else
+						engine.performAttack(p, o, weapon);
+				}
+				if (o.getState().getCurrentScene() == world.getStorageScene()) {
+					result.wins++;
+					break;
+				}
+				engine.performCombatAction(o, p);
+				if (p.getState().getCurrentScene() == world.getStorageScene()) {
+					result.losses++;
+					break;
+				}
+				if (o.getState().getCurrentScene() != scene) {
+					result.escapes++;
+					break;
+				}
+			}
+			result.fights++;
+			result.rounds[round]++;
+			addDamage(result.damageToPlayer, p, world, playerHp);
+			addDamage(result.damageToOpponent, o, world, opponentHp);
+		}
+
+		private void addDamage(long[] histogram, Chr chr, World world, int baseHp) {
+			int damage = baseHp;
+			if (chr.getState().getCurrentScene() != world.getStorageScene())
+				damage = baseHp - chr.getState().getCurrentPhysicalHp();
+			histogram[Math.max(0, Math.min(damage, histogram.length - 1))]++;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CombatSimulator world-file opponent [fights] [player]");
+			System.exit(1);
+		}
+		WorldDefinition definition = WorldDefinition.load(new File(args[0]));
+		int fights = (args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+		String player = (args.length > 3 ? args[3] : null);
+		long start = System.currentTimeMillis();
+		Result result = new CombatSimulator(definition).simulate(player, args[1], fights, start);
+		result.print(System.out);
+		System.out.printf("Took %d ms\n", System.currentTimeMillis() - start);
+	}
+}
@@ -8,12 +8,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.List;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.random.RandomGenerator;
 
+import com.googlecode.wage_engine.engine.World.MoveBatchListener;
 import com.googlecode.wage_engine.engine.World.MoveEvent;
 import com.googlecode.wage_engine.engine.World.MoveListener;
 
-public class Engine implements Script.Callbacks, MoveListener {
+public class Engine implements Script.Callbacks, MoveListener, MoveBatchListener {
 	private static final String[] TARGETS = new String[] { "head", "chest", "side" };
 
 	private World world;
@@ -30,29 +35,72 @@ public class Engine implements Script.Callbacks, MoveListener {
 	private int opponentAim = Chr.CHEST; // TODO: use this ... let monsters aim...
 	private boolean temporarilyHidden;
 	private boolean gameOver;
+	private RandomGenerator random;
+	private ExecutionContext scriptContext;
+	private int redrawDelay = 100;
+	private boolean soundEnabled = true;
+	private Presenter presenter;
+	// when the next presentation event can be shown, after the delay of the
+	// one before it
+	private long nextPresentationTime;
+	private ExecutorService soundPlayer;
+	private StringBuilder batchText;
+	private boolean batchCleared;
+	private boolean batchRedraw;
+	private boolean inTurn;
+	// the longest delay asked for by the redraws held back during a turn,
+	// or -1 if there were none
+	private int turnRedrawDelay = -1;
+	private WorldSnapshot savedSnapshot;
+	private UndoHistory undoHistory;
 
 	public interface Callbacks {
 		public void setCommandsMenu(String format);
-		public void redrawScene();
+		/**
+		 * @param view what to draw, which is the player's scene as it was
+		 *             when the redraw was asked for
+		 */
+		public void redrawScene(SceneView view);
 		public void clearOutput();
 		public void gameOver();
 	}
 
+	/**
+	 * Takes the engine's presentation events, e.g. to show them at a pace the
+	 * player can follow. The presenter must eventually pass each event back
+	 * to perform(), in order.
+	 */
+	public interface Presenter {
+		public void present(PresentationEvent event);
+	}
+
 	public Engine(World world, PrintStream out, Callbacks callbacks) {
+		this(world, out, callbacks, new Random());
+	}
+
+	/**
+	 * @param random the source of all randomness in the game, so that a game
+	 *               can be replayed by using a generator with the same seed
+	 */
+	public Engine(World world, PrintStream out, Callbacks callbacks, RandomGenerator random) {
 		this.world = world;
+		this.random = random;
+		this.scriptContext = new ExecutionContext(random);
 		this.stateManager = new StateManager(world);
 		this.out = out;
 		this.callbacks = callbacks;
 		world.addMoveListener(this);
+		world.addMoveBatchListener(this);
 		temporarilyHidden = true;
 		performInitialSetup();
 		temporarilyHidden = false;
+		world.publishSceneViews();
 	}
 
 	private Scene getSceneByName(String location) {
 		Scene scene;
 		if (location.equals("random@")) {
-			scene = world.getRandomScene();
+			scene = world.getRandomScene(random);
 		} else {
 			scene = world.getScenes().get(location);
 		}
@@ -89,7 +137,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 				if (scene != null) {
 					world.move(chr, scene);
 				} else {
-					world.move(chr, world.getRandomScene());
+					world.move(chr, world.getRandomScene(random));
 				}
 				if (chr.isPlayerCharacter()) {
 					playerPlaced = true;
@@ -98,12 +146,14 @@ public class Engine implements Script.Callbacks, MoveListener {
 			wearObjs(chr);
 		}
 		if (!playerPlaced) {
-			world.move(world.getPlayer(), world.getRandomScene());
+			world.move(world.getPlayer(), world.getRandomScene(random));
 		}
 	}
 	
 	public static void wearObjs(Chr chr) {
-		for (Obj obj : chr.getState().getInventory()) {
+		List<Obj> inventory = chr.getState().getInventory();
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj obj = inventory.get(i);
 			Engine.wearObjIfPossible(chr, obj);
 		}
 	}
@@ -156,10 +206,12 @@ public class Engine implements Script.Callbacks, MoveListener {
 			if (presMonHexOffset != 0xffff) {
 				monster = world.getCharByHexOffset((short)presMonHexOffset);
 			}
+			savedSnapshot = getSnapshot();
 
-			this.callbacks.clearOutput();
+			present(PresentationEvent.CLEAR_OUTPUT, null, null, 0);
 
 			processTurn("look", null);
+			resetUndoHistory();
 		}
 	}
 
@@ -169,6 +221,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 			ByteArrayOutputStream out = new ByteArrayOutputStream();
 			try {
 				stateManager.writeSaveData(out);
+				savedSnapshot = getSnapshot();
 				return out.toByteArray();
 			} catch (IOException ioe) {
 			}
@@ -183,22 +236,108 @@ public class Engine implements Script.Callbacks, MoveListener {
 		if (success) {
 			stateManager.writeSaveData(new FileOutputStream(toFile));
 			Utils.setFileTypeAndCreator(toFile.getAbsolutePath(), "WDOC", world.getCreatorCode());
+			savedSnapshot = getSnapshot();
 		}	
 	}
 	
 	public void revert() throws IOException {
-		if (stateManager.updateWorld() == false) {
-			System.err.println("Error reverting to last saved game!");
-			return;
-		}
+		if (savedSnapshot != null) {
+			setState(savedSnapshot);
+		} else {
+			if (stateManager.updateWorld() == false) {
+				System.err.println("Error reverting to last saved game!");
+				return;
+			}
 
-		loopCount = world.getCurrentState().getLoopNum();
-		monster = world.getCharByHexOffset(world.getCurrentState().getPresCharHexOffset());		
-		aim = world.getCurrentState().getAim();
-		opponentAim = world.getCurrentState().getOpponentAim();
+			loopCount = world.getCurrentState().getLoopNum();
+			monster = world.getCharByHexOffset(world.getCurrentState().getPresCharHexOffset());		
+			aim = world.getCurrentState().getAim();
+			opponentAim = world.getCurrentState().getOpponentAim();
+		}
 
-		callbacks.clearOutput();
+		present(PresentationEvent.CLEAR_OUTPUT, null, null, 0);
 		processTurn("look", null);
+		resetUndoHistory();
+	}
+
+	/**
+	 * @return the state of the game, which restore() can go back to later
+	 */
+	public WorldSnapshot getSnapshot() {
+		WorldSnapshot snapshot = WorldSnapshot.capture(world);
+		saveEngineState(snapshot);
+		return snapshot;
+	}
+
+	// Puts the engine's own state, as opposed to the world's, in a snapshot.
+	void saveEngineState(WorldSnapshot snapshot) {
+		snapshot.loopCount = loopCount;
+		snapshot.monster = WorldSnapshot.indexOf(monster);
+		snapshot.running = WorldSnapshot.indexOf(running);
+		snapshot.aim = aim;
+		snapshot.opponentAim = opponentAim;
+	}
+
+	/**
+	 * Puts the game back the way it was when getSnapshot() returned the given
+	 * snapshot. Unlike loadState() and revert(), the scene isn't described
+	 * again, so no turn is taken and nothing is shown. The turns kept for
+	 * undo() are forgotten.
+	 */
+	public void restore(WorldSnapshot snapshot) {
+		setState(snapshot);
+		resetUndoHistory();
+	}
+
+	/**
+	 * Keeps the given number of turns so that they can be taken back with
+	 * undo(). Turns taken before this can't be taken back; 0 turns undo off.
+	 */
+	public void setUndoLimit(int turns) {
+		undoHistory = (turns > 0 ? new UndoHistory(turns, world, getSnapshot()) : null);
+	}
+
+	/**
+	 * Redraws the scene after everything already presented has been shown,
+	 * on the presenter's thread like any other redraw.
+	 */
+	public void redraw() {
+		present(PresentationEvent.REDRAW, null, null, 0);
+	}
+
+	/**
+	 * Takes back the latest turn that changed anything and describes the
+	 * scene again, without taking a turn.
+	 * @return false if there is nothing to take back
+	 */
+	public boolean undo() {
+		WorldSnapshot previous = (undoHistory == null ? null : undoHistory.undo());
+		if (previous == null)
+			return false;
+		setState(previous);
+		Scene scene = world.getPlayerScene();
+		present(PresentationEvent.CLEAR_OUTPUT, null, null, 0);
+		appendText(scene.getText());
+		appendText(Script.getGroundItemsList(scene));
+		present(PresentationEvent.REDRAW, null, null, 0);
+		return true;
+	}
+
+	private void resetUndoHistory() {
+		if (undoHistory != null)
+			undoHistory.reset(getSnapshot());
+	}
+
+	private void setState(WorldSnapshot snapshot) {
+		snapshot.restore(world);
+		loopCount = snapshot.loopCount;
+		monster = WorldSnapshot.chrAt(world, snapshot.monster);
+		running = WorldSnapshot.chrAt(world, snapshot.running);
+		offer = null;
+		aim = snapshot.aim;
+		opponentAim = snapshot.opponentAim;
+		lastScene = world.getPlayerScene();
+		gameOver = false;
 	}
 
 	private void processTurnInternal(String textInput, Object clickInput) {
@@ -212,7 +351,9 @@ public class Engine implements Script.Callbacks, MoveListener {
 			monster = null;
 			running = null;
 			offer = null;
-			for (Chr chr : playerScene.getState().getChrs()) {
+			List<Chr> chrs = playerScene.getState().getChrs();
+			for (int i = 0; i < chrs.size(); i++) {
+				Chr chr = chrs.get(i);
 				if (!chr.isPlayerCharacter()) {
 					monster = chr;
 					shouldEncounter = true;
@@ -221,19 +362,19 @@ public class Engine implements Script.Callbacks, MoveListener {
 			}
 		}
 		boolean monsterWasNull = (monster == null);
-		boolean handled = playerScene.getScript().execute(world, loopCount++, textInput, clickInput, this);
+		boolean handled = playerScene.getScript().execute(scriptContext, world, loopCount++, textInput, clickInput, this);
 		playerScene = world.getPlayerScene();
 		if (playerScene == world.getStorageScene())
 			return;
 		if (playerScene != lastScene) {
 			temporarilyHidden = true;
-			callbacks.clearOutput();
+			present(PresentationEvent.CLEAR_OUTPUT, null, null, 0);
 			regen();
 			processTurnInternal("look", null);
-			callbacks.redrawScene();
+			present(PresentationEvent.REDRAW, null, null, 0);
 			temporarilyHidden = false;
 		} else if (loopCount == 1) {
-			callbacks.redrawScene();
+			present(PresentationEvent.REDRAW, null, null, 0);
 			if (shouldEncounter && getMonster() != null) {
 				encounter(world.getPlayer(), monster);
 			}
@@ -241,25 +382,66 @@ public class Engine implements Script.Callbacks, MoveListener {
 			if (monsterWasNull && getMonster() != null)
 				return;
 			String[] messages = { "What?", "Huh?" };
-			appendText(messages[(int) (Math.random()*messages.length)]);
+			appendText(messages[(int) (random.nextDouble()*messages.length)]);
 			commandWasQuick = true;
 		}
 	}
 
+	/**
+	 * Runs commands one after the other, as if they had been typed one at a
+	 * time, but hands over their text in one piece and redraws the scene
+	 * only once, at the end. Stops early if the game ends.
+	 */
+	public void processTurns(List<String> commands) {
+		batchText = new StringBuilder();
+		batchCleared = false;
+		batchRedraw = false;
+		try {
+			for (String command : commands) {
+				if (gameOver)
+					break;
+				processTurn(command, null);
+			}
+		} finally {
+			flushBatchText();
+			batchText = null;
+		}
+		if (batchRedraw)
+			emit(PresentationEvent.REDRAW, null, null, 0);
+	}
+
 	public void processTurn(String textInput, Object clickInput) {
 		commandWasQuick = false;
 		Scene prevScene = world.getPlayerScene();
 		Chr prevMonster = getMonster();
-		processTurnInternal(textInput, clickInput);
+		// everything that moves during the turn, whether by the script or
+		// in the fighting after it, is one batch, and the scene is redrawn
+		// once at the end of it
+		inTurn = true;
+		turnRedrawDelay = -1;
+		world.beginMoveBatch();
+		try {
+			processTurnInternal(textInput, clickInput);
+			finishTurn(prevScene, prevMonster);
+		} finally {
+			world.commitMoveBatch();
+			inTurn = false;
+		}
+		if (turnRedrawDelay >= 0 && world.getPlayerScene() != world.getStorageScene())
+			present(PresentationEvent.REDRAW, null, null, turnRedrawDelay);
+		if (undoHistory != null)
+			undoHistory.record(this);
+	}
+
+	private void finishTurn(Scene prevScene, Chr prevMonster) {
 		Scene playerScene = world.getPlayerScene();
 		if (prevScene != playerScene && playerScene != world.getStorageScene()) {
 			if (prevMonster != null) {
 				boolean followed = false;
 				if (getMonster() == null) {
-					Set<Scene> scenes = world.getAdjacentScenes(prevMonster.getState().getCurrentScene());
 					// TODO: adjacent scenes doesn't contain up/down etc... verify that monsters can't follow these...
-					if (scenes.contains(playerScene)) {
-						int chance = (int) (Math.random() * 255);
+					if (world.isAdjacent(prevMonster.getState().getCurrentScene(), playerScene)) {
+						int chance = (int) (random.nextDouble() * 255);
 						followed = (chance < prevMonster.getFollowsOpponent());
 					}
 				}
@@ -286,8 +468,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 
 	public boolean appendText(String text) {
 		if (text != null && text.length() > 0) {
-			out.append(text);
-			out.append("\n");
+			present(PresentationEvent.TEXT, text, null, 0);
 			return true;
 		}
 		return false;
@@ -311,26 +492,10 @@ public class Engine implements Script.Callbacks, MoveListener {
 	}
 	
 	public void playSound(String soundName) {
-		if (soundName != null) {
-			final Sound sound = world.getSounds().get(soundName.toLowerCase());
-			if (sound != null) {
-				if (loopCount == 1) {
-					sound.play();
-				} else {
-					Thread t = new Thread(new Runnable() {
-						public void run() {
-							sound.play();
-						}
-					});
-					t.start();
-					try {
-						t.join();
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
-			}
+		if (soundName != null && soundEnabled) {
+			Sound sound = world.getSounds().get(soundName.toLowerCase());
+			if (sound != null)
+				present(PresentationEvent.SOUND, null, sound, 0);
 		}
 	}
 
@@ -344,7 +509,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 		if (currentScene == world.getStorageScene() && !temporarilyHidden) {
 			if (!gameOver) {
 				gameOver = true;
-				callbacks.gameOver();
+				present(PresentationEvent.GAME_OVER, null, null, 0);
 			}
 			return;
 		}
@@ -360,12 +525,8 @@ public class Engine implements Script.Callbacks, MoveListener {
 						returnToSceneName = "random@";
 					}
 					Scene scene = getSceneByName(returnToSceneName);
-					if (scene != null && scene != world.getStorageScene()) {
+					if (scene != null && scene != world.getStorageScene())
 						world.move(chr, scene);
-						// To avoid sleeping twice, return if the above move command would cause a sleep.
-						if (scene == currentScene)
-							return;
-					}
 				}
 			} else if (event.getTo() == player.getState().getCurrentScene()) {
 				if (getMonster() == null) {
@@ -374,14 +535,20 @@ public class Engine implements Script.Callbacks, MoveListener {
 				}
 			}
 		}
-		if (!temporarilyHidden) {
+	}
+
+	/**
+	 * Redraws the scene once for everything that moved in or out of it
+	 * during a batch of moves, such as one turn.
+	 */
+	public void onMoves(List<MoveEvent> events) {
+		Scene currentScene = world.getPlayerScene();
+		if (temporarilyHidden || currentScene == world.getStorageScene())
+			return;
+		for (MoveEvent event : events) {
 			if (event.getTo() == currentScene || event.getFrom() == currentScene) {
-				callbacks.redrawScene();
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				present(PresentationEvent.REDRAW, null, null, redrawDelay);
+				return;
 			}
 		}
 	}
@@ -427,7 +594,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 		final int MAGIC = -300;
 		final int RUN = -200;
 		final int OFFER = -100;
-		RandomHat<Integer> hat = new RandomHat<Integer>();
+		RandomHat<Integer> hat = new RandomHat<Integer>(random);
 		boolean winning = (npc.getState().getCurrentPhysicalHp() > player.getState().getCurrentPhysicalHp());
 		int validMoves = getValidMoveDirections(npc);
 		// TODO: Figure out under what circumstances we need to add +1
@@ -469,13 +636,13 @@ public class Engine implements Script.Callbacks, MoveListener {
 		switch (token) {
 			case WEAPONS:
 				Weapon[] weapons = npc.getWeapons(false);
-				Weapon weapon = weapons[(int) (Math.random()*weapons.length)];
+				Weapon weapon = weapons[(int) (random.nextDouble()*weapons.length)];
 				// TODO: I think the monster should choose the "best" weapon.
 				performAttack(npc, player, weapon);
 				break;
 			case MAGIC:
 				Obj[] magicalObjects = npc.getMagicalObjects();
-				Obj magicalObject = magicalObjects[(int) (Math.random()*magicalObjects.length)];
+				Obj magicalObject = magicalObjects[(int) (random.nextDouble()*magicalObjects.length)];
 				// TODO: I think the monster should choose the "best" magic.
 				performMagic(npc, player, magicalObject);
 				break;
@@ -504,13 +671,16 @@ public class Engine implements Script.Callbacks, MoveListener {
 		int maxHp = player.getState().getBasePhysicalHp();
 		int delta = maxHp - curHp;
 		if (delta > 0) {
-			int bonus = (int) (delta / (8 + 2 * Math.random()));
+			int bonus = (int) (delta / (8 + 2 * random.nextDouble()));
 			player.getState().setCurrentPhysicalHp(curHp + bonus);
+			world.noteChange(player);
 		}
 	}
 
 	private void performOffer(Chr attacker, Chr victim) {
-		for (Obj o : attacker.getState().getInventory()) {
+		List<Obj> inventory = attacker.getState().getInventory();
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj o = inventory.get(i);
 			/* TODO: choose in a smarter way? */
 			appendText("%s offers %s.",
 				getNameWithDefiniteArticle(attacker, true),
@@ -530,7 +700,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 				TextUtils.prependIndefiniteArticle(magicalObject.getName()));
 		}
 
-		int chance = (int) (Math.random() * 255);
+		int chance = (int) (random.nextDouble() * 255);
 		if (chance < magicalObject.getAccuracy()) {
 			int type = magicalObject.getAttackType();
 
@@ -545,6 +715,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 				spirit += magicalObject.getDamage();
 				chr.getState().setCurrentSpiritualHp(spirit);
 			}
+			world.noteChange(chr);
 
 			playSound(magicalObject.getSound());
 			appendText(magicalObject.getUseMessage());
@@ -564,16 +735,10 @@ public class Engine implements Script.Callbacks, MoveListener {
 	private int getValidMoveDirections(Chr npc) {
 		int directions = 0;
 		Scene currentScene = npc.getState().getCurrentScene();
-		int dx[] = new int[] { 0, 0, 1, -1 };
-		int dy[] = new int[] { -1, 1, 0, 0 };
 		for (int dir = 0; dir < 4; dir++) {
-			if (!currentScene.isDirBlocked(dir)) {
-				int destX = currentScene.getWorldX() + dx[dir];
-				int destY = currentScene.getWorldY() + dy[dir];
-				Scene scene = world.getSceneAt(destX, destY);
-				if (scene != null && scene.getState().getChrs().size() == 0) {
-					directions |= (1 << dir);
-				}
+			Scene scene = world.getExit(currentScene, dir);
+			if (scene != null && scene.getState().getChrs().size() == 0) {
+				directions |= (1 << dir);
 			}
  		}
 		return directions;
@@ -585,16 +750,11 @@ public class Engine implements Script.Callbacks, MoveListener {
 		for (int dir = 0; dir < 4; dir++)
 			if ((validMoves & (1 << dir)) != 0)
 				moves[numValidMoves++] = dir;
-		int dir = moves[(int) (Math.random() * numValidMoves)];
+		int dir = moves[(int) (random.nextDouble() * numValidMoves)];
 		appendText("%s runs %s.", getNameWithDefiniteArticle(chr, true),
 			new String[] {"north", "south", "east", "west"}[dir]);
 		running = chr;
-		int dx[] = new int[] { 0, 0, 1, -1 };
-		int dy[] = new int[] { -1, 1, 0, 0 };
-		Scene currentScene = chr.getState().getCurrentScene();
-		int destX = currentScene.getWorldX() + dx[dir];
-		int destY = currentScene.getWorldY() + dy[dir];
-		world.move(chr, world.getSceneAt(destX, destY));
+		world.move(chr, world.getExit(chr.getState().getCurrentScene(), dir));
 	}
 
 	public void performMagic(Chr attacker, Chr victim, Obj magicalObject) {
@@ -609,7 +769,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 	}
 
 	public void performMagicAttack(Chr attacker, Chr victim, Obj weapon) {
-		int chance = (int) (Math.random() * 255);
+		int chance = (int) (random.nextDouble() * 255);
 		// TODO: what about object accuracy
 		if (chance < attacker.getSpiritualAccuracy()) {
 			switch (weapon.getAttackType()) {
@@ -667,6 +827,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 			int victimHp = victim.getState().getCurrentPhysicalHp();
 			victimHp -= weapon.getDamage();
 			victim.getState().setCurrentPhysicalHp(victimHp);
+			world.noteChange(victim);
 
 			if (weapon instanceof Obj) {
 				/* Do it here to get the right order of messages in case of death. */
@@ -682,6 +843,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 				attackerContext.setKills(attackerContext.getKills() + 1);
 				int exp = victim.getSpiritualHp() + victim.getPhysicalHp();
 				attackerContext.setExperience(attackerContext.getExperience() + exp);
+				world.noteChange(attacker);
 
 				List<Obj> inventory = victim.getState().getInventory();
 				if (!victim.isPlayerCharacter() && !inventory.isEmpty()) {
@@ -706,6 +868,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 
 		if (freezesOpponent) {
 			victim.getContext().setFrozen(true);
+			world.noteChange(victim);
 		}
 
 		return usesDecremented;
@@ -721,7 +884,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 			if (attacker.isPlayerCharacter()) {
 				targetIndex = aim;
 			} else {
-				targetIndex = (int) (Math.random()*TARGETS.length);
+				targetIndex = (int) (random.nextDouble()*TARGETS.length);
 				opponentAim = targetIndex + 1;
 			}
 			if (!attacker.isPlayerCharacter()) {
@@ -743,7 +906,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 		playSound(weapon.getSound());
 
 		boolean usesDecremented = false;
-		int chance = (int) (Math.random() * 255);
+		int chance = (int) (random.nextDouble() * 255);
 		// TODO: what about obj accuracy
 		if (chance < attacker.getPhysicalAccuracy()) {
 			usesDecremented = attackHit(attacker, victim, weapon, targetIndex);
@@ -761,6 +924,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 	private void decrementUses(Obj obj) {
 		int numberOfUses = obj.getState().getNumberOfUses();
 		if (numberOfUses != -1) {
+			world.noteChange(obj);
 			numberOfUses--;
 			if (numberOfUses > 0) {
 				obj.getState().setNumberOfUses(numberOfUses);
@@ -769,7 +933,7 @@ public class Engine implements Script.Callbacks, MoveListener {
 					appendText(obj.getFailureMessage());
 				}
 				if (obj.getReturnToRandomScene()) {
-					world.move(obj, world.getRandomScene());
+					world.move(obj, world.getRandomScene(random));
 				} else {
 					world.move(obj, world.getStorageScene());
 				}
@@ -790,4 +954,119 @@ public class Engine implements Script.Callbacks, MoveListener {
 	public StateManager getStateManager() {
 		return stateManager;
 	}
+
+	/**
+	 * Sends presentation events to the given presenter instead of showing
+	 * them straight away, which is done when there is no presenter.
+	 */
+	public void setPresenter(Presenter presenter) {
+		this.presenter = presenter;
+		nextPresentationTime = 0;
+	}
+
+	/**
+	 * Shows a presentation event now, on the calling thread. Sounds are
+	 * played to the end before this returns; the event's delay is up to the
+	 * caller.
+	 */
+	public void perform(PresentationEvent event) {
+		switch (event.getType()) {
+			case PresentationEvent.TEXT:
+				out.append(event.getText());
+				out.append("\n");
+				break;
+			case PresentationEvent.REDRAW:
+				callbacks.redrawScene(event.getView());
+				break;
+			case PresentationEvent.SOUND:
+				event.getSound().play();
+				break;
+			case PresentationEvent.CLEAR_OUTPUT:
+				callbacks.clearOutput();
+				break;
+			case PresentationEvent.GAME_OVER:
+				callbacks.gameOver();
+				break;
+		}
+	}
+
+	private void present(int type, String text, Sound sound, int delay) {
+		if (inTurn && type == PresentationEvent.REDRAW) {
+			turnRedrawDelay = Math.max(turnRedrawDelay, delay);
+			return;
+		}
+		if (batchText != null) {
+			if (type == PresentationEvent.TEXT) {
+				if (batchText.length() > 0)
+					batchText.append("\n");
+				batchText.append(text);
+				return;
+			} else if (type == PresentationEvent.REDRAW) {
+				batchRedraw = true;
+				return;
+			} else if (type == PresentationEvent.CLEAR_OUTPUT) {
+				batchText.setLength(0);
+				batchCleared = true;
+				return;
+			}
+			flushBatchText();
+		}
+		emit(type, text, sound, delay);
+	}
+
+	/**
+	 * Makes the event, to be shown once the delay of the one before it is
+	 * over. Without a presenter it is shown now, except that sounds are
+	 * played in the background so the turn doesn't wait for them.
+	 */
+	private void emit(int type, String text, Sound sound, int delay) {
+		long time = Math.max(System.currentTimeMillis(), nextPresentationTime);
+		nextPresentationTime = time + delay;
+		SceneView view = null;
+		if (type == PresentationEvent.REDRAW && world.getPlayerScene() != null)
+			view = world.getSceneView(world.getPlayerScene());
+		final PresentationEvent event = new PresentationEvent(type, time, text, sound, view, delay);
+		if (presenter != null) {
+			presenter.present(event);
+		} else if (type == PresentationEvent.SOUND) {
+			if (soundPlayer == null) {
+				soundPlayer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Sound");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			soundPlayer.execute(new Runnable() {
+				public void run() {
+					perform(event);
+				}
+			});
+		} else {
+			perform(event);
+		}
+	}
+
+	private void flushBatchText() {
+		if (batchCleared)
+			emit(PresentationEvent.CLEAR_OUTPUT, null, null, 0);
+		if (batchText.length() > 0)
+			emit(PresentationEvent.TEXT, batchText.toString(), null, 0);
+		batchText.setLength(0);
+		batchCleared = false;
+	}
+
+	/**
+	 * @param redrawDelay how many milliseconds the presenter should wait after
+	 *                    redrawing the scene for something moving in or out
+	 *                    of it, so that the player can see it happen
+	 */
+	public void setRedrawDelay(int redrawDelay) {
+		this.redrawDelay = redrawDelay;
+	}
+
+	public void setSoundEnabled(boolean soundEnabled) {
+		this.soundEnabled = soundEnabled;
+	}
 }
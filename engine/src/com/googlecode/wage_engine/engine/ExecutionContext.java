@@ -0,0 +1,59 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+/**
+ * Holds the state of a script while it runs: the world and input it runs
+ * against, where it is up to and whether it has handled the input. Scripts
+ * keep none of this themselves, so one loaded Script can be run by several
+ * sessions at once, each with its own context.
+ *
+ * A context can be reused for any number of runs (the global script runs
+ * in the same context as the scene script that calls it), but only by one
+ * thread at a time.
+ */
+public class ExecutionContext {
+	RandomGenerator random;
+	World world;
+	Script.Callbacks callbacks;
+	int loopCount;
+	String inputText;
+	BitSet inputMatches;
+	Object inputClick;
+	int index;
+	boolean handled;
+
+	public ExecutionContext() {
+		this(new Random());
+	}
+
+	/**
+	 * @param random where RANDOM#, RANDOMSCN@ etc. get their values from
+	 */
+	public ExecutionContext(RandomGenerator random) {
+		this.random = random;
+	}
+
+	void start(World world, int loopCount, String inputText, BitSet inputMatches,
+			Object inputClick, Script.Callbacks callbacks)
+	{
+		this.world = world;
+		this.loopCount = loopCount;
+		this.inputText = inputText;
+		this.inputMatches = inputMatches;
+		this.inputClick = inputClick;
+		this.callbacks = callbacks;
+		this.index = 0;
+		this.handled = false;
+	}
+
+	/**
+	 * Drops the references held from the last run, e.g. before returning the
+	 * context to a pool.
+	 */
+	public void clear() {
+		start(null, 0, null, null, null, null);
+	}
+}
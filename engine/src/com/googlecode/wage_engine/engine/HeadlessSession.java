@@ -0,0 +1,297 @@
+package com.googlecode.wage_engine.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+import com.googlecode.wage_engine.engine.World.MoveEvent;
+import com.googlecode.wage_engine.engine.World.MoveListener;
+
+/**
+ * Plays a game without a window: each command or click is run as a turn and
+ * the text and changes it produced are returned as a Turn. The scene is not
+ * redrawn, no sounds are played and the engine doesn't pause to show things
+ * moving, so turns run as fast as the scripts allow.
+ *
+ * A session is for one player; its methods may be called from any thread
+ * but only one turn runs at a time.
+ */
+public class HeadlessSession implements Engine.Callbacks, MoveListener {
+	private World world;
+	private Engine engine;
+	private ByteArrayOutputStream buffer;
+	private boolean started;
+	private boolean gameOver;
+	private Turn turn;
+
+	/**
+	 * What happened during one turn.
+	 */
+	public static class Turn {
+		private String text;
+		private Scene sceneBefore;
+		private Scene sceneAfter;
+		private List<MoveEvent> moves = new ArrayList<MoveEvent>();
+		private int redraws;
+		private boolean outputCleared;
+		private String commandsMenu;
+		private boolean gameOver;
+
+		/**
+		 * @return the text written to the console, starting after the last
+		 *         time it was cleared if that happened during the turn
+		 */
+		public String getText() {
+			return text;
+		}
+
+		public Scene getSceneBefore() {
+			return sceneBefore;
+		}
+
+		public Scene getSceneAfter() {
+			return sceneAfter;
+		}
+
+		public boolean isSceneChanged() {
+			return sceneBefore != sceneAfter;
+		}
+
+		/**
+		 * @return everything that was moved, in the order it happened
+		 */
+		public List<MoveEvent> getMoves() {
+			return moves;
+		}
+
+		/**
+		 * @return how many times the scene would have been redrawn
+		 */
+		public int getRedraws() {
+			return redraws;
+		}
+
+		public boolean isOutputCleared() {
+			return outputCleared;
+		}
+
+		/**
+		 * @return the new commands menu if a script changed it, otherwise null
+		 */
+		public String getCommandsMenu() {
+			return commandsMenu;
+		}
+
+		public boolean isGameOver() {
+			return gameOver;
+		}
+	}
+
+	public HeadlessSession(World world) {
+		this(world, new Random());
+	}
+
+	/**
+	 * @param random passed on to the Engine, so that a session can be replayed
+	 */
+	public HeadlessSession(World world, RandomGenerator random) {
+		this.world = world;
+		this.buffer = new ByteArrayOutputStream();
+		this.engine = new Engine(world, new PrintStream(buffer, true), this, random);
+		engine.setRedrawDelay(0);
+		engine.setSoundEnabled(false);
+		world.addMoveListener(this);
+	}
+
+	/**
+	 * Describes the scene the player starts in. Other turns do this first if
+	 * it hasn't been done yet.
+	 */
+	public synchronized Turn start() {
+		beginTurn();
+		started = true;
+		engine.processTurn("look", null);
+		return endTurn();
+	}
+
+	public synchronized Turn command(String text) {
+		Turn lookTurn = (started ? null : start());
+		beginTurn();
+		engine.processTurn(text, null);
+		return merge(lookTurn, endTurn());
+	}
+
+	/**
+	 * Runs several commands as one turn, see Engine.processTurns().
+	 */
+	public synchronized Turn commands(List<String> commands) {
+		Turn lookTurn = (started ? null : start());
+		beginTurn();
+		engine.processTurns(commands);
+		return merge(lookTurn, endTurn());
+	}
+
+	/**
+	 * @param target the Obj or Chr the player clicked on
+	 */
+	public synchronized Turn click(Object target) {
+		Turn lookTurn = (started ? null : start());
+		beginTurn();
+		engine.processTurn(null, target);
+		return merge(lookTurn, endTurn());
+	}
+
+	/**
+	 * Clicks on an object or character in the player's scene.
+	 * @return null if there is nothing by that name in the scene
+	 */
+	public synchronized Turn click(String name) {
+		Scene scene = world.getPlayerScene();
+		for (Obj obj : scene.getState().getObjs()) {
+			if (obj.getName().equalsIgnoreCase(name))
+				return click(obj);
+		}
+		for (Chr chr : scene.getState().getChrs()) {
+			if (chr.getName().equalsIgnoreCase(name))
+				return click(chr);
+		}
+		return null;
+	}
+
+	public synchronized Turn loadState(InputStream in) throws IOException {
+		beginTurn();
+		started = true;
+		gameOver = false;
+		engine.loadState(in);
+		return endTurn();
+	}
+
+	/**
+	 * @return the saved game, or null if the state couldn't be saved
+	 */
+	public synchronized byte[] saveState() {
+		return engine.getSaveStateAsByteArray();
+	}
+
+	public synchronized Turn revert() throws IOException {
+		beginTurn();
+		started = true;
+		gameOver = false;
+		engine.revert();
+		return endTurn();
+	}
+
+	/**
+	 * Takes back the latest turn that changed anything, if the engine has
+	 * been told to keep turns with Engine.setUndoLimit().
+	 * @return null if there is nothing to take back
+	 */
+	public synchronized Turn undo() {
+		beginTurn();
+		boolean undone = engine.undo();
+		if (undone)
+			gameOver = false;
+		Turn result = endTurn();
+		return (undone ? result : null);
+	}
+
+	public synchronized WorldSnapshot getSnapshot() {
+		return engine.getSnapshot();
+	}
+
+	/**
+	 * Goes back to a snapshot without taking a turn, e.g. to try something
+	 * else from the same point in a test.
+	 */
+	public synchronized void restore(WorldSnapshot snapshot) {
+		started = true;
+		gameOver = false;
+		engine.restore(snapshot);
+	}
+
+	/**
+	 * Stops the session from listening to the world, so that another session
+	 * can be started on it.
+	 */
+	public synchronized void close() {
+		world.removeMoveListener(this);
+		world.removeMoveListener(engine);
+		world.removeMoveBatchListener(engine);
+	}
+
+	public World getWorld() {
+		return world;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public StateManager getStateManager() {
+		return engine.getStateManager();
+	}
+
+	public synchronized boolean isGameOver() {
+		return gameOver;
+	}
+
+	private void beginTurn() {
+		buffer.reset();
+		turn = new Turn();
+		turn.sceneBefore = world.getPlayerScene();
+	}
+
+	private Turn endTurn() {
+		Turn result = turn;
+		result.text = buffer.toString();
+		result.sceneAfter = world.getPlayerScene();
+		result.gameOver = gameOver;
+		buffer.reset();
+		turn = null;
+		return result;
+	}
+
+	private static Turn merge(Turn first, Turn second) {
+		if (first == null)
+			return second;
+		if (!second.outputCleared)
+			second.text = first.text + second.text;
+		second.sceneBefore = first.sceneBefore;
+		second.moves.addAll(0, first.moves);
+		second.redraws += first.redraws;
+		second.outputCleared |= first.outputCleared;
+		if (second.commandsMenu == null)
+			second.commandsMenu = first.commandsMenu;
+		return second;
+	}
+
+	public void onMove(MoveEvent event) {
+		if (turn != null)
+			turn.moves.add(event);
+	}
+
+	public void setCommandsMenu(String format) {
+		if (turn != null)
+			turn.commandsMenu = format;
+	}
+
+	public void redrawScene(SceneView view) {
+		if (turn != null)
+			turn.redraws++;
+	}
+
+	public void clearOutput() {
+		buffer.reset();
+		if (turn != null)
+			turn.outputCleared = true;
+	}
+
+	public void gameOver() {
+		gameOver = true;
+	}
+}
@@ -12,6 +12,7 @@ public class MenuBarBuilder {
 		public boolean doSave();
 		public boolean doSaveAs();
 		public void doRevert();
+		public void doUndo();
 		public void performCommand(String command);
 		public boolean isGameInProgress();
 	}
@@ -93,7 +94,11 @@ public class MenuBarBuilder {
 
 	private Menu createEditMenu() {
 		MenuItem[] items = new MenuItem[] {
-			new MenuItem("Undo", 0, 'Z'),
+			new MenuItem("Undo", 0, 'Z') {
+				public void performAction() {
+					callbacks.doUndo();
+				}
+			},
 			null, // separator
 			new MenuItem("Cut", 0, 'K'),
 			new MenuItem("Copy", 0, 'C'),
@@ -2,7 +2,7 @@ package com.googlecode.wage_engine.engine;
 
 import java.awt.Rectangle;
 
-public class ObjImpl implements Obj {
+public class ObjImpl implements Obj, Cloneable {
 	private int index;
 	private String name;
 	private short resourceID;
@@ -34,6 +34,20 @@ public class ObjImpl implements Obj {
 	public void setState(State state) {
 		this.state = state;
 	}
+
+	/**
+	 * @return an object with the same design and stats as this one, but with
+	 *         a state of its own
+	 */
+	ObjImpl copy() {
+		try {
+			ObjImpl copy = (ObjImpl) clone();
+			copy.state = null;
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
 	
 	public Design getDesign() {
 		return design;
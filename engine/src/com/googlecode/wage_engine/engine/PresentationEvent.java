@@ -0,0 +1,69 @@
+package com.googlecode.wage_engine.engine;
+
+/**
+ * Something the engine wants the player to see or hear. Each event says
+ * when it should be shown; the engine makes that no earlier than the delay
+ * of the event before it allows, e.g. so a character can be seen walking
+ * into a scene before anything else happens.
+ */
+public class PresentationEvent {
+	public static final int TEXT = 0;
+	public static final int REDRAW = 1;
+	public static final int SOUND = 2;
+	public static final int CLEAR_OUTPUT = 3;
+	public static final int GAME_OVER = 4;
+
+	private int type;
+	private long time;
+	private String text;
+	private Sound sound;
+	private SceneView view;
+	private int delay;
+
+	public PresentationEvent(int type, long time, String text, Sound sound, SceneView view, int delay) {
+		this.type = type;
+		this.time = time;
+		this.text = text;
+		this.sound = sound;
+		this.view = view;
+		this.delay = delay;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return when to show the event, in milliseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the text to append for a TEXT event, without the newline
+	 */
+	public String getText() {
+		return text;
+	}
+
+	public Sound getSound() {
+		return sound;
+	}
+
+	/**
+	 * @return for a REDRAW event, the player's scene as it was when the
+	 *         event was made, which is what should be drawn even if the
+	 *         engine has moved on since
+	 */
+	public SceneView getView() {
+		return view;
+	}
+
+	/**
+	 * @return how many milliseconds to wait after showing this event
+	 */
+	public int getDelay() {
+		return delay;
+	}
+}
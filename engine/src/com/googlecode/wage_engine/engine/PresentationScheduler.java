@@ -0,0 +1,72 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Shows an engine's presentation events on a thread of its own, each one
+ * at the time it gives, and playing sounds to the end before going on.
+ * Events with the same time are shown in the order they came in. Turns
+ * don't wait for any of this, so the engine is free to run the next command
+ * while the last one is still being shown.
+ */
+public class PresentationScheduler implements Engine.Presenter, Runnable {
+	private Engine engine;
+	private BlockingQueue<Entry> queue = new PriorityBlockingQueue<Entry>();
+	private long sequence;
+	private volatile Thread thread;
+
+	private static class Entry implements Comparable<Entry> {
+		private PresentationEvent event;
+		private long sequence;
+
+		public Entry(PresentationEvent event, long sequence) {
+			this.event = event;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Entry other) {
+			if (event.getTime() != other.event.getTime())
+				return (event.getTime() < other.event.getTime() ? -1 : 1);
+			return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+		}
+	}
+
+	public PresentationScheduler(Engine engine) {
+		this.engine = engine;
+	}
+
+	public void start() {
+		thread = new Thread(this, "Presentation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops showing events; those not shown yet are dropped.
+	 */
+	public void stop() {
+		Thread t = thread;
+		thread = null;
+		if (t != null)
+			t.interrupt();
+		queue.clear();
+	}
+
+	public synchronized void present(PresentationEvent event) {
+		queue.add(new Entry(event, sequence++));
+	}
+
+	public void run() {
+		try {
+			while (thread == Thread.currentThread()) {
+				PresentationEvent event = queue.take().event;
+				long wait = event.getTime() - System.currentTimeMillis();
+				if (wait > 0)
+					Thread.sleep(wait);
+				engine.perform(event);
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+}
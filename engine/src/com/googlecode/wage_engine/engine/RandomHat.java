@@ -2,11 +2,19 @@ package com.googlecode.wage_engine.engine;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class RandomHat<T> {
 	private HashMap<T, Integer> tokens;
+	private RandomGenerator random;
 
 	public RandomHat() {
+		this(new Random());
+	}
+
+	public RandomHat(RandomGenerator random) {
+		this.random = random;
 		tokens = new HashMap<T, Integer>();
 	}
 
@@ -38,7 +46,7 @@ public class RandomHat<T> {
 		T drawn = null;
 		int total = countTokens();
 		if (total > 0) {
-			int random = (int) (Math.random() * total);
+			int random = (int) (this.random.nextDouble() * total);
 			int count = 0;
 			for (Map.Entry<T, Integer> entry: tokens.entrySet()) {
 				int value = entry.getValue();
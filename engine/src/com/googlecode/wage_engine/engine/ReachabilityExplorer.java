@@ -0,0 +1,612 @@
+package com.googlecode.wage_engine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Finds out what a player can get to in a world by trying every command in
+ * every state the game can be in, breadth first. The commands tried are the
+ * items of the commands menu (as changed by MENU in scripts), the four
+ * directions, clicks on everything in the player's scene and, while there
+ * is someone to fight, the player's weapons.
+ *
+ * States are told apart by a 64-bit hash of everything that can change in
+ * the game except the visit and loop counters and which scenes have been
+ * visited, which would otherwise make every walk around the world a new
+ * state. The hashes of the states seen are kept in a fixed size table, so
+ * exploring doesn't use more memory as it goes on; once the table is full
+ * no more new states are explored and the report says it is incomplete.
+ *
+ * Each level of the search is split between threads, each with its own
+ * WorldInstance and Engine that are put back into the state being explored
+ * with Engine.restore() before each command. The Random used by the
+ * engine is seeded from the state and the command, so results don't depend
+ * on the order states are explored in.
+ */
+public class ReachabilityExplorer {
+	private static final String[] DIRECTIONS = new String[] { "north", "south", "east", "west" };
+	private static final int MAX_DEAD_ENDS_SHOWN = 10;
+	private static final PrintStream NO_OUTPUT = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	private WorldDefinition definition;
+	private int threads;
+	private int maxStates = 1 << 22;
+	private int maxDepth = Integer.MAX_VALUE;
+	private long seed;
+
+	public ReachabilityExplorer(WorldDefinition definition) {
+		this(definition, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ReachabilityExplorer(WorldDefinition definition, int threads) {
+		this.definition = definition;
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets how many states can be remembered; the table of states seen takes
+	 * about 16 bytes for each.
+	 */
+	public void setMaxStates(int maxStates) {
+		this.maxStates = maxStates;
+	}
+
+	/**
+	 * Sets how many commands away from the start to look.
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Sets the seed of the Random used to set up the world, e.g. to place
+	 * characters whose initial scene is random.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * What was found.
+	 */
+	public static class Report {
+		private long states;
+		private long transitions;
+		private long gameOvers;
+		private long deadEnds;
+		private int depth;
+		private boolean complete = true;
+		private List<Scene> unreachableScenes = new ArrayList<Scene>();
+		private List<Obj> unobtainableObjs = new ArrayList<Obj>();
+		private List<List<String>> deadEndPaths = new ArrayList<List<String>>();
+
+		/**
+		 * @return how many different states were found
+		 */
+		public long getStates() {
+			return states;
+		}
+
+		/**
+		 * @return how many commands were tried
+		 */
+		public long getTransitions() {
+			return transitions;
+		}
+
+		/**
+		 * @return how many commands ended the game
+		 */
+		public long getGameOvers() {
+			return gameOvers;
+		}
+
+		/**
+		 * @return how many states there are in which no command changes
+		 *         anything except by ending the game
+		 */
+		public long getDeadEnds() {
+			return deadEnds;
+		}
+
+		/**
+		 * @return the commands that lead to the first few dead ends found
+		 */
+		public List<List<String>> getDeadEndPaths() {
+			return deadEndPaths;
+		}
+
+		/**
+		 * @return the greatest number of commands needed to get to a state
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * @return false if the search stopped because there were too many
+		 *         states or they were too far away, so that the rest of the
+		 *         report may be missing things
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * @return the scenes the player never got to
+		 */
+		public List<Scene> getUnreachableScenes() {
+			return unreachableScenes;
+		}
+
+		/**
+		 * @return the objects, other than immobile ones, the player never had
+		 */
+		public List<Obj> getUnobtainableObjs() {
+			return unobtainableObjs;
+		}
+
+		public void print(PrintStream out) {
+			out.printf("States: %d%s\n", states, complete ? "" : " (incomplete)");
+			out.printf("Commands tried: %d\n", transitions);
+			out.printf("Greatest depth: %d\n", depth);
+			out.printf("Game overs: %d\n", gameOvers);
+			out.printf("Dead ends: %d\n", deadEnds);
+			for (List<String> path : deadEndPaths)
+				out.println("  " + (path.isEmpty() ? "(start)" : join(path)));
+			out.printf("Unreachable scenes: %d\n", unreachableScenes.size());
+			for (Scene scene : unreachableScenes)
+				out.println("  " + scene.getName());
+			out.printf("Unobtainable objects: %d\n", unobtainableObjs.size());
+			for (Obj obj : unobtainableObjs)
+				out.println("  " + obj.getName());
+		}
+
+		private static String join(List<String> path) {
+			StringBuilder sb = new StringBuilder();
+			for (String command : path) {
+				if (sb.length() > 0)
+					sb.append("; ");
+				sb.append(command);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A state waiting to be explored. Explored states only keep what is
+	 * needed to say how they were reached.
+	 */
+	private static class Node {
+		public WorldSnapshot state;
+		public String menu;
+		public long hash;
+		public Node parent;
+		public String command;
+
+		public List<String> getPath() {
+			LinkedList<String> path = new LinkedList<String>();
+			for (Node node = this; node.parent != null; node = node.parent)
+				path.addFirst(node.command);
+			return path;
+		}
+	}
+
+	/**
+	 * A set of hashes in an open addressed table that never grows. Zero marks
+	 * an empty slot, so a hash of zero is stored as one.
+	 */
+	private static class VisitedSet {
+		private AtomicLongArray table;
+		private int mask;
+		private int maxSize;
+		private int size;
+		private volatile boolean full;
+
+		public VisitedSet(int maxStates) {
+			int capacity = Integer.highestOneBit(Math.max(maxStates, 2) * 2 - 1) << 1;
+			table = new AtomicLongArray(capacity);
+			mask = capacity - 1;
+			maxSize = maxStates;
+		}
+
+		/**
+		 * @return true if the hash wasn't in the set and has been added
+		 */
+		public boolean add(long hash) {
+			if (hash == 0)
+				hash = 1;
+			int i = (int) (hash ^ (hash >>> 32)) & mask;
+			while (true) {
+				long current = table.get(i);
+				if (current == hash)
+					return false;
+				if (current == 0) {
+					if (full || !reserve())
+						return false;
+					if (table.compareAndSet(i, 0, hash))
+						return true;
+					release();
+					continue;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		private synchronized boolean reserve() {
+			if (size == maxSize) {
+				full = true;
+				return false;
+			}
+			size++;
+			return true;
+		}
+
+		private synchronized void release() {
+			size--;
+		}
+
+		public synchronized int size() {
+			return size;
+		}
+
+		public boolean isFull() {
+			return full;
+		}
+	}
+
+	/**
+	 * One thread's copy of the game.
+	 */
+	private class Worker implements Engine.Callbacks {
+		private WorldInstance world;
+		private Engine engine;
+		private Random random;
+		private String menu;
+		private boolean gameOver;
+
+		public Worker() {
+			world = definition.newInstance();
+			random = new Random(seed);
+			engine = new Engine(world, NO_OUTPUT, this, random);
+			engine.setRedrawDelay(0);
+			engine.setSoundEnabled(false);
+			menu = world.getDefaultCommandsMenu();
+		}
+
+		/**
+		 * Describes the starting scene, as a player would see it first.
+		 */
+		public Node start() {
+			random.setSeed(seed);
+			engine.processTurn("look", null);
+			Node node = new Node();
+			node.state = engine.getSnapshot();
+			node.menu = menu;
+			node.hash = hash();
+			return node;
+		}
+
+		public void explore(Node node, Level level) {
+			restore(node);
+			List<Object> commands = getCommands();
+			boolean changed = false;
+			for (int i = 0; i < commands.size(); i++) {
+				Object command = commands.get(i);
+				if (i > 0)
+					restore(node);
+				// clicks are seeded by name, as objects and characters only
+				// have identity hash codes, which differ between workers
+				String name = (command instanceof String ? (String) command : "/click " + getName(command));
+				random.setSeed(node.hash * 31 + name.hashCode());
+				if (command instanceof String)
+					engine.processTurn((String) command, null);
+				else
+					engine.processTurn(null, command);
+				level.transitions++;
+				markProgress(level);
+				if (gameOver) {
+					level.gameOvers++;
+					continue;
+				}
+				long hash = hash();
+				if (hash == node.hash)
+					continue;
+				changed = true;
+				if (level.visited.add(hash)) {
+					Node child = new Node();
+					child.state = engine.getSnapshot();
+					child.menu = menu;
+					child.hash = hash;
+					child.parent = node;
+					child.command = name;
+					level.next.add(child);
+				}
+			}
+			if (!changed) {
+				level.deadEnds++;
+				if (level.deadEndPaths.size() < MAX_DEAD_ENDS_SHOWN)
+					level.deadEndPaths.add(node.getPath());
+			}
+		}
+
+		private void restore(Node node) {
+			engine.restore(node.state);
+			menu = node.menu;
+			gameOver = false;
+		}
+
+		private List<Object> getCommands() {
+			Set<Object> commands = new LinkedHashSet<Object>();
+			for (String item : menu.split(";")) {
+				int index = item.lastIndexOf('/');
+				if (index != -1)
+					item = item.substring(0, index);
+				while (item.length() >= 2 && item.charAt(item.length() - 2) == '<')
+					item = item.substring(0, item.length() - 2);
+				item = item.trim();
+				if (item.length() > 0 && !item.startsWith("("))
+					commands.add(item.toLowerCase());
+			}
+			for (String direction : DIRECTIONS)
+				commands.add(direction);
+			Chr player = world.getPlayer();
+			Scene scene = world.getPlayerScene();
+			for (Obj obj : scene.getState().getObjs())
+				commands.add(obj);
+			for (Chr chr : scene.getState().getChrs()) {
+				if (chr != player)
+					commands.add(chr);
+			}
+			if (engine.getMonster() != null) {
+				for (Weapon weapon : player.getWeapons(true))
+					commands.add((weapon.getOperativeVerb() + " " + weapon.getName()).toLowerCase());
+			}
+			return new ArrayList<Object>(commands);
+		}
+
+		private void markProgress(Level level) {
+			Scene scene = world.getPlayerScene();
+			if (scene != world.getStorageScene())
+				level.scenesReached.set(scene.getIndex());
+			for (Obj obj : world.getPlayer().getState().getInventory())
+				level.objsObtained.set(obj.getIndex());
+		}
+
+		private String getName(Object entity) {
+			return (entity instanceof Obj ? ((Obj) entity).getName() : ((Chr) entity).getName());
+		}
+
+		/**
+		 * Hashes the state of the game as described in the class comment.
+		 */
+		private long hash() {
+			long h = mix(0, menu.hashCode());
+			Chr monster = engine.getMonster();
+			h = mix(h, monster == null ? -1 : monster.getIndex());
+			for (Scene scene : world.getOrderedScenes()) {
+				if (scene == world.getStorageScene())
+					continue;
+				Scene.State state = scene.getState();
+				h = mix(h, state.getWorldX());
+				h = mix(h, state.getWorldY());
+				for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++)
+					h = mix(h, state.isDirBlocked(dir) ? 1 : 0);
+			}
+			for (Chr chr : world.getOrderedChrs()) {
+				Chr.State state = chr.getState();
+				h = mix(h, sceneKey(state.getCurrentScene()));
+				h = mix(h, state.getCurrentPhysicalStrength());
+				h = mix(h, state.getCurrentPhysicalHp());
+				h = mix(h, state.getCurrentNaturalArmor());
+				h = mix(h, state.getCurrentPhysicalAccuracy());
+				h = mix(h, state.getCurrentSpiritualStrength());
+				h = mix(h, state.getCurrentSpiritualHp());
+				h = mix(h, state.getCurrentResistanceToMagic());
+				h = mix(h, state.getCurrentSpiritualAccuracy());
+				h = mix(h, state.getCurrentRunningSpeed());
+				h = mix(h, state.getRejectsOffers());
+				h = mix(h, state.getFollowsOpponent());
+				h = mix(h, state.getWeaponDamage1());
+				h = mix(h, state.getWeaponDamage2());
+				for (int i = 0; i < Chr.NUMBER_OF_ARMOR_TYPES; i++) {
+					Obj armor = state.getArmor(i);
+					h = mix(h, armor == null ? -1 : armor.getIndex());
+				}
+			}
+			for (Obj obj : world.getOrderedObjs()) {
+				Obj.State state = obj.getState();
+				Chr owner = state.getCurrentOwner();
+				h = mix(h, owner != null ? -2 - owner.getIndex() : sceneKey(state.getCurrentScene()));
+				h = mix(h, state.getAccuracy());
+				h = mix(h, state.getValue());
+				h = mix(h, state.getType());
+				h = mix(h, state.getDamage());
+				h = mix(h, state.getAttackType());
+				h = mix(h, state.getNumberOfUses());
+			}
+			Context context = world.getPlayerContext();
+			h = mix(h, context.getKills());
+			h = mix(h, context.getExperience());
+			h = mix(h, context.isFrozen() ? 1 : 0);
+			for (short value : context.getUserVariables())
+				h = mix(h, value);
+			return h;
+		}
+
+		private int sceneKey(Scene scene) {
+			if (scene == null)
+				return -1;
+			return (scene == world.getStorageScene() ? world.getOrderedScenes().size() : scene.getIndex());
+		}
+
+		public void setCommandsMenu(String format) {
+			menu = format;
+		}
+
+		public void redrawScene(SceneView view) {
+		}
+
+		public void clearOutput() {
+		}
+
+		public void gameOver() {
+			gameOver = true;
+		}
+	}
+
+	private static long mix(long h, int value) {
+		h = (h ^ value) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * What the workers found while exploring one part of a level.
+	 */
+	private static class Level {
+		public VisitedSet visited;
+		public List<Node> next = new ArrayList<Node>();
+		public long transitions;
+		public long gameOvers;
+		public long deadEnds;
+		public List<List<String>> deadEndPaths = new ArrayList<List<String>>();
+		public BitSet scenesReached = new BitSet();
+		public BitSet objsObtained = new BitSet();
+
+		public Level(VisitedSet visited) {
+			this.visited = visited;
+		}
+	}
+
+	public Report explore() throws InterruptedException {
+		final BlockingQueue<Worker> workers = new ArrayBlockingQueue<Worker>(threads);
+		for (int i = 0; i < threads; i++)
+			workers.add(new Worker());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			return explore(workers, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private Report explore(final BlockingQueue<Worker> workers, ExecutorService executor) throws InterruptedException {
+		Report report = new Report();
+		VisitedSet visited = new VisitedSet(maxStates);
+		BitSet scenesReached = new BitSet();
+		BitSet objsObtained = new BitSet();
+
+		Worker first = workers.take();
+		Node start = first.start();
+		Level startLevel = new Level(visited);
+		first.markProgress(startLevel);
+		scenesReached.or(startLevel.scenesReached);
+		objsObtained.or(startLevel.objsObtained);
+		workers.add(first);
+		visited.add(start.hash);
+
+		List<Node> frontier = Collections.singletonList(start);
+		int depth = 0;
+		while (!frontier.isEmpty()) {
+			if (depth == maxDepth) {
+				report.complete = false;
+				break;
+			}
+			List<Future<Level>> futures = new ArrayList<Future<Level>>();
+			int chunk = Math.max(1, (frontier.size() + threads * 4 - 1) / (threads * 4));
+			for (int i = 0; i < frontier.size(); i += chunk) {
+				final List<Node> part = frontier.subList(i, Math.min(i + chunk, frontier.size()));
+				final Level level = new Level(visited);
+				futures.add(executor.submit(new Callable<Level>() {
+					public Level call() throws InterruptedException {
+						Worker worker = workers.take();
+						try {
+							for (Node node : part) {
+								worker.explore(node, level);
+								node.state = null;
+							}
+						} finally {
+							workers.add(worker);
+						}
+						return level;
+					}
+				}));
+			}
+			List<Node> next = new ArrayList<Node>();
+			for (Future<Level> future : futures) {
+				Level level;
+				try {
+					level = future.get();
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+				next.addAll(level.next);
+				report.transitions += level.transitions;
+				report.gameOvers += level.gameOvers;
+				report.deadEnds += level.deadEnds;
+				for (List<String> path : level.deadEndPaths) {
+					if (report.deadEndPaths.size() < MAX_DEAD_ENDS_SHOWN)
+						report.deadEndPaths.add(path);
+				}
+				scenesReached.or(level.scenesReached);
+				objsObtained.or(level.objsObtained);
+			}
+			if (!next.isEmpty())
+				depth++;
+			frontier = next;
+		}
+
+		World world = definition.getWorld();
+		for (Scene scene : world.getOrderedScenes()) {
+			if (scene != world.getStorageScene() && !scenesReached.get(scene.getIndex()))
+				report.unreachableScenes.add(scene);
+		}
+		for (Obj obj : world.getOrderedObjs()) {
+			if (obj.getType() != Obj.IMMOBILE_OBJECT && !objsObtained.get(obj.getIndex()))
+				report.unobtainableObjs.add(obj);
+		}
+		report.states = visited.size();
+		report.depth = depth;
+		if (visited.isFull())
+			report.complete = false;
+		return report;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: ReachabilityExplorer world-file [max-states] [max-depth]");
+			System.exit(1);
+		}
+		ReachabilityExplorer explorer = new ReachabilityExplorer(WorldDefinition.load(new File(args[0])));
+		if (args.length > 1)
+			explorer.setMaxStates(Integer.parseInt(args[1]));
+		if (args.length > 2)
+			explorer.setMaxDepth(Integer.parseInt(args[2]));
+		long start = System.currentTimeMillis();
+		explorer.explore().print(System.out);
+		System.out.printf("Took %d ms\n", System.currentTimeMillis() - start);
+	}
+}
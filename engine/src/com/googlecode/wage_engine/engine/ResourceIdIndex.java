@@ -0,0 +1,63 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.Arrays;
+
+/**
+ * Finds where a scene, character or object is in its world's ordered list
+ * from its resource ID, which is what the save files refer to them by.
+ *
+ * Resource IDs are shorts and the ones in a world are usually close
+ * together, so the ordinals are kept in an array covering just the range
+ * of IDs added so far, which grows as IDs outside of it are added. If two
+ * entities have the same ID, the one added first is the one found.
+ */
+class ResourceIdIndex {
+	private static final int NONE = -1;
+
+	private int[] ordinals = new int[0];
+	private int min;
+	private int size;
+
+	/**
+	 * Adds the next entity in the list.
+	 */
+	public void add(short id) {
+		int ordinal = size++;
+		if (ordinals.length == 0) {
+			ordinals = new int[8];
+			Arrays.fill(ordinals, NONE);
+			min = id;
+		} else if (id < min || id >= min + ordinals.length) {
+			grow(id);
+		}
+		if (ordinals[id - min] == NONE)
+			ordinals[id - min] = ordinal;
+	}
+
+	private void grow(short id) {
+		int low = Math.min(min, id);
+		int high = Math.max(min + ordinals.length, id + 1);
+		// leave room to grow the same way again, without going past what a
+		// short can hold
+		int length = Math.min(Math.max(high - low, ordinals.length * 2), Short.MAX_VALUE - Short.MIN_VALUE + 1);
+		if (id < min)
+			low = high - length;
+		low = Math.min(Math.max(low, Short.MIN_VALUE), Short.MAX_VALUE + 1 - length);
+		int[] result = new int[length];
+		Arrays.fill(result, NONE);
+		System.arraycopy(ordinals, 0, result, min - low, ordinals.length);
+		ordinals = result;
+		min = low;
+	}
+
+	/**
+	 * @return the ordinal of the first entity added with the given ID, or -1
+	 *         if there is none
+	 */
+	public int get(short id) {
+		int i = id - min;
+		if (i < 0 || i >= ordinals.length)
+			return NONE;
+		return ordinals[i];
+	}
+}
@@ -1,7 +1,7 @@
 package com.googlecode.wage_engine.engine;
 
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 
@@ -15,14 +15,31 @@ public interface Scene {
 	public static final int RANDOM = 1;
 
 	public static class State {
+		// immobile objects go first, so that they're drawn under the others
+		private static final Comparator<Obj> OBJ_ORDER = new Comparator<Obj>() {
+			public int compare(Obj o1, Obj o2) {
+				boolean o1Immobile = (o1.getType() == Obj.IMMOBILE_OBJECT);
+				boolean o2Immobile = (o2.getType() == Obj.IMMOBILE_OBJECT);
+				if (o1Immobile == o2Immobile) {
+					return o1.getIndex() - o2.getIndex();
+				}
+				return (o1Immobile ? -1 : 1);
+			}
+		};
+		private static final Comparator<Chr> CHR_ORDER = new Comparator<Chr>() {
+			public int compare(Chr c1, Chr c2) {
+				return c1.getIndex() - c2.getIndex();
+			}
+		};
+
 		private int worldX;
 		private int worldY;
 		private boolean[] blocked = new boolean[4];
 		private int soundFrequency; // times a minute, max 3600
 		private int soundType;
 		private boolean visited;
-		private List<Obj> objs = new ArrayList<Obj>();
-		private List<Chr> chrs = new ArrayList<Chr>();
+		private List<Obj> objs = new SortedList<Obj>(OBJ_ORDER);
+		private List<Chr> chrs = new SortedList<Chr>(CHR_ORDER);
 
 		public State(Scene scene) {
 			worldX = scene.getWorldX();
@@ -84,7 +101,7 @@ public interface Scene {
 		}
 
 		public void setVisited(boolean visited) {
-			this.visited = true;
+			this.visited = visited;
 		}
 		
 		public boolean wasVisited() {
@@ -0,0 +1,93 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.List;
+
+/**
+ * Where the scenes of a world are on its map and where each of their exits
+ * leads, worked out once so that moving around doesn't mean looking through
+ * every scene. Scenes are looked up by their coordinates in an open
+ * addressed table; if two scenes are at the same place, the first one
+ * added to the world is the one found there.
+ *
+ * The grid is built from the scenes' positions and blocked directions as
+ * loaded, which don't change during a game, and is never changed after.
+ */
+class SceneGrid {
+	// how far a step in each direction goes along x and y
+	private static final int[] DX = new int[] { 0, 0, 1, -1 };
+	private static final int[] DY = new int[] { -1, 1, 0, 0 };
+
+	private final long[] keys;
+	private final Scene[] values;
+	private final int mask;
+	private final Scene[][] exits;
+	private final Scene storageScene;
+
+	public SceneGrid(List<Scene> scenes, Scene storageScene) {
+		this.storageScene = storageScene;
+		int capacity = Integer.highestOneBit(Math.max(scenes.size(), 2) * 2 - 1) << 1;
+		keys = new long[capacity];
+		values = new Scene[capacity];
+		mask = capacity - 1;
+		for (Scene scene : scenes) {
+			if (scene != storageScene)
+				put(scene);
+		}
+		exits = new Scene[scenes.size()][];
+		for (Scene scene : scenes) {
+			if (scene == storageScene)
+				continue;
+			Scene[] sceneExits = new Scene[4];
+			for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++) {
+				if (!scene.isDirBlocked(dir))
+					sceneExits[dir] = getSceneAt(scene.getWorldX() + DX[dir], scene.getWorldY() + DY[dir]);
+			}
+			exits[scene.getIndex()] = sceneExits;
+		}
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void put(Scene scene) {
+		long key = key(scene.getWorldX(), scene.getWorldY());
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key)
+				return;
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = scene;
+	}
+
+	/**
+	 * @return the scene at the given place, or null if there is none
+	 */
+	public Scene getSceneAt(int x, int y) {
+		long key = key(x, y);
+		int i = slot(key);
+		while (values[i] != null) {
+			if (keys[i] == key)
+				return values[i];
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the scene reached by going in the given direction, or null if
+	 *         the way is blocked or leads nowhere
+	 */
+	public Scene getExit(Scene scene, int dir) {
+		if (scene == null || scene == storageScene)
+			return null;
+		return exits[scene.getIndex()][dir];
+	}
+}
@@ -3,7 +3,7 @@ package com.googlecode.wage_engine.engine;
 import java.awt.Rectangle;
 
 
-public class SceneImpl implements Scene {
+public class SceneImpl implements Scene, Cloneable {
 	private int index;
 	private String name;
 	private short resourceID;
@@ -33,6 +33,20 @@ public class SceneImpl implements Scene {
 	public void setState(State state) {
 		this.state = state;
 	}
+
+	/**
+	 * @return a scene with the same design, script and settings as this one,
+	 *         but with a state of its own
+	 */
+	SceneImpl copy() {
+		try {
+			SceneImpl copy = (SceneImpl) clone();
+			copy.state = null;
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
 	
 	public int getSoundFrequency() {
 		return soundFrequency;
@@ -0,0 +1,61 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What is in a scene at the end of a batch of moves, as published by
+ * World.getSceneView(). A view never changes once made, so it can be read
+ * from any thread without locking while the engine goes on moving things
+ * around; the world replaces it with a new one after each batch of moves
+ * that changed the scene's contents.
+ */
+public class SceneView {
+	private static final Obj[] NO_OBJS = new Obj[0];
+	private static final Chr[] NO_CHRS = new Chr[0];
+
+	private Scene scene;
+	private List<Obj> objs;
+	private List<Chr> chrs;
+
+	SceneView(Scene scene) {
+		this(scene, NO_OBJS, NO_CHRS);
+	}
+
+	private SceneView(Scene scene, Obj[] objs, Chr[] chrs) {
+		this.scene = scene;
+		this.objs = Collections.unmodifiableList(Arrays.asList(objs));
+		this.chrs = Collections.unmodifiableList(Arrays.asList(chrs));
+	}
+
+	/**
+	 * Must be called on the engine's thread, or with the world locked.
+	 */
+	static SceneView of(Scene scene) {
+		List<Obj> objs = scene.getState().getObjs();
+		List<Chr> chrs = scene.getState().getChrs();
+		return new SceneView(scene,
+			objs.isEmpty() ? NO_OBJS : objs.toArray(new Obj[objs.size()]),
+			chrs.isEmpty() ? NO_CHRS : chrs.toArray(new Chr[chrs.size()]));
+	}
+
+	public Scene getScene() {
+		return scene;
+	}
+
+	/**
+	 * @return the objects in the scene, in drawing order
+	 */
+	public List<Obj> getObjs() {
+		return objs;
+	}
+
+	/**
+	 * @return the characters in the scene, including the player's if they
+	 *         are there
+	 */
+	public List<Chr> getChrs() {
+		return chrs;
+	}
+}
@@ -1,24 +1,63 @@
 package com.googlecode.wage_engine.engine;
 
+import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Script {
 	private byte[] data;
+	private Instruction[] code;
 
-	private Callbacks callbacks;
-	private World world;
-	private int loopCount;
-	private String inputText;
-	private Object inputClick;
-	private int index;
-	private Object evalResult;
-	private boolean handled;
+	private int index; // read position while compiling
+	// shared by every session running the script, which can add to it
+	private List<ScriptDiagnostic> diagnostics = new CopyOnWriteArrayList<ScriptDiagnostic>();
+
+	// Scripts are interpreted until they have run this many times, after
+	// which the common kinds of condition are replaced by specialised tests
+	// and the statements are compiled to a hidden class, unless the profiler
+	// needs them interpreted. The count is shared by every session running
+	// the script, so it is atomic, and only the run that reaches the limit
+	// does the specialising and compiling.
+	private static final int SPECIALISE_AFTER = 20;
+	private volatile ConditionTest[][] conditionTests;
+	private volatile boolean specialised;
+	private volatile CompiledStatements compiled;
+	private final AtomicInteger runCount = new AtomicInteger();
+
+	// Words the built-in commands look for in the input.
+	private static final String[] BUILT_IN_WORDS = {
+		"north", "east", "south", "west", "look", "inven", "status", "rest", "accept"
+	};
+	private static final int WORD_NORTH = 0;
+	private static final int WORD_EAST = 1;
+	private static final int WORD_SOUTH = 2;
+	private static final int WORD_WEST = 3;
+	private static final int WORD_LOOK = 4;
+	private static final int WORD_INVEN = 5;
+	private static final int WORD_STATUS = 6;
+	private static final int WORD_REST = 7;
+	private static final int WORD_ACCEPT = 8;
+	private int[] builtInPatterns;
+	private World boundWorld;
 
 	public Script(byte[] data) {
 		this.data = data;
+		this.code = compile();
+		this.conditionTests = interpretConditions(code);
+		verify();
 	}
-	
+
+	/**
+	 * @return the problems found in the script when it was loaded, followed
+	 *         by any it has run into since, each reported once
+	 */
+	public List<ScriptDiagnostic> getDiagnostics() {
+		return diagnostics;
+	}
+
 	private static class Operand {
 		public static final int OBJ = 0;
 		public static final int CHR = 1;
@@ -27,105 +66,555 @@ public class Script {
 		public static final int STRING = 4;
 		public static final int CLICK_INPUT = 5;
 		public static final int TEXT_INPUT = 6;
-		
+		public static final int TYPE_COUNT = 7;
+
 		public Object value;
 		public int type;
-		
+		// For literals, the scene, object or character the name refers to,
+		// indexed by type. Filled in by bind().
+		public Operand[] bindings;
+		// For literals compared against TEXT$, the index of the literal in the
+		// world's TextMatcher.
+		public int pattern = -1;
+
 		public Operand(Object value, int type) {
 			this.value = value;
 			this.type = type;
 		}
+
+		public static String typeName(int type) {
+			switch (type) {
+				case OBJ: return "an object";
+				case CHR: return "a character";
+				case SCENE: return "a scene";
+				case NUMBER: return "a number";
+				case STRING: return "a string";
+				case CLICK_INPUT: return "CLICK$";
+				case TEXT_INPUT: return "TEXT$";
+			}
+			return "an unknown operand";
+		}
 	}
 
-	private Operand readOperand() {
-		Operand result = null;
-		if (data[index] == (byte) 0xA0) { // TEXT$
-			result = new Operand(inputText, Operand.TEXT_INPUT);
-		} else if (data[index] == (byte) 0xA1) {
-			result = new Operand(inputClick, Operand.CLICK_INPUT);
-		} else if (data[index] == (byte) 0xC0) { // STORAGE@
-			result = new Operand(world.getStorageScene(), Operand.SCENE);
-		} else if (data[index] == (byte) 0xC1) { // SCENE@
-			result = new Operand(world.getPlayerScene(), Operand.SCENE);
-		} else if (data[index] == (byte) 0xC2) { // PLAYER@
-			result = new Operand(world.getPlayer(), Operand.CHR);
-		} else if (data[index] == (byte) 0xC3) { // MONSTER@
-			result = new Operand(callbacks.getMonster(), Operand.CHR);
-		} else if (data[index] == (byte) 0xC4) { // RANDOMSCN@
-			Scene[] scenes = world.getScenes().values().toArray(new Scene[0]);
-			result = new Operand(scenes[(int) (Math.random()*scenes.length)], Operand.SCENE);
-		} else if (data[index] == (byte) 0xC5) { // RANDOMCHR@
-			Chr[] chrs = world.getChrs().values().toArray(new Chr[0]);
-			result = new Operand(chrs[(int) (Math.random()*chrs.length)], Operand.CHR);
-		} else if (data[index] == (byte) 0xC6) { // RANDOMOBJ@
-			Obj[] objs = world.getObjs().values().toArray(new Obj[0]);
-			result = new Operand(objs[(int) (Math.random()*objs.length)], Operand.OBJ);
-		} else if (data[index] == (byte) 0xB0) { // VISITS#
-			result = new Operand(world.getPlayerContext().getVisits(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xB1) {
-			// RANDOM# for Star Trek, but VISITS# for some other games?
-			result = new Operand(1 + (int) (Math.random()*100), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xB5) { // RANDOM#
-			// A random number between 1 and 100.
-			result = new Operand(1 + (int) (Math.random()*100), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xB2) { // LOOP#
-			result = new Operand(loopCount, Operand.NUMBER);
-		} else if (data[index] == (byte) 0xB3) { // VICTORY#
-			result = new Operand(world.getPlayerContext().getKills(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xB4) { // BADCOPY#
-			result = new Operand(0, Operand.NUMBER); // ????
-		} else if (data[index] == (byte) 0xFF) {
-			// user variable
+	private static class Operator {
+		public static final int UNKNOWN = 0;
+		public static final int EQUALS = 1; // =
+		public static final int LESS = 2; // <
+		public static final int GREATER = 3; // >
+		public static final int PLUS = 4; // +
+		public static final int MINUS = 5; // -
+		public static final int TIMES = 6; // *
+		public static final int DIVIDE = 7; // /
+		public static final int EXACTLY_EQUALS = 8; // ==
+		public static final int NOT_EXACTLY_EQUALS = 9; // >>
+	}
+
+	// A decoded operand. Built-in variables keep their opcode as the kind, so
+	// they are looked up when the script runs; literals are parsed only once.
+	private static class Term {
+		public static final int LITERAL = -1;
+		public static final int BAD_NUMBER = -2;
+		public static final int USER_VARIABLE = 0xFF;
+
+		public int kind;
+		public int variable;
+		public Operand literal;
+
+		public Term(int kind) {
+			this.kind = kind;
+		}
+	}
+
+	private static class Condition {
+		public static final int AND = 1;
+		public static final int OR = 2;
+		public static final int THEN = 3;
+
+		public Term lhs;
+		public int operator;
+		public byte operatorCode;
+		public Term rhs;
+		public int connector;
+	}
+
+	private static class Instruction {
+		public static final int IF = 0x80;
+		public static final int EXIT = 0x87;
+		public static final int END = 0x88;
+		public static final int MOVE = 0x89;
+		public static final int PRINT = 0x8B;
+		public static final int SOUND = 0x8C;
+		public static final int LET = 0x8E;
+		public static final int MENU = 0x95;
+		public static final int INVALID = -1; // unknown opcode
+		public static final int TRUNCATED = -2; // runs past the end of the script
+
+		public int opcode;
+		public int offset;
+		public Condition[] conditions;
+		public int skipTo; // IF: instruction to continue from when the condition fails
+		public Term[] operands;
+		public int[] operators;
+		public String text;
+
+		public Instruction(int opcode, int offset) {
+			this.opcode = opcode;
+			this.offset = offset;
+		}
+
+		public static boolean isKnown(int opcode) {
+			return opcode == IF || opcode == EXIT || opcode == END || opcode == MOVE ||
+				opcode == PRINT || opcode == SOUND || opcode == LET || opcode == MENU;
+		}
+	}
+
+	private Instruction[] compile() {
+		List<Instruction> instructions = new ArrayList<Instruction>();
+		List<Integer> blockOffsets = new ArrayList<Integer>();
+		index = 12;
+		try {
+			while (index < data.length) {
+				Instruction insn = new Instruction(data[index] & 0xFF, index);
+				instructions.add(insn);
+				if (insn.opcode == Instruction.IF) {
+					index++;
+					compileIf(insn);
+					blockOffsets.add(index);
+				} else if (insn.opcode == Instruction.EXIT || insn.opcode == Instruction.END) {
+					index++;
+				} else if (insn.opcode == Instruction.MOVE) {
+					index++;
+					Term what = compileOperand();
+					expect(insn, (byte) 0x8A, "TO");
+					Term to = compileOperand();
+					expect(insn, (byte) 0xFD, "end of statement");
+					insn.operands = new Term[] { what, to };
+				} else if (insn.opcode == Instruction.PRINT || insn.opcode == Instruction.SOUND) {
+					index++;
+					insn.operands = new Term[] { compileOperand() };
+					expect(insn, (byte) 0xFD, "end of statement");
+				} else if (insn.opcode == Instruction.LET) {
+					index++;
+					compileLet(insn);
+				} else if (insn.opcode == Instruction.MENU) {
+					index++;
+					insn.text = readStringOperand().value.toString(); // allows empty menu
+					expect(insn, (byte) 0xFD, "end of statement");
+				} else {
+					// Skip to the next statement, as skipBlock() does, so that
+					// the ones after this that an IF can jump to still get
+					// compiled; verify() reports the unknown opcode.
+					insn.opcode = Instruction.INVALID;
+					index++;
+					while (index < data.length && !Instruction.isKnown(data[index] & 0xFF))
+						index++;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			instructions.get(instructions.size() - 1).opcode = Instruction.TRUNCATED;
+		}
+
+		Instruction[] result = instructions.toArray(new Instruction[instructions.size()]);
+		int block = 0;
+		for (Instruction insn : result) {
+			if (insn.opcode == Instruction.IF) {
+				index = blockOffsets.get(block++);
+				try {
+					skipBlock();
+					insn.skipTo = 0;
+					while (insn.skipTo < result.length && result[insn.skipTo].offset < index)
+						insn.skipTo++;
+				} catch (ArrayIndexOutOfBoundsException e) {
+					insn.skipTo = -1;
+				}
+			}
+		}
+		index = 0;
+		return result;
+	}
+
+	// Skips over the byte that should end or separate parts of a statement.
+	private void expect(Instruction insn, byte expected, String what) {
+		if (data[index] != expected) {
+			report(ScriptDiagnostic.ERROR, insn.offset,
+				String.format("Expected %s but found %02x", what, data[index] & 0xFF));
+		}
+		index++;
+	}
+
+	private void report(int severity, int offset, String message) {
+		diagnostics.add(new ScriptDiagnostic(severity, offset, lineAt(offset), message));
+	}
+
+	// Reports a problem found while running the script, unless it has been
+	// reported before.
+	private void reportAtRunTime(int severity, int offset, String message) {
+		synchronized (diagnostics) {
+			for (ScriptDiagnostic diagnostic : diagnostics) {
+				if (diagnostic.getOffset() == offset && diagnostic.getMessage().equals(message))
+					return;
+			}
+			report(severity, offset, message);
+		}
+	}
+
+	// Checks the compiled script for anything the interpreter can't run, so
+	// it can be reported once when the world is loaded rather than every
+	// time the script runs. Statements with such errors are turned into
+	// INVALID ones, which stop the script when it gets to them.
+	private void verify() {
+		int nesting = 0;
+		for (Instruction insn : code) {
+			boolean ok = true;
+			switch (insn.opcode) {
+				case Instruction.INVALID:
+					report(ScriptDiagnostic.ERROR, insn.offset,
+						String.format("Unknown opcode %02x", data[insn.offset] & 0xFF));
+					break;
+				case Instruction.TRUNCATED:
+					report(ScriptDiagnostic.ERROR, insn.offset, "Statement runs past the end of the script");
+					break;
+				case Instruction.IF:
+					nesting++;
+					if (insn.skipTo < 0)
+						report(ScriptDiagnostic.ERROR, insn.offset, "Malformed IF block");
+					for (Condition cond : insn.conditions) {
+						ok &= verifyOperand(insn, cond.lhs);
+						ok &= verifyOperand(insn, cond.rhs);
+						if (cond.operator == Operator.UNKNOWN) {
+							report(ScriptDiagnostic.ERROR, insn.offset,
+								String.format("Unknown operator %02x", cond.operatorCode & 0xFF));
+							ok = false;
+						}
+					}
+					break;
+				case Instruction.END:
+					if (nesting == 0)
+						report(ScriptDiagnostic.WARNING, insn.offset, "END without IF");
+					else
+						nesting--;
+					break;
+				case Instruction.EXIT:
+					if (nesting > 0)
+						nesting--;
+					break;
+				case Instruction.LET:
+					ok &= verifyAssignable(insn, insn.operands[0]);
+					for (int i = 1; i < insn.operands.length; i++)
+						ok &= verifyOperand(insn, insn.operands[i]);
+					for (int op : insn.operators) {
+						if (op != Operator.PLUS && op != Operator.MINUS && op != Operator.TIMES && op != Operator.DIVIDE) {
+							report(ScriptDiagnostic.ERROR, insn.offset, "Unknown operator in LET");
+							ok = false;
+						}
+					}
+					break;
+				default:
+					if (insn.operands != null) {
+						for (Term term : insn.operands)
+							ok &= verifyOperand(insn, term);
+					}
+			}
+			if (!ok)
+				insn.opcode = Instruction.INVALID;
+		}
+		if (nesting > 0)
+			report(ScriptDiagnostic.WARNING, data.length, nesting + " IF block(s) without END");
+	}
+
+	private boolean verifyOperand(Instruction insn, Term term) {
+		int kind = term.kind;
+		if (kind == Term.BAD_NUMBER) {
+			report(ScriptDiagnostic.ERROR, insn.offset, "Number out of range: " + term.literal.value);
+			return false;
+		} else if (kind != Term.LITERAL && kind != Term.USER_VARIABLE && kind != 0xA0 && kind != 0xA1 &&
+			!(kind >= 0xB0 && kind <= 0xB5) && !(kind >= 0xC0 && kind <= 0xC6) &&
+			!(kind >= 0xD0 && kind <= 0xD8) && !(kind >= 0xE0 && kind <= 0xE8))
+		{
+			report(ScriptDiagnostic.ERROR, insn.offset, String.format("Unknown operand %02x", kind));
+			return false;
+		}
+		return true;
+	}
+
+	private boolean verifyAssignable(Instruction insn, Term term) {
+		int kind = term.kind;
+		if (kind != Term.USER_VARIABLE && !(kind >= 0xD0 && kind <= 0xD8) && !(kind >= 0xE0 && kind <= 0xE8)) {
+			report(ScriptDiagnostic.ERROR, insn.offset, "LET can't assign to this operand");
+			return false;
+		}
+		return true;
+	}
+
+	private void compileIf(Instruction insn) {
+		List<Condition> conditions = new ArrayList<Condition>();
+		Condition cond;
+		do {
+			cond = new Condition();
+			cond.lhs = compileOperand();
+			cond.operatorCode = data[index];
+			cond.operator = compileOperator();
+			cond.rhs = compileOperand();
+			if (data[index] == (byte) 0x84) {
+				cond.connector = Condition.AND;
+			} else if (data[index] == (byte) 0x85) {
+				cond.connector = Condition.OR;
+			} else if (data[index] == (byte) 0xFE) {
+				cond.connector = Condition.THEN;
+			} else {
+				report(ScriptDiagnostic.ERROR, insn.offset,
+					String.format("Expected AND, OR or THEN but found %02x", data[index] & 0xFF));
+			}
+			conditions.add(cond);
+			index++;
+		} while (cond.connector != Condition.THEN);
+		insn.conditions = conditions.toArray(new Condition[conditions.size()]);
+	}
+
+	private void compileLet(Instruction insn) {
+		List<Term> operands = new ArrayList<Term>();
+		List<Integer> operators = new ArrayList<Integer>();
+		operands.add(compileOperand()); // LHS
+		expect(insn, (byte) 0x81, "=");
+		do {
+			operands.add(compileOperand());
+			if (data[index] == (byte) 0xFD)
+				break;
+			operators.add(compileOperator());
+		} while (true);
+		index++;
+		insn.operands = operands.toArray(new Term[operands.size()]);
+		insn.operators = new int[operators.size()];
+		for (int i = 0; i < insn.operators.length; i++)
+			insn.operators[i] = operators.get(i);
+	}
+
+	// Resolves the names used as literals to the world's scenes, objects and
+	// characters once, so comparisons don't have to look them up by name.
+	// Names used where an entity is expected that don't refer to anything are
+	// added to unresolved.
+	// Literals compared against TEXT$ are added to matcher.
+	public void bind(World world, TextMatcher matcher, List<String> unresolved) {
+		boundWorld = world;
+		for (Instruction insn : code) {
+			if (insn.conditions != null) {
+				for (Condition cond : insn.conditions) {
+					bindTerm(world, cond.lhs);
+					bindTerm(world, cond.rhs);
+					if (cond.operator == Operator.EQUALS || cond.operator == Operator.LESS ||
+						cond.operator == Operator.GREATER)
+					{
+						if (cond.rhs.kind == 0xA0 && cond.lhs.kind == Term.LITERAL)
+							cond.lhs.literal.pattern = matcher.add(cond.lhs.literal.value.toString());
+						if (cond.lhs.kind == 0xA0 && cond.rhs.kind == Term.LITERAL)
+							cond.rhs.literal.pattern = matcher.add(cond.rhs.literal.value.toString());
+						if (isEntity(cond.rhs) || isName(cond.rhs))
+							checkBinding(cond.lhs, unresolved);
+						if (isEntity(cond.lhs) || isName(cond.lhs))
+							checkBinding(cond.rhs, unresolved);
+					}
+				}
+			}
+			if (insn.operands != null) {
+				for (Term term : insn.operands) {
+					bindTerm(world, term);
+					if (insn.opcode == Instruction.MOVE)
+						checkBinding(term, unresolved);
+				}
+			}
+		}
+		builtInPatterns = new int[BUILT_IN_WORDS.length];
+		for (int i = 0; i < BUILT_IN_WORDS.length; i++)
+			builtInPatterns[i] = matcher.add(BUILT_IN_WORDS[i]);
+	}
+
+	private void bindTerm(World world, Term term) {
+		if (term.kind != Term.LITERAL)
+			return;
+		String key = term.literal.value.toString().toLowerCase();
+		Operand[] bindings = new Operand[Operand.TYPE_COUNT];
+		Scene scene = world.getScenes().get(key);
+		if (scene != null)
+			bindings[Operand.SCENE] = new Operand(scene, Operand.SCENE);
+		Obj obj = world.getObjs().get(key);
+		if (obj != null)
+			bindings[Operand.OBJ] = new Operand(obj, Operand.OBJ);
+		Chr chr = world.getChrs().get(key);
+		if (chr != null)
+			bindings[Operand.CHR] = new Operand(chr, Operand.CHR);
+		term.literal.bindings = bindings;
+	}
+
+	private void checkBinding(Term term, List<String> unresolved) {
+		if (!isName(term))
+			return;
+		Operand[] bindings = term.literal.bindings;
+		if (bindings[Operand.SCENE] == null && bindings[Operand.OBJ] == null && bindings[Operand.CHR] == null) {
+			String name = term.literal.value.toString();
+			if (!unresolved.contains(name))
+				unresolved.add(name);
+		}
+	}
+
+	private static boolean isName(Term term) {
+		return term.kind == Term.LITERAL && term.literal.type == Operand.STRING;
+	}
+
+	private static boolean isEntity(Term term) {
+		return term.kind >= 0xC0 && term.kind <= 0xC6;
+	}
+
+	private Term compileOperand() {
+		Term result;
+		int kind = data[index] & 0xFF;
+		if (kind == Term.USER_VARIABLE) {
+			result = new Term(kind);
 			int value = data[++index];
 			if (value < 0) value += 256;
 			value -= 1;
-			result = new Operand(world.getPlayerContext().getUserVariable(value), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD0) {
-			result = new Operand(world.getPlayer().getState().getBasePhysicalStrength(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD1) {
-			result = new Operand(world.getPlayer().getState().getBasePhysicalHp(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD2) {
-			result = new Operand(world.getPlayer().getState().getBaseNaturalArmor(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD3) {
-			result = new Operand(world.getPlayer().getState().getBasePhysicalAccuracy(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD4) {
-			result = new Operand(world.getPlayer().getState().getBaseSpiritualStrength(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD5) {
-			result = new Operand(world.getPlayer().getState().getBaseSpiritualHp(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD6) {
-			result = new Operand(world.getPlayer().getState().getBaseResistanceToMagic(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD7) {
-			result = new Operand(world.getPlayer().getState().getBaseSpiritualAccuracy(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xD8) {
-			result = new Operand(world.getPlayer().getState().getBaseRunningSpeed(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE0) {
-			result = new Operand(world.getPlayer().getState().getCurrentPhysicalStrength(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE1) {
-			result = new Operand(world.getPlayer().getState().getCurrentPhysicalHp(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE2) {
-			result = new Operand(world.getPlayer().getState().getCurrentNaturalArmor(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE3) {
-			result = new Operand(world.getPlayer().getState().getCurrentPhysicalAccuracy(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE4) {
-			result = new Operand(world.getPlayer().getState().getCurrentSpiritualStrength(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE5) {
-			result = new Operand(world.getPlayer().getState().getCurrentSpiritualHp(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE6) {
-			result = new Operand(world.getPlayer().getState().getCurrentResistanceToMagic(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE7) {
-			result = new Operand(world.getPlayer().getState().getCurrentSpiritualAccuracy(), Operand.NUMBER);
-		} else if (data[index] == (byte) 0xE8) {
-			result = new Operand(world.getPlayer().getState().getCurrentRunningSpeed(), Operand.NUMBER);
-		} else if (Character.isDefined(data[index])) {
-			result = readStringOperand();
+			result.variable = value;
+		} else if (kind < 0x80 && Character.isDefined(data[index])) {
+			int start = index;
+			try {
+				result = new Term(Term.LITERAL);
+				result.literal = readStringOperand();
+			} catch (NumberFormatException e) {
+				// Fails every time it is read, just like it did when parsed at run time.
+				result = new Term(Term.BAD_NUMBER);
+				result.literal = new Operand(new String(data, start, index - start), Operand.STRING);
+			}
 			index--;
 		} else {
-			System.err.println("Unknown operand " + getCurrentLine());
+			// Unknown operands are reported by verify().
+			result = new Term(kind);
 		}
 		index++;
 		return result;
 	}
-	
+
+	private Operand readOperand(ExecutionContext context, Term term) {
+		Operand result = null;
+		switch (term.kind) {
+			case Term.LITERAL:
+				result = term.literal;
+				break;
+			case 0xA0: // TEXT$
+				result = new Operand(context.inputText, Operand.TEXT_INPUT);
+				break;
+			case 0xA1:
+				result = new Operand(context.inputClick, Operand.CLICK_INPUT);
+				break;
+			case 0xC0: // STORAGE@
+				result = new Operand(context.world.getStorageScene(), Operand.SCENE);
+				break;
+			case 0xC1: // SCENE@
+				result = new Operand(context.world.getPlayerScene(), Operand.SCENE);
+				break;
+			case 0xC2: // PLAYER@
+				result = new Operand(context.world.getPlayer(), Operand.CHR);
+				break;
+			case 0xC3: // MONSTER@
+				result = new Operand(context.callbacks.getMonster(), Operand.CHR);
+				break;
+			case 0xC4: { // RANDOMSCN@
+				Scene[] scenes = context.world.getSceneArray();
+				result = new Operand(scenes[(int) (context.random.nextDouble()*scenes.length)], Operand.SCENE);
+				break;
+			}
+			case 0xC5: { // RANDOMCHR@
+				Chr[] chrs = context.world.getChrArray();
+				result = new Operand(chrs[(int) (context.random.nextDouble()*chrs.length)], Operand.CHR);
+				break;
+			}
+			case 0xC6: { // RANDOMOBJ@
+				Obj[] objs = context.world.getObjArray();
+				result = new Operand(objs[(int) (context.random.nextDouble()*objs.length)], Operand.OBJ);
+				break;
+			}
+			case 0xB0: // VISITS#
+				result = new Operand(context.world.getPlayerContext().getVisits(), Operand.NUMBER);
+				break;
+			case 0xB1:
+				// RANDOM# for Star Trek, but VISITS# for some other games?
+				result = new Operand(1 + (int) (context.random.nextDouble()*100), Operand.NUMBER);
+				break;
+			case 0xB5: // RANDOM#
+				// A random number between 1 and 100.
+				result = new Operand(1 + (int) (context.random.nextDouble()*100), Operand.NUMBER);
+				break;
+			case 0xB2: // LOOP#
+				result = new Operand(context.loopCount, Operand.NUMBER);
+				break;
+			case 0xB3: // VICTORY#
+				result = new Operand(context.world.getPlayerContext().getKills(), Operand.NUMBER);
+				break;
+			case 0xB4: // BADCOPY#
+				result = new Operand(0, Operand.NUMBER); // ????
+				break;
+			case Term.USER_VARIABLE:
+				result = new Operand(context.world.getPlayerContext().getUserVariable(term.variable), Operand.NUMBER);
+				break;
+			case 0xD0:
+				result = new Operand(context.world.getPlayer().getState().getBasePhysicalStrength(), Operand.NUMBER);
+				break;
+			case 0xD1:
+				result = new Operand(context.world.getPlayer().getState().getBasePhysicalHp(), Operand.NUMBER);
+				break;
+			case 0xD2:
+				result = new Operand(context.world.getPlayer().getState().getBaseNaturalArmor(), Operand.NUMBER);
+				break;
+			case 0xD3:
+				result = new Operand(context.world.getPlayer().getState().getBasePhysicalAccuracy(), Operand.NUMBER);
+				break;
+			case 0xD4:
+				result = new Operand(context.world.getPlayer().getState().getBaseSpiritualStrength(), Operand.NUMBER);
+				break;
+			case 0xD5:
+				result = new Operand(context.world.getPlayer().getState().getBaseSpiritualHp(), Operand.NUMBER);
+				break;
+			case 0xD6:
+				result = new Operand(context.world.getPlayer().getState().getBaseResistanceToMagic(), Operand.NUMBER);
+				break;
+			case 0xD7:
+				result = new Operand(context.world.getPlayer().getState().getBaseSpiritualAccuracy(), Operand.NUMBER);
+				break;
+			case 0xD8:
+				result = new Operand(context.world.getPlayer().getState().getBaseRunningSpeed(), Operand.NUMBER);
+				break;
+			case 0xE0:
+				result = new Operand(context.world.getPlayer().getState().getCurrentPhysicalStrength(), Operand.NUMBER);
+				break;
+			case 0xE1:
+				result = new Operand(context.world.getPlayer().getState().getCurrentPhysicalHp(), Operand.NUMBER);
+				break;
+			case 0xE2:
+				result = new Operand(context.world.getPlayer().getState().getCurrentNaturalArmor(), Operand.NUMBER);
+				break;
+			case 0xE3:
+				result = new Operand(context.world.getPlayer().getState().getCurrentPhysicalAccuracy(), Operand.NUMBER);
+				break;
+			case 0xE4:
+				result = new Operand(context.world.getPlayer().getState().getCurrentSpiritualStrength(), Operand.NUMBER);
+				break;
+			case 0xE5:
+				result = new Operand(context.world.getPlayer().getState().getCurrentSpiritualHp(), Operand.NUMBER);
+				break;
+			case 0xE6:
+				result = new Operand(context.world.getPlayer().getState().getCurrentResistanceToMagic(), Operand.NUMBER);
+				break;
+			case 0xE7:
+				result = new Operand(context.world.getPlayer().getState().getCurrentSpiritualAccuracy(), Operand.NUMBER);
+				break;
+			case 0xE8:
+				result = new Operand(context.world.getPlayer().getState().getCurrentRunningSpeed(), Operand.NUMBER);
+				break;
+			default:
+				// unknown operands and bad numbers are rejected by verify()
+				throw new IllegalStateException(String.format("Unknown operand %02x", term.kind));
+		}
+		return result;
+	}
+
 	private Operand readStringOperand() {
 		Operand result;
 		StringBuilder sb = new StringBuilder();
@@ -147,28 +636,26 @@ public class Script {
 		return result;
 	}
 
-	private String readOperator() {
-		String op = null;
+	private int compileOperator() {
+		int op = Operator.UNKNOWN;
 		if (data[index] == (byte) 0x81) {
-			op = "=";
+			op = Operator.EQUALS;
 		} else if (data[index] == (byte) 0x82) {
-			op = "<";
+			op = Operator.LESS;
 		} else if (data[index] == (byte) 0x83) {
-			op = ">";
+			op = Operator.GREATER;
 		} else if (data[index] == (byte) 0x8F) {
-			op = "+";
+			op = Operator.PLUS;
 		} else if (data[index] == (byte) 0x90) {
-			op = "-";
+			op = Operator.MINUS;
 		} else if (data[index] == (byte) 0x91) {
-			op = "*";
+			op = Operator.TIMES;
 		} else if (data[index] == (byte) 0x92) {
-			op = "/";
+			op = Operator.DIVIDE;
 		} else if (data[index] == (byte) 0x93) {
-			op = "==";
+			op = Operator.EXACTLY_EQUALS;
 		} else if (data[index] == (byte) 0x94) {
-			op = ">>";
-		} else {
-			System.err.printf("UNKNOWN OP %x\n", data[index]);
+			op = Operator.NOT_EXACTLY_EQUALS;
 		}
 		index++;
 		return op;
@@ -199,21 +686,21 @@ public class Script {
 		return result;
 	}
 
-	private Boolean evalClickCondition(Operand lhs, String op, Operand rhs) {
+	private Boolean evalClickCondition(ExecutionContext context, Operand lhs, int op, Operand rhs) {
 		// TODO: check if >> can be used for click inputs
-		String[] validOps = new String[] { "=", "==", "<", ">"};
-		if (java.util.Arrays.asList(validOps).indexOf(op) == -1)
+		if (op != Operator.EQUALS && op != Operator.EXACTLY_EQUALS &&
+			op != Operator.LESS && op != Operator.GREATER)
 			return null;
-		boolean partialMatch = !op.equals("==");
+		boolean partialMatch = (op != Operator.EXACTLY_EQUALS);
 		Boolean result;
 		if (lhs.type == Operand.CLICK_INPUT) {
 			result = evalClickEquality(lhs, rhs, partialMatch);
 		} else {
 			result = evalClickEquality(rhs, lhs, partialMatch);
 		}
-		if (op.equals("<") || op.equals(">")) {
+		if (op == Operator.LESS || op == Operator.GREATER) {
 			// CLICK$<FOO only matches if there was a click
-			if (inputClick == null) {
+			if (context.inputClick == null) {
 				result = false;
 			} else {
 				result = !result;
@@ -221,256 +708,45 @@ public class Script {
 		}
 		return result;
 	}
-	
+
 	// returns Boolean so that NPE can be detected (on invalid op)
-	private Boolean eval(Operand lhs, String op, Operand rhs) {
+	private Boolean eval(ExecutionContext context, Operand lhs, int op, Operand rhs) {
 		Boolean result = null;
 		if (lhs.type == Operand.CLICK_INPUT || rhs.type == Operand.CLICK_INPUT) {
-			result = evalClickCondition(lhs, op, rhs);
-		} else if (op.equals("=")) {
-			List<PairEvaluator> handlers = new ArrayList<PairEvaluator>();
-			handlers.add(new PairEvaluator(Operand.NUMBER, Operand.NUMBER) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					short left = ((Number) o1.value).shortValue();
-					short right = ((Number) o2.value).shortValue();
-					evalResult = (left == right);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.OBJ, Operand.SCENE) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					evalResult = ((Scene) o2.value).getState().getObjs().contains((Obj) o1.value);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.CHR, Operand.SCENE) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					evalResult = ((Scene) o2.value).getState().getChrs().contains((Chr) o1.value);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.OBJ, Operand.CHR) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					evalResult = ((Chr) o2.value).getState().getInventory().contains((Obj) o1.value);
-				}
-				});
-			handlers.add(new PairEvaluator(Operand.CHR, Operand.CHR) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					evalResult = (o1.value == o2.value);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.SCENE, Operand.SCENE) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					evalResult = (o1.value == o2.value);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.STRING, Operand.TEXT_INPUT) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (inputText != null) {
-						evalResult = inputText.toLowerCase().contains(((String) o1.value).toLowerCase());
-					} else {
-						evalResult = false;
-					}
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.TEXT_INPUT, Operand.STRING) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (inputText != null) {
-						evalResult = inputText.toLowerCase().contains(((String) o2.value).toLowerCase());
-					} else {
-						evalResult = false;
-					}
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.NUMBER, Operand.TEXT_INPUT) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (inputText != null) {
-						evalResult = inputText.contains(o1.value.toString());
-					} else {
-						evalResult = false;
-					}
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.TEXT_INPUT, Operand.NUMBER) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (inputText != null) {
-						evalResult = inputText.contains(o2.value.toString());
-					} else {
-						evalResult = false;
-					}
-				}
-			});
-			evaluatePair(handlers, lhs, rhs);
-			result = (Boolean) evalResult;
-		} else if (op.equals("<")) {
-			// less than
-			// does not equal
-			// does not have
-			List<PairEvaluator> handlers = new ArrayList<PairEvaluator>();
-			handlers.add(new PairEvaluator(Operand.NUMBER, Operand.NUMBER) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					short left = ((Number) o1.value).shortValue();
-					short right = ((Number) o2.value).shortValue();
-					evalResult = (left < right);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.STRING, Operand.TEXT_INPUT) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (inputText != null) {
-						evalResult = !inputText.toLowerCase().contains(((String) o1.value).toLowerCase());
-					} else {
-						evalResult = false;
-					}
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.TEXT_INPUT, Operand.STRING) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (inputText != null) {
-						evalResult = !inputText.toLowerCase().contains(((String) o2.value).toLowerCase());
-					} else {
-						evalResult = false;
-					}
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.OBJ, Operand.CHR) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Obj o = (Obj) o1.value;
-					Chr c = (Chr) o2.value;
-					evalResult = (o.getState().getCurrentOwner() != c);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.CHR, Operand.OBJ) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Chr c = (Chr) o1.value;
-					Obj o = (Obj) o2.value;
-					evalResult = (o.getState().getCurrentOwner() != c);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.OBJ, Operand.SCENE) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Obj o = (Obj) o1.value;
-					Scene s = (Scene) o2.value;
-					evalResult = (o.getState().getCurrentScene() != s);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.CHR, Operand.CHR) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Chr c1 = (Chr) o1.value;
-					Chr c2 = (Chr) o2.value;
-					evalResult = (c1 == c2);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.SCENE, Operand.SCENE) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Scene s1 = (Scene) o1.value;
-					Scene s2 = (Scene) o2.value;
-					evalResult = (s1 == s2);
-				}
-			});
-			evaluatePair(handlers, lhs, rhs);
-			result = (Boolean) evalResult;
-		} else if (op.equals(">")) {
-			// greater than
-			// does not equal
-			// does not have
-			List<PairEvaluator> handlers = new ArrayList<PairEvaluator>();
-			handlers.add(new PairEvaluator(Operand.NUMBER, Operand.NUMBER) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					short left = ((Number) o1.value).shortValue();
-					short right = ((Number) o2.value).shortValue();
-					evalResult = (left > right);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.TEXT_INPUT, Operand.STRING) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (inputText != null) {
-						evalResult = !inputText.toLowerCase().contains(((String) o2.value).toLowerCase());
-					} else {
-						evalResult = false;
-					}
-				}
-			});
-			/*
-			FIXME: this prevents the below cases from working due to exact
-			matches taking precedence over conversions...
-			handlers.add(new PairEvaluator(Operand.STRING, Operand.STRING) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					if (o1.value == null || o2.value == null) {
-						evalResult = (o1.value == o2.value);
-					} else {
-						evalResult = o1.value.equals(o2.value);
-					}
-				}
-			});
-			*/
-			handlers.add(new PairEvaluator(Operand.OBJ, Operand.CHR) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Obj o = (Obj) o1.value;
-					Chr c = (Chr) o2.value;
-					evalResult = (o.getState().getCurrentOwner() != c);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.OBJ, Operand.SCENE) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Obj o = (Obj) o1.value;
-					Scene s = (Scene) o2.value;
-					evalResult = (o.getState().getCurrentScene() != s);
-				}
-			});
-			handlers.add(new PairEvaluator(Operand.CHR, Operand.SCENE) {
-				@Override
-				public void evaluatePair(Operand o1, Operand o2) {
-					Chr c = (Chr) o1.value;
-					Scene s = (Scene) o2.value;
-					evalResult = (c != null && c.getState().getCurrentScene() != s);
-				}
-			});
-			evaluatePair(handlers, lhs, rhs);
-			result = (Boolean) evalResult;
-		} else if (op.equals("==") || op.equals(">>")) {
+			result = evalClickCondition(context, lhs, op, rhs);
+		} else if (op == Operator.UNKNOWN) {
+			throw new IllegalStateException("Unknown operator"); // rejected by verify()
+		} else if (op == Operator.EQUALS) {
+			result = evaluatePair(context, EQUALS_PAIRS, lhs, rhs);
+		} else if (op == Operator.LESS) {
+			result = evaluatePair(context, LESS_PAIRS, lhs, rhs);
+		} else if (op == Operator.GREATER) {
+			result = evaluatePair(context, GREATER_PAIRS, lhs, rhs);
+		} else if (op == Operator.EXACTLY_EQUALS || op == Operator.NOT_EXACTLY_EQUALS) {
 			// TODO: check if >> can be used for click inputs and if == can be used for other things
 			// exact string match
 			if (lhs.type == Operand.TEXT_INPUT) {
-				if ((rhs.type != Operand.STRING && rhs.type != Operand.NUMBER) || inputText == null) {
+				if ((rhs.type != Operand.STRING && rhs.type != Operand.NUMBER) || context.inputText == null) {
 					result = false;
 				} else {
-					result = inputText.toLowerCase().equals((rhs.value.toString()).toLowerCase());
+					result = context.inputText.toLowerCase().equals((rhs.value.toString()).toLowerCase());
 				}
 			} else if (rhs.type == Operand.TEXT_INPUT) {
-				if ((lhs.type != Operand.STRING && lhs.type != Operand.NUMBER) || inputText == null) {
+				if ((lhs.type != Operand.STRING && lhs.type != Operand.NUMBER) || context.inputText == null) {
 					result = false;
 				} else {
-					result = lhs.value.toString().toLowerCase().equals(inputText.toLowerCase());
+					result = lhs.value.toString().toLowerCase().equals(context.inputText.toLowerCase());
 				}
 			}
-			if (op.equals(">>")) {
+			if (op == Operator.NOT_EXACTLY_EQUALS) {
 				result = !result;
 			}
 		}
 		if (result == null) {
-			System.err.printf("UNHANDLED CASE: [lhs=%d/%s, rhs=%d/%s]\n",
-					lhs.type, "" + lhs.value, rhs.type, "" + rhs.value);
-			System.err.println("-> " + getCurrentLine());
+			// which types the operands have can depend on the game, e.g.
+			// for a variable that can hold a name or a number
+			reportAtRunTime(ScriptDiagnostic.WARNING, context.index,
+				String.format("Can't compare %s with %s", Operand.typeName(lhs.type), Operand.typeName(rhs.type)));
 			result = false;
 		}
 		return result;
@@ -478,14 +754,15 @@ public class Script {
 
 	private void skipIf() {
 		do {
-			readOperand();
-			readOperator();
-			readOperand();
+			compileOperand();
+			compileOperator();
+			compileOperand();
 		} while (data[index++] != (byte) 0xFE);
 	}
-	
+
+	// Finds where execution resumes when an IF condition fails; only used
+	// while compiling, to resolve the jump target.
 	private void skipBlock() {
-		int fromIndex = index;
 		int nesting = 1;
 		while (index < data.length) {
 			if (data[index] == (byte) 0x80) { // IF
@@ -497,7 +774,6 @@ public class Script {
 				nesting--;
 				if (nesting == 0) {
 					index++;
-					//System.out.println("Skipped lines " + indexToLine(fromIndex) + " to " + indexToLine(index));
 					return;
 				}
 			} else switch (data[index]) {
@@ -526,21 +802,12 @@ public class Script {
 		public void setCommandWasQuick();
 	}
 
-	private void processIf() {
-		int then = index;
-		while (data[then] != (byte) 0xFE)
-			then++;
-		//System.out.println("I love conditionals! " + buildStringFromOffset(index - 1, then - index) + "}");
-		int logicalOp = 0; // 0 => initial, 1 => and, 2 => or 
+	private boolean processIf(ExecutionContext context, Instruction insn, ConditionTest[] tests) {
+		int logicalOp = 0; // 0 => initial, 1 => and, 2 => or
 		boolean result = true;
-		boolean done = false;
-		do {
-			Operand lhs = readOperand();
-			String op = readOperator();
-			Operand rhs = readOperand();
-			//System.out.print("eval lhs => " + lhs.value);
-			//System.out.println(" rhs => " + rhs.value + " op => " + op);
-			boolean condResult = eval(lhs, op, rhs);
+		for (int i = 0; i < tests.length; i++) {
+			Condition cond = insn.conditions[i];
+			boolean condResult = tests[i].test(this, context);
 			if (logicalOp == 1) {
 				result = (result && condResult);
 			} else if (logicalOp == 2) {
@@ -548,102 +815,247 @@ public class Script {
 			} else { // logicalOp == 0
 				result = condResult;
 			}
-			if (data[index] == (byte) 0x84) {
+			if (cond.connector == Condition.AND) {
 				logicalOp = 1; // and
-			} else if (data[index] == (byte) 0x85) {
+			} else if (cond.connector == Condition.OR) {
 				logicalOp = 2; // or
-			} else if (data[index] == (byte) 0xFE) {
-				done = true; // then
 			}
-			//if (!done)
-			//	System.out.println("not done => " + getCurrentLine());
-			index++;
-		} while (!done);
-		//System.out.println("Result = " + result);
-		if (result == false) {
-			skipBlock();
 		}
+		return result;
 	}
-	
-	private void assign(int index, short value) {
-		Chr.State state = world.getPlayer().getState();
-		if (data[index] == (byte) 0xFF) { // user variable
-			int var = data[++index];
-			if (var < 0) var += 256;
-			var -= 1;
-			world.getPlayerContext().setUserVariable(var, value);
-		} else if (data[index] == (byte) 0xD0) {
-			state.setBasePhysicalStrength(value);
-		} else if (data[index] == (byte) 0xD1) {
-			state.setBasePhysicalHp(value);
-		} else if (data[index] == (byte) 0xD2) {
-			state.setBaseNaturalArmor(value);
-		} else if (data[index] == (byte) 0xD3) {
-			state.setBasePhysicalAccuracy(value);
-		} else if (data[index] == (byte) 0xD4) {
-			state.setBaseSpiritualStrength(value);
-		} else if (data[index] == (byte) 0xD5) {
-			state.setBaseSpiritualHp(value);
-		} else if (data[index] == (byte) 0xD6) {
-			state.setBaseResistanceToMagic(value);
-		} else if (data[index] == (byte) 0xD7) {
-			state.setBaseSpiritualAccuracy(value);
-		} else if (data[index] == (byte) 0xD8) {
-			state.setBaseRunningSpeed(value);
-		} else if (data[index] == (byte) 0xE0) {
-			state.setCurrentPhysicalStrength(value);
-		} else if (data[index] == (byte) 0xE1) {
-			state.setCurrentPhysicalHp(value);
-		} else if (data[index] == (byte) 0xE2) {
-			state.setCurrentNaturalArmor(value);
-		} else if (data[index] == (byte) 0xE3) {
-			state.setCurrentPhysicalAccuracy(value);
-		} else if (data[index] == (byte) 0xE4) {
-			state.setCurrentSpiritualStrength(value);
-		} else if (data[index] == (byte) 0xE5) {
-			state.setCurrentSpiritualHp(value);
-		} else if (data[index] == (byte) 0xE6) {
-			state.setCurrentResistanceToMagic(value);
-		} else if (data[index] == (byte) 0xE7) {
-			state.setCurrentSpiritualAccuracy(value);
-		} else if (data[index] == (byte) 0xE8) {
-			state.setCurrentRunningSpeed(value);
-		} else {
-			System.err.printf("No idea what I'm supposed to assign! (%x at %d)!\n", data[index], index);
+
+	private static abstract class ConditionTest {
+		public abstract boolean test(Script script, ExecutionContext context);
+	}
+
+	// Evaluates any condition the general way.
+	private static class InterpretedTest extends ConditionTest {
+		private Condition cond;
+
+		public InterpretedTest(Condition cond) {
+			this.cond = cond;
+		}
+
+		@Override
+		public boolean test(Script script, ExecutionContext context) {
+			Operand lhs = script.readOperand(context, cond.lhs);
+			Operand rhs = script.readOperand(context, cond.rhs);
+			return script.eval(context, lhs, cond.operator, rhs);
+		}
+	}
+
+	// TEXT$ compared against a literal with =, < or >.
+	private static class TextContainsTest extends ConditionTest {
+		private Operand literal;
+		private boolean negate;
+
+		public TextContainsTest(Operand literal, boolean negate) {
+			this.literal = literal;
+			this.negate = negate;
+		}
+
+		@Override
+		public boolean test(Script script, ExecutionContext context) {
+			if (context.inputText == null)
+				return false;
+			return script.inputContains(context, literal) != negate;
+		}
+	}
+
+	// TEXT$ compared against a literal with == or >>.
+	private static class TextEqualsTest extends ConditionTest {
+		private String literal;
+		private boolean negate;
+
+		public TextEqualsTest(String literal, boolean negate) {
+			this.literal = literal.toLowerCase();
+			this.negate = negate;
+		}
+
+		@Override
+		public boolean test(Script script, ExecutionContext context) {
+			boolean result = (context.inputText != null && context.inputText.toLowerCase().equals(literal));
+			return result != negate;
+		}
+	}
+
+	// Two numbers compared with =, < or >.
+	private static class NumberTest extends ConditionTest {
+		private Term lhs;
+		private int operator;
+		private Term rhs;
+
+		public NumberTest(Term lhs, int operator, Term rhs) {
+			this.lhs = lhs;
+			this.operator = operator;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public boolean test(Script script, ExecutionContext context) {
+			short left = ((Number) script.readOperand(context, lhs).value).shortValue();
+			short right = ((Number) script.readOperand(context, rhs).value).shortValue();
+			if (operator == Operator.LESS)
+				return left < right;
+			if (operator == Operator.GREATER)
+				return left > right;
+			return left == right;
+		}
+	}
+
+	private static ConditionTest[][] interpretConditions(Instruction[] code) {
+		ConditionTest[][] result = new ConditionTest[code.length][];
+		for (int i = 0; i < code.length; i++) {
+			if (code[i].conditions != null) {
+				result[i] = new ConditionTest[code[i].conditions.length];
+				for (int j = 0; j < result[i].length; j++)
+					result[i][j] = new InterpretedTest(code[i].conditions[j]);
+			}
+		}
+		return result;
+	}
+
+	// Replaces the tests for the common kinds of condition, whose operand
+	// types are known from the script alone, with ones that skip the
+	// general evaluation. Everything else stays interpreted.
+	private static ConditionTest[][] specialiseConditions(Instruction[] code, ConditionTest[][] tests) {
+		ConditionTest[][] result = new ConditionTest[tests.length][];
+		for (int i = 0; i < code.length; i++) {
+			if (tests[i] != null) {
+				result[i] = new ConditionTest[tests[i].length];
+				for (int j = 0; j < result[i].length; j++) {
+					ConditionTest test = specialise(code[i].conditions[j]);
+					result[i][j] = (test != null ? test : tests[i][j]);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static ConditionTest specialise(Condition cond) {
+		int op = cond.operator;
+		Term lhs = cond.lhs;
+		Term rhs = cond.rhs;
+		if (op == Operator.EQUALS || op == Operator.LESS || op == Operator.GREATER) {
+			if (isNumber(lhs) && isNumber(rhs))
+				return new NumberTest(lhs, op, rhs);
+		}
+		if (lhs.kind == 0xA0 && rhs.kind == Term.LITERAL) {
+			if (op == Operator.EQUALS || (rhs.literal.type == Operand.STRING &&
+				(op == Operator.LESS || op == Operator.GREATER)))
+			{
+				return new TextContainsTest(rhs.literal, op != Operator.EQUALS);
+			} else if (op == Operator.EXACTLY_EQUALS || op == Operator.NOT_EXACTLY_EQUALS) {
+				return new TextEqualsTest(rhs.literal.value.toString(), op == Operator.NOT_EXACTLY_EQUALS);
+			}
+		} else if (rhs.kind == 0xA0 && lhs.kind == Term.LITERAL) {
+			if (op == Operator.EQUALS || (lhs.literal.type == Operand.STRING && op == Operator.LESS)) {
+				return new TextContainsTest(lhs.literal, op != Operator.EQUALS);
+			} else if (op == Operator.EXACTLY_EQUALS || op == Operator.NOT_EXACTLY_EQUALS) {
+				return new TextEqualsTest(lhs.literal.value.toString(), op == Operator.NOT_EXACTLY_EQUALS);
+			}
+		}
+		return null;
+	}
+
+	private static boolean isNumber(Term term) {
+		int kind = term.kind;
+		if (kind == Term.LITERAL)
+			return term.literal.type == Operand.NUMBER;
+		return (kind >= 0xB0 && kind <= 0xB5) || (kind >= 0xD0 && kind <= 0xD8) ||
+			(kind >= 0xE0 && kind <= 0xE8) || kind == Term.USER_VARIABLE;
+	}
+
+	private void assign(ExecutionContext context, Term target, short value) {
+		Chr player = context.world.getPlayer();
+		Chr.State state = player.getState();
+		switch (target.kind) {
+			case Term.USER_VARIABLE:
+				context.world.getPlayerContext().setUserVariable(target.variable, value);
+				context.world.noteUserVariablesChange();
+				return;
+			case 0xD0:
+				state.setBasePhysicalStrength(value);
+				break;
+			case 0xD1:
+				state.setBasePhysicalHp(value);
+				break;
+			case 0xD2:
+				state.setBaseNaturalArmor(value);
+				break;
+			case 0xD3:
+				state.setBasePhysicalAccuracy(value);
+				break;
+			case 0xD4:
+				state.setBaseSpiritualStrength(value);
+				break;
+			case 0xD5:
+				state.setBaseSpiritualHp(value);
+				break;
+			case 0xD6:
+				state.setBaseResistanceToMagic(value);
+				break;
+			case 0xD7:
+				state.setBaseSpiritualAccuracy(value);
+				break;
+			case 0xD8:
+				state.setBaseRunningSpeed(value);
+				break;
+			case 0xE0:
+				state.setCurrentPhysicalStrength(value);
+				break;
+			case 0xE1:
+				state.setCurrentPhysicalHp(value);
+				break;
+			case 0xE2:
+				state.setCurrentNaturalArmor(value);
+				break;
+			case 0xE3:
+				state.setCurrentPhysicalAccuracy(value);
+				break;
+			case 0xE4:
+				state.setCurrentSpiritualStrength(value);
+				break;
+			case 0xE5:
+				state.setCurrentSpiritualHp(value);
+				break;
+			case 0xE6:
+				state.setCurrentResistanceToMagic(value);
+				break;
+			case 0xE7:
+				state.setCurrentSpiritualAccuracy(value);
+				break;
+			case 0xE8:
+				state.setCurrentRunningSpeed(value);
+				break;
+			default:
+				// rejected by verify()
+				throw new IllegalStateException(String.format("Can't assign to %02x", target.kind));
 		}
+		context.world.noteChange(player);
 	}
 
-	private void processLet() {
-		String lastOp = null;
+	private void processLet(ExecutionContext context, Instruction insn) {
 		short result = 0;
-		int oldIndex = index;
-		readOperand(); // skip LHS
-		index++; // skip "=" operator
-		do {
-			Operand operand = readOperand();
+		for (int i = 1; i < insn.operands.length; i++) {
+			Operand operand = readOperand(context, insn.operands[i]);
 			// TODO assert that value is NUMBER
 			short value = ((Number) operand.value).shortValue();
-			if (lastOp != null) {
-				if (lastOp.equals("+"))
-					result += value;
-				else if (lastOp.equals("-"))
-					result -= value;
-				else if (lastOp.equals("/"))
-					result = (short) (value == 0 ? 0 : result / value);
-				else if (lastOp.equals("*"))
-					result *= value;
-			} else {
+			int lastOp = (i == 1 ? Operator.UNKNOWN : insn.operators[i - 2]);
+			if (lastOp == Operator.PLUS)
+				result += value;
+			else if (lastOp == Operator.MINUS)
+				result -= value;
+			else if (lastOp == Operator.DIVIDE)
+				result = (short) (value == 0 ? 0 : result / value);
+			else if (lastOp == Operator.TIMES)
+				result *= value;
+			else if (lastOp == Operator.UNKNOWN)
 				result = value;
-			}
-			if (data[index] == (byte) 0xFD)
-				break;
-			lastOp = readOperator();
-		} while (true);
-		//System.out.println("processLet " + buildStringFromOffset(oldIndex - 1, index - oldIndex + 1) + "}");
-		assign(oldIndex, result);
-		index++;
+		}
+		assign(context, insn.operands[0], result);
 	}
-	
+
 	private static abstract class PairEvaluator {
 		public int lhsType;
 		public int rhsType;
@@ -651,137 +1063,443 @@ public class Script {
 			this.lhsType = lhsType;
 			this.rhsType = rhsType;
 		}
-		public abstract void evaluatePair(Operand o1, Operand o2);
+		public abstract Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2);
 	}
 
-	private Operand convertOperand(Operand operand, int type) {
-		if (operand.type == type)
-			return operand;
+	// A handler to try for a pair of operand types, with the type each side
+	// has to be converted to first (or NO_CONVERSION).
+	private static class PairCandidate {
+		public static final int NO_CONVERSION = -1;
 
-		if (type == Operand.SCENE) {
-			if (operand.type == Operand.STRING || operand.type == Operand.NUMBER) {
-				String key = operand.value.toString().toLowerCase();
-				Scene scene = world.getScenes().get(key);
-				if (scene != null) {
-					return new Operand(scene, Operand.SCENE);
+		public PairEvaluator evaluator;
+		public int lhsConversion;
+		public int rhsConversion;
+
+		public PairCandidate(PairEvaluator evaluator, int lhsConversion, int rhsConversion) {
+			this.evaluator = evaluator;
+			this.lhsConversion = lhsConversion;
+			this.rhsConversion = rhsConversion;
+		}
+	}
+
+	// Dispatch matrix indexed by [lhsType][rhsType]. Each cell lists, in order,
+	// the handlers that can apply: an exact match, then handlers needing one
+	// side converted, then both. Whether a conversion succeeds depends on the
+	// world, so the cells are tried in order at run time.
+	private static class PairTable {
+		private PairCandidate[][][] candidates = new PairCandidate[Operand.TYPE_COUNT][Operand.TYPE_COUNT][];
+
+		public PairTable(PairEvaluator[] evaluators) {
+			for (int lhsType = 0; lhsType < Operand.TYPE_COUNT; lhsType++) {
+				for (int rhsType = 0; rhsType < Operand.TYPE_COUNT; rhsType++) {
+					candidates[lhsType][rhsType] = buildCandidates(evaluators, lhsType, rhsType);
 				}
 			}
-		} else if (type == Operand.OBJ) {
-			if (operand.type == Operand.STRING || operand.type == Operand.NUMBER) {
-				String key = operand.value.toString().toLowerCase();
-				Obj obj = world.getObjs().get(key);
-				if (obj != null) {
-					return new Operand(obj, Operand.OBJ);
-				}
-			} else if (operand.type == Operand.CLICK_INPUT) {
-				if (inputClick instanceof Obj) {
-					return new Operand(inputClick, Operand.OBJ);
+		}
+
+		public PairCandidate[] get(int lhsType, int rhsType) {
+			return candidates[lhsType][rhsType];
+		}
+
+		private static PairCandidate[] buildCandidates(PairEvaluator[] evaluators, int lhsType, int rhsType) {
+			List<PairCandidate> result = new ArrayList<PairCandidate>();
+			for (PairEvaluator e : evaluators) {
+				if (e.lhsType == lhsType && e.rhsType == rhsType) {
+					result.add(new PairCandidate(e, PairCandidate.NO_CONVERSION, PairCandidate.NO_CONVERSION));
+					return result.toArray(new PairCandidate[result.size()]);
 				}
 			}
-		} else if (type == Operand.CHR) {
-			if (operand.type == Operand.STRING || operand.type == Operand.NUMBER) {
-				String key = operand.value.toString().toLowerCase();
-				Chr chr = world.getChrs().get(key);
-				if (chr != null) {
-					return new Operand(chr, Operand.CHR);
+			for (PairEvaluator e : evaluators) {
+				if (e.lhsType == lhsType && canConvert(rhsType, e.rhsType)) {
+					result.add(new PairCandidate(e, PairCandidate.NO_CONVERSION, e.rhsType));
+				} else if (e.rhsType == rhsType && canConvert(lhsType, e.lhsType)) {
+					result.add(new PairCandidate(e, e.lhsType, PairCandidate.NO_CONVERSION));
 				}
-			} else if (operand.type == Operand.CLICK_INPUT) {
-				if (inputClick instanceof Chr) {
-					return new Operand(inputClick, Operand.CHR);
+			}
+			for (PairEvaluator e : evaluators) {
+				if (e.lhsType != lhsType && e.rhsType != rhsType &&
+					canConvert(lhsType, e.lhsType) && canConvert(rhsType, e.rhsType))
+				{
+					result.add(new PairCandidate(e, e.lhsType, e.rhsType));
 				}
 			}
+			return result.toArray(new PairCandidate[result.size()]);
 		}
 
-		return null;
+		// Mirrors the cases convertOperand() can ever succeed on.
+		private static boolean canConvert(int from, int to) {
+			if (to == Operand.SCENE)
+				return from == Operand.STRING || from == Operand.NUMBER;
+			if (to == Operand.OBJ || to == Operand.CHR)
+				return from == Operand.STRING || from == Operand.NUMBER || from == Operand.CLICK_INPUT;
+			return false;
+		}
 	}
-	
-	private void evaluatePair(List<PairEvaluator> handlers, Operand o1, Operand o2) {
-		evalResult = null;
-		// First, try for exact matches.
-		//System.out.println("Trying exact matches on " + o1.type + " " + o2.type);
-		for (PairEvaluator e : handlers) {
-			if (e.lhsType == o1.type && e.rhsType == o2.type) {
-				e.evaluatePair(o1, o2);
-				return;
+
+	private static final PairTable EQUALS_PAIRS = new PairTable(new PairEvaluator[] {
+		new PairEvaluator(Operand.NUMBER, Operand.NUMBER) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				short left = ((Number) o1.value).shortValue();
+				short right = ((Number) o2.value).shortValue();
+				return (left == right);
+			}
+		},
+		new PairEvaluator(Operand.OBJ, Operand.SCENE) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				return ((Scene) o2.value).getState().getObjs().contains((Obj) o1.value);
+			}
+		},
+		new PairEvaluator(Operand.CHR, Operand.SCENE) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				return ((Scene) o2.value).getState().getChrs().contains((Chr) o1.value);
+			}
+		},
+		new PairEvaluator(Operand.OBJ, Operand.CHR) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				return ((Chr) o2.value).getState().getInventory().contains((Obj) o1.value);
+			}
+		},
+		new PairEvaluator(Operand.CHR, Operand.CHR) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				return (o1.value == o2.value);
+			}
+		},
+		new PairEvaluator(Operand.SCENE, Operand.SCENE) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				return (o1.value == o2.value);
+			}
+		},
+		new PairEvaluator(Operand.STRING, Operand.TEXT_INPUT) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (context.inputText != null) {
+					return script.inputContains(context, o1);
+				} else {
+					return false;
+				}
+			}
+		},
+		new PairEvaluator(Operand.TEXT_INPUT, Operand.STRING) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (context.inputText != null) {
+					return script.inputContains(context, o2);
+				} else {
+					return false;
+				}
+			}
+		},
+		new PairEvaluator(Operand.NUMBER, Operand.TEXT_INPUT) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (context.inputText != null) {
+					return script.inputContains(context, o1);
+				} else {
+					return false;
+				}
+			}
+		},
+		new PairEvaluator(Operand.TEXT_INPUT, Operand.NUMBER) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (context.inputText != null) {
+					return script.inputContains(context, o2);
+				} else {
+					return false;
+				}
 			}
 		}
-		// Now, try partial matches.
-		// System.out.println("Trying partial matches on " + o1.type + " " + o2.type);
-		for (PairEvaluator e : handlers) {
-			Operand converted;
-			if (e.lhsType == o1.type && (converted = convertOperand(o2, e.rhsType)) != null) {
-				e.evaluatePair(o1, converted);
-				return;
-			} else if (e.rhsType == o2.type && (converted = convertOperand(o1, e.lhsType)) != null) {
-				e.evaluatePair(converted, o2);
-				return;
+	});
+
+	// less than
+	// does not equal
+	// does not have
+	private static final PairTable LESS_PAIRS = new PairTable(new PairEvaluator[] {
+		new PairEvaluator(Operand.NUMBER, Operand.NUMBER) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				short left = ((Number) o1.value).shortValue();
+				short right = ((Number) o2.value).shortValue();
+				return (left < right);
+			}
+		},
+		new PairEvaluator(Operand.STRING, Operand.TEXT_INPUT) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (context.inputText != null) {
+					return !script.inputContains(context, o1);
+				} else {
+					return false;
+				}
+			}
+		},
+		new PairEvaluator(Operand.TEXT_INPUT, Operand.STRING) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (context.inputText != null) {
+					return !script.inputContains(context, o2);
+				} else {
+					return false;
+				}
+			}
+		},
+		new PairEvaluator(Operand.OBJ, Operand.CHR) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Obj o = (Obj) o1.value;
+				Chr c = (Chr) o2.value;
+				return (o.getState().getCurrentOwner() != c);
+			}
+		},
+		new PairEvaluator(Operand.CHR, Operand.OBJ) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Chr c = (Chr) o1.value;
+				Obj o = (Obj) o2.value;
+				return (o.getState().getCurrentOwner() != c);
+			}
+		},
+		new PairEvaluator(Operand.OBJ, Operand.SCENE) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Obj o = (Obj) o1.value;
+				Scene s = (Scene) o2.value;
+				return (o.getState().getCurrentScene() != s);
+			}
+		},
+		new PairEvaluator(Operand.CHR, Operand.CHR) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Chr c1 = (Chr) o1.value;
+				Chr c2 = (Chr) o2.value;
+				return (c1 == c2);
+			}
+		},
+		new PairEvaluator(Operand.SCENE, Operand.SCENE) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Scene s1 = (Scene) o1.value;
+				Scene s2 = (Scene) o2.value;
+				return (s1 == s2);
 			}
 		}
-		// Now, try double conversion.
-		//System.out.println("Trying double conversion on " + o1.type + " " + o2.type);
-		for (PairEvaluator e : handlers) {
-			Operand c1, c2;
-			if ((c1 = convertOperand(o1, e.lhsType)) != null &&
-				(c2 = convertOperand(o2, e.rhsType)) != null)
-			{
-				e.evaluatePair(c1, c2);
-				return;
+	});
+
+	// greater than
+	// does not equal
+	// does not have
+	private static final PairTable GREATER_PAIRS = new PairTable(new PairEvaluator[] {
+		new PairEvaluator(Operand.NUMBER, Operand.NUMBER) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				short left = ((Number) o1.value).shortValue();
+				short right = ((Number) o2.value).shortValue();
+				return (left > right);
+			}
+		},
+		new PairEvaluator(Operand.TEXT_INPUT, Operand.STRING) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (context.inputText != null) {
+					return !script.inputContains(context, o2);
+				} else {
+					return false;
+				}
+			}
+		},
+		/*
+		FIXME: this prevents the below cases from working due to exact
+		matches taking precedence over conversions...
+		new PairEvaluator(Operand.STRING, Operand.STRING) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				if (o1.value == null || o2.value == null) {
+					return (o1.value == o2.value);
+				} else {
+					return o1.value.equals(o2.value);
+				}
+			}
+		},
+		*/
+		new PairEvaluator(Operand.OBJ, Operand.CHR) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Obj o = (Obj) o1.value;
+				Chr c = (Chr) o2.value;
+				return (o.getState().getCurrentOwner() != c);
+			}
+		},
+		new PairEvaluator(Operand.OBJ, Operand.SCENE) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Obj o = (Obj) o1.value;
+				Scene s = (Scene) o2.value;
+				return (o.getState().getCurrentScene() != s);
+			}
+		},
+		new PairEvaluator(Operand.CHR, Operand.SCENE) {
+			@Override
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
+				Chr c = (Chr) o1.value;
+				Scene s = (Scene) o2.value;
+				return (c != null && c.getState().getCurrentScene() != s);
 			}
 		}
-	}
-	
-	private void processMove() {		
-		Operand what = readOperand();
-		// TODO check data[index] == 0x8A
-		index++;
-		Operand to = readOperand();
-		// TODO check data[index] == 0xFD
-		index++;
-		List<PairEvaluator> handlers = new ArrayList<PairEvaluator>();
-		handlers.add(new PairEvaluator(Operand.OBJ, Operand.CHR) {
+	});
+
+	private static final PairTable MOVE_PAIRS = new PairTable(new PairEvaluator[] {
+		new PairEvaluator(Operand.OBJ, Operand.CHR) {
 			@Override
-			public void evaluatePair(Operand o1, Operand o2) {
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
 				Obj obj = (Obj) o1.value;
 				Chr chr = (Chr) o2.value;
 				if (obj.getState().getCurrentOwner() != chr) {
-					world.move(obj, chr);
-					setHandled();  // TODO: Is this correct?
+					context.world.move(obj, chr);
+					script.setHandled(context);  // TODO: Is this correct?
 				}
+				return true;
 			}
-		});
-		handlers.add(new PairEvaluator(Operand.OBJ, Operand.SCENE) {
+		},
+		new PairEvaluator(Operand.OBJ, Operand.SCENE) {
 			@Override
-			public void evaluatePair(Operand o1, Operand o2) {
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
 				Obj obj = (Obj) o1.value;
 				Scene scene = (Scene) o2.value;
 				if (obj.getState().getCurrentScene() != scene) {
-					world.move(obj, scene);
+					context.world.move(obj, scene);
 					// Note: This shouldn't call setHandled() - see
 					// Sultan's Palace 'Food and Drink' scene.
 				}
+				return true;
 			}
-		});
-		handlers.add(new PairEvaluator(Operand.CHR, Operand.SCENE) {
+		},
+		new PairEvaluator(Operand.CHR, Operand.SCENE) {
 			@Override
-			public void evaluatePair(Operand o1, Operand o2) {
+			public Boolean evaluatePair(Script script, ExecutionContext context, Operand o1, Operand o2) {
 				Chr chr = (Chr) o1.value;
 				Scene scene = (Scene) o2.value;
-				world.move(chr, scene);
-				setHandled();  // TODO: Is this correct?
+				context.world.move(chr, scene);
+				script.setHandled(context);  // TODO: Is this correct?
+				return true;
+			}
+		}
+	});
+
+	private Operand convertOperand(ExecutionContext context, Operand operand, int type) {
+		if (operand.type == type)
+			return operand;
+		if (operand.bindings != null) {
+			Operand bound = operand.bindings[type];
+			if (bound == null || context.world == boundWorld)
+				return bound;
+			return new Operand(context.world.getInstanceOf(bound.value), type);
+		}
+
+		if (type == Operand.SCENE) {
+			if (operand.type == Operand.STRING || operand.type == Operand.NUMBER) {
+				String key = operand.value.toString().toLowerCase();
+				Scene scene = context.world.getScenes().get(key);
+				if (scene != null) {
+					return new Operand(scene, Operand.SCENE);
+				}
+			}
+		} else if (type == Operand.OBJ) {
+			if (operand.type == Operand.STRING || operand.type == Operand.NUMBER) {
+				String key = operand.value.toString().toLowerCase();
+				Obj obj = context.world.getObjs().get(key);
+				if (obj != null) {
+					return new Operand(obj, Operand.OBJ);
+				}
+			} else if (operand.type == Operand.CLICK_INPUT) {
+				if (context.inputClick instanceof Obj) {
+					return new Operand(context.inputClick, Operand.OBJ);
+				}
+			}
+		} else if (type == Operand.CHR) {
+			if (operand.type == Operand.STRING || operand.type == Operand.NUMBER) {
+				String key = operand.value.toString().toLowerCase();
+				Chr chr = context.world.getChrs().get(key);
+				if (chr != null) {
+					return new Operand(chr, Operand.CHR);
+				}
+			} else if (operand.type == Operand.CLICK_INPUT) {
+				if (context.inputClick instanceof Chr) {
+					return new Operand(context.inputClick, Operand.CHR);
+				}
 			}
-		});
-		evaluatePair(handlers, what, to);
+		}
+
+		return null;
+	}
+	
+	private Boolean evaluatePair(ExecutionContext context, PairTable table, Operand o1, Operand o2) {
+		for (PairCandidate c : table.get(o1.type, o2.type)) {
+			Operand c1 = o1, c2 = o2;
+			if (c.lhsConversion != PairCandidate.NO_CONVERSION &&
+				(c1 = convertOperand(context, o1, c.lhsConversion)) == null)
+				continue;
+			if (c.rhsConversion != PairCandidate.NO_CONVERSION &&
+				(c2 = convertOperand(context, o2, c.rhsConversion)) == null)
+				continue;
+			return c.evaluator.evaluatePair(this, context, c1, c2);
+		}
+		return null;
+	}
+
+	// Returns true if the player was moved to another scene, which ends the
+	// script.
+	private boolean processMove(ExecutionContext context, Instruction insn) {
+		Scene currentScene = context.world.getPlayerScene();
+		Operand what = readOperand(context, insn.operands[0]);
+		Operand to = readOperand(context, insn.operands[1]);
+		evaluatePair(context, MOVE_PAIRS, what, to);
+		return context.world.getPlayerScene() != currentScene;
+	}
+
+	private void processPrint(ExecutionContext context, Instruction insn) {
+		Operand op = readOperand(context, insn.operands[0]);
+		// TODO check op type is string or number, or something good...
+		appendText(context, op.value.toString());
+	}
+
+	private void processSound(ExecutionContext context, Instruction insn) {
+		Operand op = readOperand(context, insn.operands[0]);
+		// TODO check op type is string.
+		setHandled(context);
+		context.callbacks.playSound(op.value.toString());
+	}
+
+	private void processMenu(ExecutionContext context, Instruction insn) {
+		context.callbacks.setMenu(insn.text);
 	}
 
-	private void appendText(String str, Object... args) {
-		setHandled();
-		callbacks.appendText(str, args);
+	private void appendText(ExecutionContext context, String str, Object... args) {
+		setHandled(context);
+		context.callbacks.appendText(str, args);
 	}
 	
-	private void setHandled() {
-		handled = true;
+	private void setHandled(ExecutionContext context) {
+		context.handled = true;
 	}
 	
+	private boolean inputContains(ExecutionContext context, Operand operand) {
+		if (context.inputMatches != null && operand.pattern != -1)
+			return context.inputMatches.get(operand.pattern);
+		return context.inputText.contains(operand.value.toString().toLowerCase());
+	}
+
+	private boolean inputContains(ExecutionContext context, int word) {
+		if (context.inputMatches != null && builtInPatterns != null)
+			return context.inputMatches.get(builtInPatterns[word]);
+		return context.inputText.contains(BUILT_IN_WORDS[word]);
+	}
+
 	private String preprocessInputText(String inputText) {
 		if (inputText == null)
 			return null;
@@ -814,159 +1532,319 @@ public class Script {
 		return inputLowerCase;
 	}
 	
+	
 	public boolean execute(World world, int loopCount,
 			String inputText, Object inputClick,
 			Callbacks callbacks)
 	{
-		this.world = world;
-		this.loopCount = loopCount;
-		this.inputText = inputText = preprocessInputText(inputText);
-		this.inputClick = inputClick;
-		this.callbacks = callbacks;
-		this.handled = false;
-		try {
-			index = 12;
-			while (index < data.length) {
-				if (data[index] == (byte) 0x80) { // IF{
-					index++;
-					processIf();
-				} else if (data[index] == (byte) 0x87) { // EXIT
-					//System.err.println("exit at line " + indexToLine(index));
-					return true;
-				} else if (data[index] == (byte) 0x89) { // MOVE
-					index++;
-					Scene currentScene = world.getPlayerScene();
-					processMove();
-					if (world.getPlayerScene() != currentScene)
-						return true;
-				} else if (data[index] == (byte) 0x8B) { // PRINT
-					index++;
-					Operand op = readOperand();
-					// TODO check op type is string or number, or something good...
-					appendText(op.value.toString());
-					// TODO check data[index] == 0xFD
-					index++;
-				} else if (data[index] == (byte) 0x8C) { // SOUND
-					index++;
-					Operand op = readOperand();
-					// TODO check op type is string.
-					setHandled();
-					callbacks.playSound(op.value.toString());
-					// TODO check data[index] == 0xFD
-					index++;
-				} else if (data[index] == (byte) 0x8E) { // LET
-					index++;
-					processLet();
-				} else if (data[index] == (byte) 0x95) { // MENU
-					index++;
-					Operand op = readStringOperand(); // allows empty menu
-					// TODO check op type is string.
-					callbacks.setMenu(op.value.toString());
-					// TODO check data[index] == 0xFD
-					index++;
-				} else if (data[index] == (byte) 0x88) { // END
-					index++;
-				} else {
-					System.err.println(getCurrentLine());
-					System.exit(-1);
-				}
-			}
-		} catch (Exception e) {
-			System.err.println(getCurrentLine());
-			e.printStackTrace();
-			return true;
+		return execute(new ExecutionContext(), world, loopCount, inputText, inputClick, callbacks);
+	}
+
+	/**
+	 * Runs the script, keeping all the state of the run in the given context
+	 * rather than in the script, so a script can be run by several threads
+	 * at once as long as each uses its own context.
+	 */
+	public boolean execute(ExecutionContext context, World world, int loopCount,
+			String inputText, Object inputClick,
+			Callbacks callbacks)
+	{
+		inputText = preprocessInputText(inputText);
+		BitSet inputMatches = null;
+		if (inputText != null && world.getTextMatcher() != null)
+			inputMatches = world.getTextMatcher().match(inputText);
+		context.start(world, loopCount, inputText, inputMatches, inputClick, callbacks);
+		return run(context);
+	}
+
+	private boolean run(ExecutionContext context) {
+		ConditionTest[][] tests = conditionTests;
+		CompiledStatements statements = compiled;
+		if (!specialised && runCount.incrementAndGet() == SPECIALISE_AFTER) {
+			tests = conditionTests = specialiseConditions(code, tests);
+			if (!ScriptProfiler.ENABLED)
+				statements = compiled = compileStatements(tests);
+			specialised = true;
 		}
-		if (world.getGlobalScript() != this) {
-			boolean globalHandled = world.getGlobalScript().execute(world, loopCount, inputText, inputClick, callbacks);
-			if (globalHandled)
-				setHandled();
-		} else if (inputText != null) {
-			String input = inputText.toLowerCase();
-			if (input.contains("north")) {
-				handleMoveCommand(Scene.NORTH, "north");
-			} else if (input.contains("east")) {
-				handleMoveCommand(Scene.EAST, "east");
-			} else if (input.contains("south")) {
-				handleMoveCommand(Scene.SOUTH, "south");
-			} else if (input.contains("west")) {
-				handleMoveCommand(Scene.WEST, "west");
+		long start = (ScriptProfiler.ENABLED ? System.nanoTime() : 0);
+		boolean stopped = runStatements(context, tests, statements);
+		if (ScriptProfiler.ENABLED)
+			ScriptProfiler.recordRun(this, System.nanoTime() - start);
+		if (stopped)
+			return true;
+		if (context.world.getGlobalScript() != this) {
+			// The global script runs in the same context, so put back what
+			// it changes once it is done.
+			boolean wasHandled = context.handled;
+			int index = context.index;
+			context.handled = false;
+			boolean globalHandled = context.world.getGlobalScript().run(context);
+			context.handled = wasHandled || globalHandled;
+			context.index = index;
+		} else if (context.inputText != null) {
+			String input = context.inputText.toLowerCase();
+			if (inputContains(context, WORD_NORTH)) {
+				handleMoveCommand(context, Scene.NORTH, "north");
+			} else if (inputContains(context, WORD_EAST)) {
+				handleMoveCommand(context, Scene.EAST, "east");
+			} else if (inputContains(context, WORD_SOUTH)) {
+				handleMoveCommand(context, Scene.SOUTH, "south");
+			} else if (inputContains(context, WORD_WEST)) {
+				handleMoveCommand(context, Scene.WEST, "west");
 			} else if (input.startsWith("get ")) {
-				handleTakeCommand(input.substring(4));
+				handleTakeCommand(context, input.substring(4));
 			} else if (input.startsWith("drop ")) {
-				handleDropCommand(input.substring(5));
+				handleDropCommand(context, input.substring(5));
 			} else if (input.startsWith("aim ")) {
-				handleAimCommand(input.substring(4));
+				handleAimCommand(context, input.substring(4));
 			} else if (input.startsWith("wear ")) {
-				handleWearCommand(input.substring(5));
+				handleWearCommand(context, input.substring(5));
 			} else if (input.startsWith("offer ")) {
-				handleOfferCommand(input.substring(6));
-			} else if (input.contains("look")) {
-				handleLookCommand();
-			} else if (input.contains("inven")) {
-				handleInventoryCommand();
-			} else if (input.contains("status")) {
-				handleStatusCommand();
-			} else if (input.contains("rest")) {
-				handleRestCommand();
-			} else if (callbacks.getOffer() != null && input.contains("accept")) {
-				handleAcceptCommand();
+				handleOfferCommand(context, input.substring(6));
+			} else if (inputContains(context, WORD_LOOK)) {
+				handleLookCommand(context);
+			} else if (inputContains(context, WORD_INVEN)) {
+				handleInventoryCommand(context);
+			} else if (inputContains(context, WORD_STATUS)) {
+				handleStatusCommand(context);
+			} else if (inputContains(context, WORD_REST)) {
+				handleRestCommand(context);
+			} else if (context.callbacks.getOffer() != null && inputContains(context, WORD_ACCEPT)) {
+				handleAcceptCommand(context);
 			} else {
-				Chr player = world.getPlayer();
+				Chr player = context.world.getPlayer();
 				for (Weapon weapon : player.getWeapons(true)) {
 					if (tryAttack(weapon, input)) {
-						handleAttack(weapon);
+						handleAttack(context, weapon);
 						break;
 					}
 				}
 			}
 			// TODO: weapons, offer, etc...
-		} else if (inputClick instanceof Obj) {
-			Obj obj = (Obj) inputClick;
-			if (obj.getState().getCurrentScene() == world.getPlayerScene()) {
+		} else if (context.inputClick instanceof Obj) {
+			Obj obj = (Obj) context.inputClick;
+			if (obj.getState().getCurrentScene() == context.world.getPlayerScene()) {
 				if (obj.getType() != Obj.IMMOBILE_OBJECT) {
-					takeObj(obj);
+					takeObj(context, obj);
 				} else {
-					appendText(obj.getClickMessage());
+					appendText(context, obj.getClickMessage());
+				}
+			}
+		}
+		return context.handled;
+	}
+
+	// Runs the statements of this script, compiled if they have been; returns
+	// true if the script ended the turn before reaching its end.
+	private boolean runStatements(ExecutionContext context, ConditionTest[][] tests,
+			CompiledStatements statements)
+	{
+		try {
+			if (statements != null)
+				return statements.run(this, context);
+			int pc = 0;
+			while (pc < code.length) {
+				Instruction insn = code[pc++];
+				context.index = insn.offset;
+				long start = (ScriptProfiler.ENABLED ? System.nanoTime() : 0);
+				try {
+					switch (insn.opcode) {
+						case Instruction.IF:
+							if (!processIf(context, insn, tests[pc - 1])) {
+								if (insn.skipTo < 0)
+									return true;
+								pc = insn.skipTo;
+							}
+							break;
+						case Instruction.EXIT:
+							return true;
+						case Instruction.MOVE:
+							if (processMove(context, insn))
+								return true;
+							break;
+						case Instruction.PRINT:
+							processPrint(context, insn);
+							break;
+						case Instruction.SOUND:
+							processSound(context, insn);
+							break;
+						case Instruction.LET:
+							processLet(context, insn);
+							break;
+						case Instruction.MENU:
+							processMenu(context, insn);
+							break;
+						case Instruction.END:
+							break;
+						default:
+							// Unknown or truncated statement, reported by verify();
+							// the script can't go on past it.
+							return true;
+					}
+				} finally {
+					if (ScriptProfiler.ENABLED)
+						ScriptProfiler.recordStatement(this, insn.offset, insn.opcode, System.nanoTime() - start);
+				}
+			}
+		} catch (IllegalStateException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			// e.g. printing TEXT$ on a turn with no text input; the script
+			// stops, as it always has
+			reportAtRunTime(ScriptDiagnostic.ERROR, context.index, e.toString());
+			return true;
+		}
+		return false;
+	}
+
+	// The statements of a script compiled to the code of a hidden class,
+	// which the JIT can then compile as a whole.
+	private interface CompiledStatements {
+		public boolean run(Script script, ExecutionContext context);
+	}
+
+	private static final String PACKAGE = "com/googlecode/wage_engine/engine/";
+
+	// Compiles the statements into a hidden class whose run() does what
+	// runStatements() does: each statement becomes a call to the same method
+	// the interpreter uses for it, with the statement and its condition tests
+	// as constants from the class data, and each IF becomes a jump. Returns
+	// null if the class can't be made, e.g. for a script too long for one
+	// method, in which case the script stays interpreted.
+	private CompiledStatements compileStatements(ConditionTest[][] tests) {
+		String script = PACKAGE + "Script";
+		String context = "L" + PACKAGE + "ExecutionContext;";
+		String insn = "L" + script + "$Instruction;";
+		String statement = "(" + context + insn + ")";
+		List<Object> data = new ArrayList<Object>();
+		try {
+			ClassFileWriter cf = new ClassFileWriter(ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER,
+				script + "$Compiled", "java/lang/Object", script + "$CompiledStatements");
+			ClassFileWriter.Code init = cf.newCode();
+			init.op(ClassFileWriter.ALOAD_0);
+			init.op(ClassFileWriter.INVOKESPECIAL, cf.methodRef("java/lang/Object", "<init>", "()V"));
+			init.op(ClassFileWriter.RETURN);
+			cf.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+
+			ClassFileWriter.Code run = cf.newCode();
+			int index = cf.fieldRef(PACKAGE + "ExecutionContext", "index", "I");
+			int[] labels = new int[code.length + 1];
+			for (int pc = 0; pc < labels.length; pc++)
+				labels[pc] = run.newLabel();
+			for (int pc = 0; pc < code.length; pc++) {
+				run.mark(labels[pc]);
+				if (code[pc].opcode == Instruction.END)
+					continue;
+				run.op(ClassFileWriter.ALOAD_2);
+				run.pushInt(code[pc].offset);
+				run.op(ClassFileWriter.PUTFIELD, index);
+				if (code[pc].opcode == Instruction.EXIT || !Instruction.isKnown(code[pc].opcode)) {
+					// unknown or truncated statements stop the script, as in
+					// runStatements()
+					run.op(ClassFileWriter.ICONST_1);
+					run.op(ClassFileWriter.IRETURN);
+					continue;
+				}
+				run.op(ClassFileWriter.ALOAD_1);
+				run.op(ClassFileWriter.ALOAD_2);
+				data.add(code[pc]);
+				run.pushConstant(cf.classData(data.size() - 1, insn));
+				switch (code[pc].opcode) {
+					case Instruction.IF:
+						data.add(tests[pc]);
+						run.pushConstant(cf.classData(data.size() - 1, "[L" + script + "$ConditionTest;"));
+						run.op(ClassFileWriter.INVOKEVIRTUAL, cf.methodRef(script, "processIf",
+							"(" + context + insn + "[L" + script + "$ConditionTest;)Z"));
+						if (code[pc].skipTo >= 0) {
+							run.jump(ClassFileWriter.IFEQ, labels[code[pc].skipTo]);
+						} else {
+							run.jump(ClassFileWriter.IFNE, labels[pc + 1]);
+							run.op(ClassFileWriter.ICONST_1);
+							run.op(ClassFileWriter.IRETURN);
+						}
+						break;
+					case Instruction.MOVE:
+						run.op(ClassFileWriter.INVOKEVIRTUAL, cf.methodRef(script, "processMove", statement + "Z"));
+						run.jump(ClassFileWriter.IFEQ, labels[pc + 1]);
+						run.op(ClassFileWriter.ICONST_1);
+						run.op(ClassFileWriter.IRETURN);
+						break;
+					case Instruction.PRINT:
+						run.op(ClassFileWriter.INVOKEVIRTUAL, cf.methodRef(script, "processPrint", statement + "V"));
+						break;
+					case Instruction.SOUND:
+						run.op(ClassFileWriter.INVOKEVIRTUAL, cf.methodRef(script, "processSound", statement + "V"));
+						break;
+					case Instruction.LET:
+						run.op(ClassFileWriter.INVOKEVIRTUAL, cf.methodRef(script, "processLet", statement + "V"));
+						break;
+					case Instruction.MENU:
+						run.op(ClassFileWriter.INVOKEVIRTUAL, cf.methodRef(script, "processMenu", statement + "V"));
+						break;
 				}
 			}
+			run.mark(labels[code.length]);
+			run.op(ClassFileWriter.ICONST_0);
+			run.op(ClassFileWriter.IRETURN);
+			cf.addMethod(ClassFileWriter.ACC_PUBLIC, "run", "(L" + script + ";" + context + ")Z", run, 4, 3);
+
+			// As a nestmate of Script, the class can call its private methods.
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(
+				cf.toByteArray(), data, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+			return (CompiledStatements) lookup.lookupClass().getDeclaredConstructor().newInstance();
+		} catch (IllegalArgumentException e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
 		}
-		return handled;
+	}
+
+	/**
+	 * @return true if the script has been compiled, which happens once it
+	 *         has run often enough
+	 */
+	boolean isCompiled() {
+		return compiled != null;
 	}
 
 	private boolean tryAttack(Weapon weapon, String input) {
 		return input.contains(weapon.getName().toLowerCase()) && input.contains(weapon.getOperativeVerb().toLowerCase());
 	}
 
-	private void handleAimCommand(String target) {
+	private void handleAimCommand(ExecutionContext context, String target) {
 		boolean wasHandled = true;
 		if (target.contains("head")) {
-			callbacks.setAim(Chr.HEAD);
+			context.callbacks.setAim(Chr.HEAD);
 		} else if (target.contains("chest")) {
-			callbacks.setAim(Chr.CHEST);
+			context.callbacks.setAim(Chr.CHEST);
 		} else if (target.contains("side")) {
-			callbacks.setAim(Chr.SIDE);
+			context.callbacks.setAim(Chr.SIDE);
 		} else {
 			wasHandled = false;
-			appendText("Please aim for the head, chest, or side.");
+			appendText(context, "Please aim for the head, chest, or side.");
 		}
 		if (wasHandled)
-			setHandled();
-		callbacks.setCommandWasQuick();
+			setHandled(context);
+		context.callbacks.setCommandWasQuick();
 	}
 
-	private void handleOfferCommand(String target) {
-		Chr player = world.getPlayer();
-		Chr enemy = callbacks.getMonster();
+	private void handleOfferCommand(ExecutionContext context, String target) {
+		Chr player = context.world.getPlayer();
+		Chr enemy = context.callbacks.getMonster();
 		if (enemy != null) {
-			for (Obj o : player.getState().getInventory()) {
+			List<Obj> inventory = player.getState().getInventory();
+			for (int i = 0; i < inventory.size(); i++) {
+				Obj o = inventory.get(i);
 				if (target.contains(o.getName().toLowerCase())) {
 					if (o.getValue() < enemy.getRejectsOffers()) {
-						appendText("Your offer is rejected.");
+						appendText(context, "Your offer is rejected.");
 					} else {
-						appendText("Your offer is accepted.");
-						appendText(enemy.getAcceptsOfferComment());
-						world.move(o, enemy);
-						world.move(enemy, world.getStorageScene());
+						appendText(context, "Your offer is accepted.");
+						appendText(context, enemy.getAcceptsOfferComment());
+						context.world.move(o, enemy);
+						context.world.move(enemy, context.world.getStorageScene());
 					}
 					break;
 				}
@@ -974,36 +1852,36 @@ public class Script {
 		}
 	}
 	
-	private void handleAcceptCommand() {
-		Obj offer = callbacks.getOffer();
+	private void handleAcceptCommand(ExecutionContext context) {
+		Obj offer = context.callbacks.getOffer();
 		Chr chr = offer.getState().getCurrentOwner();
-		appendText("%s lays the %s on the ground and departs peacefully.",
+		appendText(context, "%s lays the %s on the ground and departs peacefully.",
 			Engine.getNameWithDefiniteArticle(chr, true), offer.getName());
-		world.move(offer, chr.getState().getCurrentScene());
-		world.move(chr, world.getStorageScene());
+		context.world.move(offer, chr.getState().getCurrentScene());
+		context.world.move(chr, context.world.getStorageScene());
 	}
 
-	private void handleAttack(Weapon weapon) {
-		Chr player = world.getPlayer();
-		Chr enemy = callbacks.getMonster();
+	private void handleAttack(ExecutionContext context, Weapon weapon) {
+		Chr player = context.world.getPlayer();
+		Chr enemy = context.callbacks.getMonster();
 		if (weapon.getType() == Obj.MAGICAL_OBJECT) {
 			Obj magicalObject = (Obj) weapon;
 			switch (magicalObject.getAttackType()) {
 				case Obj.HEALS_PHYSICAL_AND_SPIRITUAL_DAMAGE:
 				case Obj.HEALS_PHYSICAL_DAMAGE:
 				case Obj.HEALS_SPIRITUAL_DAMAGE:
-					callbacks.performMagic(player, enemy, magicalObject);
-					setHandled();
+					context.callbacks.performMagic(player, enemy, magicalObject);
+					setHandled(context);
 					return;
 			}
 		}
 		if (enemy != null)
-			callbacks.performAttack(player, enemy, weapon);
+			context.callbacks.performAttack(player, enemy, weapon);
 		else if (weapon.getType() == Obj.MAGICAL_OBJECT)
-			appendText("There is nobody to cast a spell at.");
+			appendText(context, "There is nobody to cast a spell at.");
 		else
-			appendText("There is no one to fight.");
-		setHandled();
+			appendText(context, "There is no one to fight.");
+		setHandled(context);
 	}
 
 	private boolean isWearing(Chr chr, Obj obj) {
@@ -1015,35 +1893,39 @@ public class Script {
 		return false;
 	}
 	
-	private void handleInventoryCommand() {
-		Chr player = world.getPlayer();
+	private void handleInventoryCommand(ExecutionContext context) {
+		Chr player = context.world.getPlayer();
 		List<Obj> objs = new ArrayList<Obj>();
-		for (Obj obj : player.getState().getInventory()) {
+		List<Obj> inventory = player.getState().getInventory();
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj obj = inventory.get(i);
 			if (!isWearing(player, obj)) {
 				objs.add(obj);
 			}
 		}
 		if (objs.isEmpty()) {
-			appendText("Your pack is empty.");			
+			appendText(context, "Your pack is empty.");			
 		} else {
 			StringBuilder sb = new StringBuilder("Your pack contains ");
 			appendObjNames(sb, objs);
-			appendText(sb.toString());
+			appendText(context, sb.toString());
 		}
 	}
 	
-	private void handleLookCommand() {
-		Scene playerScene = world.getPlayerScene();
-		appendText(playerScene.getText());
+	private void handleLookCommand(ExecutionContext context) {
+		Scene playerScene = context.world.getPlayerScene();
+		appendText(context, playerScene.getText());
 		String items = getGroundItemsList(playerScene);
 		if (items != null) {
-			appendText(items);
+			appendText(context, items);
 		}
 	}
 	
 	public static String getGroundItemsList(Scene scene) {
 		List<Obj> objs = new ArrayList<Obj>();
-		for (Obj obj : scene.getState().getObjs()) {
+		List<Obj> sceneObjs = scene.getState().getObjs();
+		for (int i = 0; i < sceneObjs.size(); i++) {
+			Obj obj = sceneObjs.get(i);
 			if (obj.getType() != Obj.IMMOBILE_OBJECT) {
 				objs.add(obj);
 			}
@@ -1075,14 +1957,15 @@ public class Script {
 		}
 	}
 
-	private void handleStatusCommand() {
-		Chr player = world.getPlayer();
-		appendText("Character name: " + Engine.getNameWithDefiniteArticle(player, false));
-		appendText("Experience: " + player.getContext().getExperience());
+	private void handleStatusCommand(ExecutionContext context) {
+		Chr player = context.world.getPlayer();
+		appendText(context, "Character name: " + Engine.getNameWithDefiniteArticle(player, false));
+		appendText(context, "Experience: " + player.getContext().getExperience());
 		int wealth = 0;
-		for (Obj o : player.getState().getInventory())
-			wealth += o.getValue();
-		appendText("Wealth: " + wealth);
+		List<Obj> inventory = player.getState().getInventory();
+		for (int i = 0; i < inventory.size(); i++)
+			wealth += inventory.get(i).getValue();
+		appendText(context, "Wealth: " + wealth);
 		String[] armorMessages = new String[] {
 			"Head protection: ",
 			"Chest protection: ",
@@ -1092,17 +1975,18 @@ public class Script {
 		for (int i = 0; i < Chr.NUMBER_OF_ARMOR_TYPES; i++) {
 			Obj armor = player.getState().getArmor(i);
 			if (armor != null) {
-				appendText(armorMessages[i] + armor);
+				appendText(context, armorMessages[i] + armor);
 			}
 		}
-		for (Obj o : player.getState().getInventory()) {
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj o = inventory.get(i);
 			int uses = o.getState().getNumberOfUses();
 			if (uses > 0) {
-				appendText("Your %s has %d uses left.", o.getName(), uses);
+				appendText(context, "Your %s has %d uses left.", o.getName(), uses);
 			}
 		}
-		printPlayerCondition(player);
-		callbacks.setCommandWasQuick();
+		printPlayerCondition(context, player);
+		context.callbacks.setCommandWasQuick();
 	}
 	
 	public static String getPercentMessage(Chr chr, double percent) {
@@ -1121,130 +2005,134 @@ public class Script {
 		}
 	}
 
-	private void printPlayerCondition(Chr player) {
+	private void printPlayerCondition(ExecutionContext context, Chr player) {
 		double physicalPercent = (double) player.getState().getCurrentPhysicalHp() / player.getState().getBasePhysicalHp();
 		double spiritualPercent = (double) player.getState().getCurrentSpiritualHp() / player.getState().getBaseSpiritualHp();
-		appendText("Your physical condition is " + getPercentMessage(player, physicalPercent) + ".");
-		appendText("Your spiritual condition is " + getPercentMessage(player, spiritualPercent) + ".");
+		appendText(context, "Your physical condition is " + getPercentMessage(player, physicalPercent) + ".");
+		appendText(context, "Your spiritual condition is " + getPercentMessage(player, spiritualPercent) + ".");
 	}
 
-	private void handleRestCommand() {
-		Chr player = world.getPlayer();
-		Chr enemy = callbacks.getMonster();
+	private void handleRestCommand(ExecutionContext context) {
+		Chr player = context.world.getPlayer();
+		Chr enemy = context.callbacks.getMonster();
 		if (enemy != null) {
-			appendText("This is no time to rest!");
-			callbacks.setCommandWasQuick();
+			appendText(context, "This is no time to rest!");
+			context.callbacks.setCommandWasQuick();
 		} else {
-			callbacks.regen();
-			printPlayerCondition(player);
+			context.callbacks.regen();
+			printPlayerCondition(context, player);
 		}
 	}
 
-	private void takeObj(Obj obj) {
-		Chr player = world.getPlayer();
+	private void takeObj(ExecutionContext context, Obj obj) {
+		Chr player = context.world.getPlayer();
 		if (player.getState().getInventory().size() >= player.getMaximumCarriedObjects()) {
-			appendText("Your pack is full, you must drop something.");
+			appendText(context, "Your pack is full, you must drop something.");
 		} else {
-			world.move(obj, world.getPlayer());
+			context.world.move(obj, context.world.getPlayer());
 			int type = Engine.wearObjIfPossible(player, obj);
+			context.world.noteChange(player);
 			if (type == Chr.HEAD_ARMOR) {
-				appendText("You are now wearing the " + obj.getName() + ".");
+				appendText(context, "You are now wearing the " + obj.getName() + ".");
 			} else if (type == Chr.BODY_ARMOR) {
-				appendText("You are now wearing the " + obj.getName() + ".");
+				appendText(context, "You are now wearing the " + obj.getName() + ".");
 			} else if (type == Chr.SHIELD_ARMOR) {
-				appendText("You are now wearing the " + obj.getName() + ".");
+				appendText(context, "You are now wearing the " + obj.getName() + ".");
 			} else if (type == Chr.MAGIC_ARMOR) {
-				appendText("You are now wearing the " + obj.getName() + ".");
+				appendText(context, "You are now wearing the " + obj.getName() + ".");
 			} else {
-				appendText("You now have the " + obj.getName() + ".");
+				appendText(context, "You now have the " + obj.getName() + ".");
 			}
-			appendText(obj.getClickMessage());
+			appendText(context, obj.getClickMessage());
 		}
 	}
 	
-	private void handleTakeCommand(String target) {
-		for (Obj o : world.getPlayerScene().getState().getObjs()) {
+	private void handleTakeCommand(ExecutionContext context, String target) {
+		List<Obj> objs = context.world.getPlayerScene().getState().getObjs();
+		for (int i = 0; i < objs.size(); i++) {
+			Obj o = objs.get(i);
 			if (target.contains(o.getName().toLowerCase())) {
 				if (o.getType() == Obj.IMMOBILE_OBJECT) {
-					appendText("You can't move it.");
+					appendText(context, "You can't move it.");
 				} else {
-					takeObj(o);
+					takeObj(context, o);
 				}
 				break;
 			}
 		}
 	}
 
-	private void handleDropCommand(String target) {
-		for (Obj o : world.getPlayer().getState().getInventory()) {
+	private void handleDropCommand(ExecutionContext context, String target) {
+		List<Obj> inventory = context.world.getPlayer().getState().getInventory();
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj o = inventory.get(i);
 			if (target.contains(o.getName().toLowerCase())) {
-				appendText("You no longer have the " + o.getName() + ".");
-				world.move(o, world.getPlayerScene());
+				appendText(context, "You no longer have the " + o.getName() + ".");
+				context.world.move(o, context.world.getPlayerScene());
 				break;
 			}
 		}
 	}
 
-	private void wearObj(Obj o, int pos) {
-		Chr player = world.getPlayer();
+	private void wearObj(ExecutionContext context, Obj o, int pos) {
+		Chr player = context.world.getPlayer();
 		if (player.getState().getArmor(pos) == o) {
-			appendText("You are already wearing the " + o.getName() + ".");
+			appendText(context, "You are already wearing the " + o.getName() + ".");
 		} else {
 			if (player.getState().getArmor(pos) != null) {
-				appendText("You are no longer wearing the " + player.getState().getArmor(pos).getName() + ".");
+				appendText(context, "You are no longer wearing the " + player.getState().getArmor(pos).getName() + ".");
 			}
 			player.getState().setArmor(pos, o);
-			appendText("You are now wearing the " + o.getName() + ".");
+			context.world.noteChange(player);
+			appendText(context, "You are now wearing the " + o.getName() + ".");
 		}
 	}
 	
-	private void handleWearCommand(String target) {
-		Chr player = world.getPlayer();
-		for (Obj o : player.getState().getInventory()) {
+	private void handleWearCommand(ExecutionContext context, String target) {
+		Chr player = context.world.getPlayer();
+		List<Obj> inventory = player.getState().getInventory();
+		for (int i = 0; i < inventory.size(); i++) {
+			Obj o = inventory.get(i);
 			if (target.contains(o.getName().toLowerCase())) {
 				if (o.getType() == Obj.HELMET) {
-					wearObj(o, Chr.HEAD_ARMOR);
+					wearObj(context, o, Chr.HEAD_ARMOR);
 				} else if (o.getType() == Obj.CHEST_ARMOR) {
-					wearObj(o, Chr.BODY_ARMOR);
+					wearObj(context, o, Chr.BODY_ARMOR);
 				} else if (o.getType() == Obj.SHIELD) {
-					wearObj(o, Chr.SHIELD_ARMOR);
+					wearObj(context, o, Chr.SHIELD_ARMOR);
 				} else if (o.getType() == Obj.SPIRITUAL_ARMOR) {
-					wearObj(o, Chr.MAGIC_ARMOR);
+					wearObj(context, o, Chr.MAGIC_ARMOR);
 				} else {
-					appendText("You cannot wear that object.");
+					appendText(context, "You cannot wear that object.");
 				}
 				break;
 			}
 		}
-		for (Obj o : player.getState().getCurrentScene().getState().getObjs()) {
+		List<Obj> objs = player.getState().getCurrentScene().getState().getObjs();
+		for (int i = 0; i < objs.size(); i++) {
+			Obj o = objs.get(i);
 			if (target.contains(o.getName().toLowerCase())) {
-				appendText("First you must get the " + o.getName() + ".");
+				appendText(context, "First you must get the " + o.getName() + ".");
 				break;
 			}
 		}
 	}
 
-	private void handleMoveCommand(int dir, String dirName) {
-		Scene playerScene = world.getPlayerScene();
+	private void handleMoveCommand(ExecutionContext context, int dir, String dirName) {
+		Scene playerScene = context.world.getPlayerScene();
 		String msg = playerScene.getDirMessage(dir);
-		if (!playerScene.isDirBlocked(dir)) {
-			int dx[] = new int[] { 0, 0, 1, -1 };
-			int dy[] = new int[] { -1, 1, 0, 0 };
-			int destX = playerScene.getWorldX() + dx[dir];
-			int destY = playerScene.getWorldY() + dy[dir];
-			Scene scene = world.getSceneAt(destX, destY);
-			if (scene != null) {
-				if (msg != null && msg.length() > 0) {
-					appendText(msg);
-				}
-				world.move(world.getPlayer(), scene);
-				return;
+		Scene scene = context.world.getExit(playerScene, dir);
+		if (scene != null) {
+			if (msg != null && msg.length() > 0) {
+				appendText(context, msg);
 			}
- 		}
+			context.world.move(context.world.getPlayer(), scene);
+			return;
+		}
 		if (msg != null && msg.length() > 0) {
-			appendText(msg);
+			appendText(context, msg);
 		} else {
-			appendText("You can't go " + dirName + ".");
+			appendText(context, "You can't go " + dirName + ".");
 		}
 	}
 
@@ -1268,20 +2156,21 @@ public class Script {
 		return sb.toString();
 	}
 
-	private String getCurrentLine() {
-		String[] lines = toString().split("\n");
-		int lineNumber = indexToLine(index);	
-		return lines[lineNumber];
+	// Returns the line holding the statement at the given offset, or null if
+	// it can't be decompiled.
+	String lineAt(int offset) {
+		try {
+			int lineNumber = 0;
+			for (char c : buildStringFromOffset(12, offset - 12).toCharArray())
+				if (c == '\n')
+					lineNumber++;
+			String[] lines = toString().split("\n");
+			return (lineNumber < lines.length ? lines[lineNumber] : null);
+		} catch (RuntimeException e) {
+			return null;
+		}
 	}
 
-	private int indexToLine(int index) {
-		int loc = 0;
-		for (char c : buildStringFromOffset(12, index).toCharArray())
-			if (c == '\n')
-				loc++;
-		return loc - 1;
-	}
-	
 	public int countLines() {
 		int loc = 0;
 		for (char c : toString().toCharArray())
@@ -0,0 +1,57 @@
+package com.googlecode.wage_engine.engine;
+
+/**
+ * A problem found in a script when it was loaded.
+ */
+public class ScriptDiagnostic {
+	/** The script stops running when it gets to this point. */
+	public static final int ERROR = 0;
+	/** The script can run, but probably not as its author intended. */
+	public static final int WARNING = 1;
+
+	private int severity;
+	private int offset;
+	private String line;
+	private String message;
+
+	public ScriptDiagnostic(int severity, int offset, String line, String message) {
+		this.severity = severity;
+		this.offset = offset;
+		this.line = line;
+		this.message = message;
+	}
+
+	public int getSeverity() {
+		return severity;
+	}
+
+	public boolean isError() {
+		return severity == ERROR;
+	}
+
+	/**
+	 * @return the offset in the script data of the statement with the problem
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the decompiled line of the script with the problem, or null
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		String s = (isError() ? "Error: " : "Warning: ") + message;
+		if (line != null)
+			s += " at " + line.trim();
+		return s;
+	}
+}
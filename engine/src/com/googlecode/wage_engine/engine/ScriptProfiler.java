@@ -0,0 +1,208 @@
+package com.googlecode.wage_engine.engine;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts how often script statements run and how long they take, per
+ * opcode, per script line and per scene. Profiling is off unless the JVM is
+ * started with -Dwage.profileScripts=true; when it is off the checks in
+ * Script compile away.
+ */
+public class ScriptProfiler {
+	public static final boolean ENABLED = Boolean.getBoolean("wage.profileScripts");
+
+	private static final String[] OPCODE_NAMES = new String[256];
+	static {
+		OPCODE_NAMES[0x80] = "IF";
+		OPCODE_NAMES[0x87] = "EXIT";
+		OPCODE_NAMES[0x88] = "END";
+		OPCODE_NAMES[0x89] = "MOVE";
+		OPCODE_NAMES[0x8B] = "PRINT";
+		OPCODE_NAMES[0x8C] = "SOUND";
+		OPCODE_NAMES[0x8E] = "LET";
+		OPCODE_NAMES[0x95] = "MENU";
+	}
+
+	private static long[] opcodeCounts = new long[256];
+	private static long[] opcodeNanos = new long[256];
+	private static Map<Script, ScriptStats> scripts = new IdentityHashMap<Script, ScriptStats>();
+
+	private static class ScriptStats {
+		public long runs;
+		public long nanos;
+		public Map<Integer, long[]> statements = new HashMap<Integer, long[]>();
+	}
+
+	/**
+	 * A count of executions and the total time they took.
+	 */
+	public static class Entry {
+		private String name;
+		private long count;
+		private long nanos;
+
+		public Entry(String name, long count, long nanos) {
+			this.name = name;
+			this.count = count;
+			this.nanos = nanos;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%10d %12.3f ms  %s", count, nanos / 1000000.0, name);
+		}
+	}
+
+	/**
+	 * The statistics gathered up to some point, each list sorted by total
+	 * time, most expensive first.
+	 */
+	public static class Snapshot {
+		private List<Entry> opcodes;
+		private List<Entry> lines;
+		private List<Entry> scenes;
+
+		public Snapshot(List<Entry> opcodes, List<Entry> lines, List<Entry> scenes) {
+			this.opcodes = opcodes;
+			this.lines = lines;
+			this.scenes = scenes;
+		}
+
+		public List<Entry> getOpcodes() {
+			return opcodes;
+		}
+
+		public List<Entry> getLines() {
+			return lines;
+		}
+
+		/**
+		 * @return the time spent in each scene's script, not counting the
+		 *         global script it calls
+		 */
+		public List<Entry> getScenes() {
+			return scenes;
+		}
+
+		public void dump(PrintStream out) {
+			dump(out, "Opcodes", opcodes);
+			dump(out, "Lines", lines);
+			dump(out, "Scenes", scenes);
+		}
+
+		private static void dump(PrintStream out, String title, List<Entry> entries) {
+			out.println(title + ":");
+			for (Entry entry : entries)
+				out.println(entry);
+		}
+	}
+
+	static synchronized void recordStatement(Script script, int offset, int opcode, long nanos) {
+		if (opcode >= 0) {
+			opcodeCounts[opcode]++;
+			opcodeNanos[opcode] += nanos;
+		}
+		ScriptStats stats = getStats(script);
+		long[] statement = stats.statements.get(offset);
+		if (statement == null) {
+			statement = new long[2];
+			stats.statements.put(offset, statement);
+		}
+		statement[0]++;
+		statement[1] += nanos;
+	}
+
+	static synchronized void recordRun(Script script, long nanos) {
+		ScriptStats stats = getStats(script);
+		stats.runs++;
+		stats.nanos += nanos;
+	}
+
+	private static ScriptStats getStats(Script script) {
+		ScriptStats stats = scripts.get(script);
+		if (stats == null) {
+			stats = new ScriptStats();
+			scripts.put(script, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * @param world used to name the scripts after their scenes
+	 */
+	public static synchronized Snapshot snapshot(World world) {
+		List<Entry> opcodes = new ArrayList<Entry>();
+		for (int i = 0; i < opcodeCounts.length; i++) {
+			if (opcodeCounts[i] > 0) {
+				String name = (OPCODE_NAMES[i] != null ? OPCODE_NAMES[i] : String.format("%02x", i));
+				opcodes.add(new Entry(name, opcodeCounts[i], opcodeNanos[i]));
+			}
+		}
+		Map<Script, String> names = new IdentityHashMap<Script, String>();
+		names.put(world.getGlobalScript(), "global script");
+		for (Scene scene : world.getOrderedScenes()) {
+			if (scene.getScript() != null)
+				names.put(scene.getScript(), scene.getName());
+		}
+		List<Entry> lines = new ArrayList<Entry>();
+		List<Entry> scenes = new ArrayList<Entry>();
+		for (Map.Entry<Script, ScriptStats> e : scripts.entrySet()) {
+			Script script = e.getKey();
+			ScriptStats stats = e.getValue();
+			String name = names.get(script);
+			if (name == null)
+				name = "script@" + Integer.toHexString(System.identityHashCode(script));
+			scenes.add(new Entry(name, stats.runs, stats.nanos));
+			for (Map.Entry<Integer, long[]> statement : stats.statements.entrySet()) {
+				String line = script.lineAt(statement.getKey());
+				if (line == null)
+					line = "offset " + statement.getKey();
+				long[] counts = statement.getValue();
+				lines.add(new Entry(name + ": " + line.trim(), counts[0], counts[1]));
+			}
+		}
+		sort(opcodes);
+		sort(lines);
+		sort(scenes);
+		return new Snapshot(opcodes, lines, scenes);
+	}
+
+	public static synchronized void reset() {
+		opcodeCounts = new long[256];
+		opcodeNanos = new long[256];
+		scripts.clear();
+	}
+
+	public static void dump(World world, PrintStream out) {
+		snapshot(world).dump(out);
+	}
+
+	private static void sort(List<Entry> entries) {
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				if (e1.nanos != e2.nanos)
+					return (e1.nanos > e2.nanos ? -1 : 1);
+				return e1.name.compareTo(e2.name);
+			}
+		});
+	}
+}
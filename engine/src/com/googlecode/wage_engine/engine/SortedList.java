@@ -0,0 +1,145 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.AbstractList;
+import java.util.Comparator;
+import java.util.RandomAccess;
+
+/**
+ * A list that keeps itself in order, for the contents of scenes and
+ * inventories: add() puts an element where it belongs instead of at the
+ * end, and remove() and contains() find it by binary search. Elements that
+ * compare as equal must be the same element, which holds for entities
+ * ordered by index.
+ *
+ * The elements are kept in an array, so inserting one moves the ones after
+ * it along by one; with the few hundred elements a scene holds at most, that
+ * costs less than keeping a tree. Walking the list with get() allocates
+ * nothing.
+ */
+public class SortedList<T> extends AbstractList<T> implements RandomAccess {
+	private Comparator<? super T> comparator;
+	private Object[] elements = new Object[4];
+	private int size;
+
+	public SortedList(Comparator<? super T> comparator) {
+		this.comparator = comparator;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return (T) elements[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the element in order, unless it is already in the list.
+	 * @return whether it was added
+	 */
+	@Override
+	public boolean add(T element) {
+		int index = search(element);
+		if (index >= 0)
+			return false;
+		index = -(index + 1);
+		if (size == elements.length) {
+			Object[] result = new Object[size * 2];
+			System.arraycopy(elements, 0, result, 0, size);
+			elements = result;
+		}
+		System.arraycopy(elements, index, elements, index + 1, size - index);
+		elements[index] = element;
+		size++;
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * The position of an element is decided by its order, so it can't be
+	 * given.
+	 */
+	@Override
+	public void add(int index, T element) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public T remove(int index) {
+		T element = get(index);
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		elements[--size] = null;
+		modCount++;
+		return element;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		int index = indexOf(o);
+		if (index < 0)
+			return false;
+		remove(index);
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public int indexOf(Object o) {
+		if (o == null)
+			return -1;
+		int index;
+		try {
+			index = search((T) o);
+		} catch (ClassCastException e) {
+			return -1;
+		}
+		return (index >= 0 && elements[index] == o ? index : -1);
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < size; i++)
+			elements[i] = null;
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * @return the index of the element if it's in the list, otherwise
+	 *         -(the index it would go at) - 1
+	 */
+	@SuppressWarnings("unchecked")
+	private int search(T element) {
+		// elements mostly get added in order, e.g. when restoring a game
+		if (size == 0 || comparator.compare((T) elements[size - 1], element) < 0)
+			return -(size + 1);
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int c = comparator.compare((T) elements[middle], element);
+			if (c < 0)
+				low = middle + 1;
+			else if (c > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+}
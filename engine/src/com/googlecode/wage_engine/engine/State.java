@@ -6,7 +6,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 
-public class State {
+public class State implements Cloneable {
 
 	public static final int VARS_INDEX = 0x005E;
 	public static final int SCENES_INDEX = 0x0232;
@@ -71,6 +71,27 @@ public class State {
 		userVars = new short[26 * 9];
 	}
 
+	/**
+	 * @return a state with its own copies of the user variables and the
+	 *         scene, character and object data
+	 */
+	public State copy() {
+		try {
+			State copy = (State) clone();
+			if (userVars != null)
+				copy.userVars = userVars.clone();
+			if (sceneData != null)
+				copy.sceneData = sceneData.clone();
+			if (chrData != null)
+				copy.chrData = chrData.clone();
+			if (objData != null)
+				copy.objData = objData.clone();
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public short getNumScenes() {
 		return numScenes;
 	}
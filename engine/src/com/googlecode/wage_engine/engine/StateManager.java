@@ -407,6 +407,8 @@ public class StateManager {
 					}
 				}
 
+				world.publishSceneViews();
+
 				// we're done -- restart our game engine
 				return true;
 
@@ -0,0 +1,131 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds which of a fixed set of words occur in a line of input, using an
+ * Aho-Corasick automaton so the input is scanned once no matter how many
+ * words there are. Words are matched case-insensitively against input that
+ * has already been lowercased.
+ */
+public class TextMatcher {
+	private static final int ALPHABET = 128;
+
+	private Map<String, Integer> patterns = new HashMap<String, Integer>();
+	private List<int[]> transitions = new ArrayList<int[]>();
+	private List<int[]> outputs = new ArrayList<int[]>();
+	private int[][] next;
+	private int[][] matches;
+
+	public TextMatcher() {
+		newNode();
+	}
+
+	/**
+	 * Adds a word to look for. Words with characters outside of ASCII can't be
+	 * matched and are not added.
+	 * @return the index of the word in the sets returned by match(), or -1
+	 */
+	public int add(String pattern) {
+		if (next != null)
+			throw new IllegalStateException("TextMatcher has already been built");
+		pattern = pattern.toLowerCase();
+		Integer existing = patterns.get(pattern);
+		if (existing != null)
+			return existing;
+		if (pattern.length() == 0)
+			return -1;
+		for (int i = 0; i < pattern.length(); i++) {
+			if (pattern.charAt(i) >= ALPHABET)
+				return -1;
+		}
+		int node = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			int c = pattern.charAt(i);
+			if (transitions.get(node)[c] == 0)
+				transitions.get(node)[c] = newNode();
+			node = transitions.get(node)[c];
+		}
+		int index = patterns.size();
+		patterns.put(pattern, index);
+		outputs.set(node, append(outputs.get(node), index));
+		return index;
+	}
+
+	/**
+	 * Computes the failure transitions. No more words can be added afterwards.
+	 */
+	public void build() {
+		int count = transitions.size();
+		next = transitions.toArray(new int[count][]);
+		matches = outputs.toArray(new int[count][]);
+		int[] fail = new int[count];
+		int[] queue = new int[count];
+		int head = 0, tail = 0;
+		for (int c = 0; c < ALPHABET; c++) {
+			if (next[0][c] != 0)
+				queue[tail++] = next[0][c];
+		}
+		while (head < tail) {
+			int node = queue[head++];
+			if (fail[node] != node)
+				matches[node] = merge(matches[node], matches[fail[node]]);
+			for (int c = 0; c < ALPHABET; c++) {
+				int child = next[node][c];
+				if (child != 0) {
+					fail[child] = next[fail[node]][c];
+					queue[tail++] = child;
+				} else {
+					next[node][c] = next[fail[node]][c];
+				}
+			}
+		}
+		transitions = null;
+		outputs = null;
+	}
+
+	/**
+	 * @return the indices of the words occurring in the given lowercase text
+	 */
+	public BitSet match(String text) {
+		BitSet result = new BitSet(patterns.size());
+		int node = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int c = text.charAt(i);
+			node = (c < ALPHABET ? next[node][c] : 0);
+			for (int index : matches[node])
+				result.set(index);
+		}
+		return result;
+	}
+
+	public int size() {
+		return patterns.size();
+	}
+
+	private int newNode() {
+		transitions.add(new int[ALPHABET]);
+		outputs.add(new int[0]);
+		return transitions.size() - 1;
+	}
+
+	private static int[] append(int[] array, int value) {
+		int[] result = new int[array.length + 1];
+		System.arraycopy(array, 0, result, 0, array.length);
+		result[array.length] = value;
+		return result;
+	}
+
+	private static int[] merge(int[] a, int[] b) {
+		if (b.length == 0)
+			return a;
+		int[] result = new int[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
@@ -0,0 +1,274 @@
+package com.googlecode.wage_engine.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays transcripts of games and compares what the engine says against
+ * golden files, so changes to the engine can be checked without playing
+ * through worlds by hand.
+ *
+ * A transcript is a text file with one command per line. "/seed n" sets the
+ * seed of the game's Random (0 if there is none), "/click name" clicks on
+ * the object or character of that name in the player's scene, lines starting
+ * with '#' are ignored and everything else is typed in. The output of a
+ * transcript is each command after "> ", followed by what the engine said.
+ * Each transcript is played in its own WorldInstance, so any number of them
+ * can run at once.
+ */
+public class TranscriptRunner {
+	private WorldDefinition definition;
+	private ExecutorService executor;
+
+	public static class Transcript {
+		private String name;
+		private long seed;
+		private List<String> commands;
+
+		public Transcript(String name, long seed, List<String> commands) {
+			this.name = name;
+			this.seed = seed;
+			this.commands = commands;
+		}
+
+		public static Transcript read(File file) throws IOException {
+			long seed = 0;
+			List<String> commands = new ArrayList<String>();
+			for (String line : readLines(file)) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				if (line.startsWith("/seed "))
+					seed = Long.parseLong(line.substring(6).trim());
+				else
+					commands.add(line);
+			}
+			return new Transcript(file.getPath(), seed, commands);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSeed() {
+			return seed;
+		}
+
+		public List<String> getCommands() {
+			return commands;
+		}
+	}
+
+	/**
+	 * What a transcript produced and how it compares to the golden file.
+	 */
+	public static class Result {
+		private Transcript transcript;
+		private String output;
+		private String difference;
+
+		public Result(Transcript transcript, String output, String difference) {
+			this.transcript = transcript;
+			this.output = output;
+			this.difference = difference;
+		}
+
+		public Transcript getTranscript() {
+			return transcript;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+		public boolean isPassed() {
+			return difference == null;
+		}
+
+		/**
+		 * @return a description of the first line that differs from the
+		 *         golden file, or null if they are the same
+		 */
+		public String getDifference() {
+			return difference;
+		}
+	}
+
+	public TranscriptRunner(WorldDefinition definition) {
+		this(definition, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+	}
+
+	public TranscriptRunner(WorldDefinition definition, ExecutorService executor) {
+		this.definition = definition;
+		this.executor = executor;
+	}
+
+	public String play(Transcript transcript) {
+		HeadlessSession session = new HeadlessSession(definition.newInstance(), new Random(transcript.getSeed()));
+		StringBuilder output = new StringBuilder();
+		output.append(session.start().getText());
+		for (String command : transcript.getCommands()) {
+			output.append("> ").append(command).append("\n");
+			HeadlessSession.Turn turn;
+			if (command.startsWith("/click ")) {
+				turn = session.click(command.substring(7).trim());
+				if (turn == null) {
+					output.append("[nothing to click]\n");
+					continue;
+				}
+			} else {
+				turn = session.command(command);
+			}
+			output.append(turn.getText());
+			if (turn.isGameOver()) {
+				output.append("[game over]\n");
+				break;
+			}
+		}
+		return output.toString();
+	}
+
+	/**
+	 * Plays the transcripts at the same time and compares each one's output
+	 * to its golden file.
+	 */
+	public List<Result> verify(List<Transcript> transcripts, final List<File> goldenFiles) throws InterruptedException {
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (int i = 0; i < transcripts.size(); i++) {
+			final Transcript transcript = transcripts.get(i);
+			final File golden = goldenFiles.get(i);
+			futures.add(executor.submit(new Callable<Result>() {
+				public Result call() throws IOException {
+					String output = play(transcript);
+					return new Result(transcript, output, compare(readFile(golden), output));
+				}
+			}));
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (ExecutionException e) {
+				results.add(new Result(transcripts.get(i), null, "failed: " + e.getCause()));
+			}
+		}
+		return results;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the first line that differs, or null if there is none
+	 */
+	public static String compare(String expected, String actual) {
+		String[] expectedLines = expected.split("\n", -1);
+		String[] actualLines = actual.split("\n", -1);
+		int count = Math.min(expectedLines.length, actualLines.length);
+		for (int i = 0; i < count; i++) {
+			if (!expectedLines[i].equals(actualLines[i])) {
+				return String.format("line %d: expected \"%s\" but got \"%s\"",
+					i + 1, expectedLines[i], actualLines[i]);
+			}
+		}
+		if (expectedLines.length > count)
+			return String.format("line %d: expected \"%s\" but the output ended", count + 1, expectedLines[count]);
+		if (actualLines.length > count)
+			return String.format("line %d: expected the output to end but got \"%s\"", count + 1, actualLines[count]);
+		return null;
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	private static String readFile(File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String line : readLines(file))
+			sb.append(line).append("\n");
+		return sb.toString();
+	}
+
+	private static File goldenFileFor(File transcript) {
+		String path = transcript.getPath();
+		int dot = path.lastIndexOf('.');
+		if (dot > path.lastIndexOf(File.separatorChar))
+			path = path.substring(0, dot);
+		return new File(path + ".golden");
+	}
+
+	/**
+	 * Replays each transcript and compares it against the file next to it
+	 * with the extension .golden. With -update, the golden files are
+	 * written instead.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		boolean update = false;
+		List<File> files = new ArrayList<File>();
+		File worldFile = null;
+		for (String arg : args) {
+			if (arg.equals("-update"))
+				update = true;
+			else if (worldFile == null)
+				worldFile = new File(arg);
+			else
+				files.add(new File(arg));
+		}
+		if (worldFile == null || files.isEmpty()) {
+			System.err.println("Usage: TranscriptRunner [-update] world-file transcript...");
+			System.exit(1);
+		}
+		TranscriptRunner runner = new TranscriptRunner(WorldDefinition.load(worldFile));
+		List<Transcript> transcripts = new ArrayList<Transcript>();
+		List<File> goldenFiles = new ArrayList<File>();
+		for (File file : files) {
+			transcripts.add(Transcript.read(file));
+			goldenFiles.add(goldenFileFor(file));
+		}
+		int failures = 0;
+		if (update) {
+			for (int i = 0; i < transcripts.size(); i++) {
+				Writer out = new OutputStreamWriter(new FileOutputStream(goldenFiles.get(i)), "UTF-8");
+				try {
+					out.write(runner.play(transcripts.get(i)));
+				} finally {
+					out.close();
+				}
+			}
+		} else {
+			for (Result result : runner.verify(transcripts, goldenFiles)) {
+				if (!result.isPassed()) {
+					failures++;
+					System.out.println("FAIL " + result.getTranscript().getName() + ": " + result.getDifference());
+				}
+			}
+			System.out.printf("%d of %d transcripts passed\n", transcripts.size() - failures, transcripts.size());
+		}
+		runner.shutdown();
+		System.exit(failures == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,75 @@
+package com.googlecode.wage_engine.engine;
+
+/**
+ * The last few turns of a game, so that they can be taken back one at a
+ * time. Only the snapshot after the latest turn is kept whole; each turn
+ * before it is kept as the delta that gets the previous snapshot back. The
+ * delta is made from what the world noted as changing during the turn, so
+ * a turn costs time and memory in proportion to what it changed rather than
+ * to the size of the world. Turns that change nothing in the world aren't
+ * kept. When the history is full, the oldest turn is dropped.
+ */
+public class UndoHistory {
+	private WorldSnapshot.Delta[] deltas;
+	private int next;
+	private int count;
+	private World world;
+	// kept up to date after each turn, and never handed out
+	private WorldSnapshot current;
+
+	/**
+	 * @param current the state of the game now, which becomes the history's
+	 *                own
+	 */
+	public UndoHistory(int capacity, World world, WorldSnapshot current) {
+		this.deltas = new WorldSnapshot.Delta[capacity];
+		this.world = world;
+		reset(current);
+	}
+
+	/**
+	 * Forgets every turn, e.g. after loading a game.
+	 * @param current the state of the game now, which becomes the history's
+	 *                own
+	 */
+	public void reset(WorldSnapshot current) {
+		for (int i = 0; i < deltas.length; i++)
+			deltas[i] = null;
+		next = 0;
+		count = 0;
+		this.current = current;
+		world.clearChanges();
+	}
+
+	/**
+	 * Adds a turn, once it is over.
+	 */
+	public void record(Engine engine) {
+		WorldSnapshot.Delta delta = current.update(world);
+		engine.saveEngineState(current);
+		if (delta.isEmpty() || deltas.length == 0)
+			return;
+		deltas[next] = delta;
+		next = (next + 1) % deltas.length;
+		if (count < deltas.length)
+			count++;
+	}
+
+	/**
+	 * Takes back the latest turn.
+	 * @return the state of the game before it, or null if there are no
+	 *         turns left to take back
+	 */
+	public WorldSnapshot undo() {
+		if (count == 0)
+			return null;
+		next = (next + deltas.length - 1) % deltas.length;
+		WorldSnapshot.Delta delta = deltas[next];
+		deltas[next] = null;
+		count--;
+		current = current.apply(delta);
+		// putting the world back doesn't go through the hooks
+		world.clearChanges();
+		return current.copy();
+	}
+}
@@ -1,14 +1,16 @@
 package com.googlecode.wage_engine.engine;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.random.RandomGenerator;
 
 public class World {
 	public static final String STORAGE = "STORAGE@";
@@ -38,10 +40,31 @@ public class World {
 	private List<Obj> orderedObjs;
 	private List<Chr> orderedChrs;
 	private List<Sound> orderedSounds;
+	private Scene[] sceneArray;
+	private Obj[] objArray;
+	private Chr[] chrArray;
+	private SceneGrid sceneGrid;
+	private volatile AtomicReferenceArray<SceneView> sceneViews;
+	private ResourceIdIndex sceneIds;
+	private ResourceIdIndex objIds;
+	private ResourceIdIndex chrIds;
 	private List<byte[]> patterns;
 	private Scene storageScene;
 	private Chr player;
 	private List<MoveListener> moveListeners;
+	private List<MoveBatchListener> moveBatchListeners;
+	private List<MoveEvent> moveBatch;
+	// where each thing that moved during the batch has its event in it
+	private Map<Object, Integer> moveBatchIndex;
+	private int moveBatchDepth;
+	// what has changed since clearChanges(), by index; scenes are indexed
+	// as in WorldSnapshot, with the storage scene at 0
+	private BitSet changedScenes = new BitSet();
+	private BitSet changedChrs = new BitSet();
+	private BitSet changedObjs = new BitSet();
+	private boolean userVariablesChanged;
+	private List<String> unresolvedNames;
+	private TextMatcher textMatcher;
 
 	private State currentState;
 	
@@ -55,17 +78,25 @@ public class World {
 		orderedObjs = new ArrayList<Obj>();
 		orderedChrs = new ArrayList<Chr>();
 		orderedSounds = new ArrayList<Sound>();
+		sceneIds = new ResourceIdIndex();
+		objIds = new ResourceIdIndex();
+		chrIds = new ResourceIdIndex();
 		patterns = new ArrayList<byte[]>();
 		SceneImpl storage = new SceneImpl();
 		storage.setName(STORAGE);
 		storageScene = storage;
 		orderedScenes.add(storageScene);
+		sceneIds.add(storageScene.getResourceID());
 		scenes.put(STORAGE, storageScene);
 		reset();
 	}
 
 	public void reset() {
 		moveListeners = new LinkedList<MoveListener>();
+		moveBatchListeners = new LinkedList<MoveBatchListener>();
+		moveBatch = new ArrayList<MoveEvent>();
+		moveBatchIndex = new IdentityHashMap<Object, Integer>();
+		moveBatchDepth = 0;
 	}
 	
 	public Scene getStorageScene() {
@@ -75,6 +106,9 @@ public class World {
 	public void addScene(SceneImpl room) {
 		if (room.getName() != null)
 			scenes.put(room.getName().toLowerCase(), room);
+		sceneArray = null;
+		sceneGrid = null;
+		sceneViews = null;
 		
 		// this is kind of a hack ... having the first scene in orderedScenes be the storage scene throws off
 		// my method for calculating a hex offset for the save files
@@ -82,18 +116,23 @@ public class World {
 			room.setIndex(orderedScenes.size() - 1);
 
 		orderedScenes.add(room);
+		sceneIds.add(room.getResourceID());
 	}
 
 	public void addObj(ObjImpl obj) {
 		objs.put(obj.getName().toLowerCase(), obj);
+		objArray = null;
 		obj.setIndex(orderedObjs.size());
 		orderedObjs.add(obj);
+		objIds.add(obj.getResourceID());
 	}
 
 	public void addChr(ChrImpl chr) {
 		chrs.put(chr.getName().toLowerCase(), chr);
+		chrArray = null;
 		chr.setIndex(orderedChrs.size());
 		orderedChrs.add(chr);
+		chrIds.add(chr.getResourceID());
 	}
 
 	public void addSound(Sound sound) {
@@ -113,6 +152,71 @@ public class World {
 		return globalScript;
 	}
 
+	/**
+	 * Resolves the scene, object and character names used in the global and
+	 * scene scripts. Should be called once the world has been fully loaded.
+	 * @return the names scripts use as entities that don't match any of them
+	 */
+	public List<String> bindScripts() {
+		TextMatcher matcher = new TextMatcher();
+		unresolvedNames = new ArrayList<String>();
+		if (globalScript != null)
+			globalScript.bind(this, matcher, unresolvedNames);
+		for (Scene scene : orderedScenes) {
+			if (scene.getScript() != null)
+				scene.getScript().bind(this, matcher, unresolvedNames);
+		}
+		matcher.build();
+		textMatcher = matcher;
+		return unresolvedNames;
+	}
+
+	/**
+	 * Copies everything but the scenes, objects, characters, sounds and
+	 * state from another world, sharing its patterns and text matcher.
+	 */
+	void copySettings(World from) {
+		name = from.name;
+		signature = from.signature;
+		creatorCode = from.creatorCode;
+		aboutMessage = from.aboutMessage;
+		soundLibrary1 = from.soundLibrary1;
+		soundLibrary2 = from.soundLibrary2;
+		weaponsMenuDisabled = from.weaponsMenuDisabled;
+		aboutMenuItemName = from.aboutMenuItemName;
+		weaponsMenuName = from.weaponsMenuName;
+		commandsMenuName = from.commandsMenuName;
+		defaultCommandsMenu = from.defaultCommandsMenu;
+		saveBeforeCloseMessage = from.saveBeforeCloseMessage;
+		saveBeforeQuitMessage = from.saveBeforeQuitMessage;
+		gameOverMessage = from.gameOverMessage;
+		revertMessage = from.revertMessage;
+		patterns = from.patterns;
+		unresolvedNames = from.unresolvedNames;
+		textMatcher = from.textMatcher;
+	}
+
+	/**
+	 * Scripts are bound to the scenes, objects and characters of the world
+	 * they were loaded with; this returns the one standing in for the given
+	 * entity in this world.
+	 */
+	Object getInstanceOf(Object entity) {
+		return entity;
+	}
+
+	public List<String> getUnresolvedNames() {
+		return unresolvedNames;
+	}
+
+	/**
+	 * @return the matcher for the words scripts look for in text input, or
+	 *         null if the scripts haven't been bound yet
+	 */
+	public TextMatcher getTextMatcher() {
+		return textMatcher;
+	}
+
 	public Map<String, Scene> getScenes() {
 		return scenes;
 	}
@@ -126,17 +230,46 @@ public class World {
 	}
 	
 	public Scene getSceneByID(short resourceID) {
-		for (Scene scene : getOrderedScenes()) {
-			if (scene.getResourceID() == resourceID) {
-				return scene;
-			}
-		}
-		return null;
+		int ordinal = sceneIds.get(resourceID);
+		return (ordinal == -1 ? null : orderedScenes.get(ordinal));
 	}
 	
-	public Scene getRandomScene() {
+	public Scene getRandomScene(RandomGenerator random) {
 		// Not including storage:
-		return getOrderedScenes().get(1 + (int) (Math.random() * getOrderedScenes().size() - 1));
+		return getOrderedScenes().get(1 + (int) (random.nextDouble() * getOrderedScenes().size() - 1));
+	}
+
+	/**
+	 * @return the values of getScenes() as an array that is only rebuilt
+	 *         when a scene is added, so it must not be modified
+	 */
+	public Scene[] getSceneArray() {
+		Scene[] result = sceneArray;
+		if (result == null)
+			sceneArray = result = scenes.values().toArray(new Scene[scenes.size()]);
+		return result;
+	}
+
+	/**
+	 * @return the values of getObjs() as an array that is only rebuilt
+	 *         when an object is added, so it must not be modified
+	 */
+	public Obj[] getObjArray() {
+		Obj[] result = objArray;
+		if (result == null)
+			objArray = result = objs.values().toArray(new Obj[objs.size()]);
+		return result;
+	}
+
+	/**
+	 * @return the values of getChrs() as an array that is only rebuilt
+	 *         when a character is added, so it must not be modified
+	 */
+	public Chr[] getChrArray() {
+		Chr[] result = chrArray;
+		if (result == null)
+			chrArray = result = chrs.values().toArray(new Chr[chrs.size()]);
+		return result;
 	}
 
 	public Scene getSceneByHexOffset(int offset) {
@@ -153,12 +286,8 @@ public class World {
 	}
 
 	public Chr getCharByID(short resourceID) {
-		for (Chr chr : getOrderedChrs()) {
-			if (chr.getResourceID() == resourceID) {
-				return chr;
-			}
-		}
-		return null;
+		int ordinal = chrIds.get(resourceID);
+		return (ordinal == -1 ? null : orderedChrs.get(ordinal));
 	}
 
 	public Chr getCharByHexOffset(int offset) {
@@ -170,12 +299,8 @@ public class World {
 	}
 
 	public Obj getObjByID(short resourceID) {
-		for (Obj obj : getOrderedObjs()) {
-			if (obj.getResourceID() == resourceID) {
-				return obj;
-			}
-		}
-		return null;
+		int ordinal = objIds.get(resourceID);
+		return (ordinal == -1 ? null : orderedObjs.get(ordinal));
 	}
 
 	public Obj getObjByHexOffset(int offset) {
@@ -202,27 +327,48 @@ public class World {
 		this.player = player;
 	}
 	
+	/**
+	 * @return the grid of scenes, which is only rebuilt when a scene is added
+	 */
+	private SceneGrid getSceneGrid() {
+		SceneGrid result = sceneGrid;
+		if (result == null)
+			sceneGrid = result = new SceneGrid(orderedScenes, storageScene);
+		return result;
+	}
+
 	public Scene getSceneAt(int x, int y) {
-		for (Scene scene : scenes.values()) {
-			if (scene != storageScene && scene.getWorldX() == x && scene.getWorldY() == y) {
-				return scene;
-			}
+		return getSceneGrid().getSceneAt(x, y);
+	}
+
+	/**
+	 * @return the scene reached by going from a scene in one of the four
+	 *         directions, or null if the way is blocked or leads nowhere
+	 */
+	public Scene getExit(Scene scene, int dir) {
+		return getSceneGrid().getExit(scene, dir);
+	}
+
+	/**
+	 * @return whether one of the scene's exits leads to the other scene
+	 */
+	public boolean isAdjacent(Scene scene, Scene other) {
+		SceneGrid grid = getSceneGrid();
+		for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++) {
+			Scene exit = grid.getExit(scene, dir);
+			if (exit != null && exit == other)
+				return true;
 		}
-		return null;
+		return false;
 	}
 
 	public Set<Scene> getAdjacentScenes(Scene scene) {
 		Set<Scene> scenes = new HashSet<Scene>();
-		if (scene != null) {
-			int x = scene.getWorldX();
-			int y = scene.getWorldY();
-			int dx[] = new int[] { 0, 0, 1, -1 };
-			int dy[] = new int[] { -1, 1, 0, 0 };
-			for (int dir : new int[] { Scene.NORTH, Scene.EAST, Scene.SOUTH, Scene.WEST }) {
-				if (!scene.isDirBlocked(dir)) {
-					scenes.add(getSceneAt(x + dx[dir], y + dy[dir]));
-				}
-			}
+		SceneGrid grid = getSceneGrid();
+		for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++) {
+			Scene exit = grid.getExit(scene, dir);
+			if (exit != null)
+				scenes.add(exit);
 		}
 		return scenes;
 	}
@@ -250,12 +396,163 @@ public class World {
 	public interface MoveListener {
 		public void onMove(MoveEvent event);
 	}
+
+	/**
+	 * Hears about moves once a batch of them is over, e.g. to redraw the
+	 * scene once for everything that moved during a turn.
+	 */
+	public interface MoveBatchListener {
+		/**
+		 * @param events one event for each thing that moved, in the order
+		 *               they first moved, going from where it was before
+		 *               the batch to where it is after it
+		 */
+		public void onMoves(List<MoveEvent> events);
+	}
 	
+	/**
+	 * Tells the MoveListeners about the move right away and adds it to the
+	 * batch. A move made outside of a batch is a batch of its own, which also
+	 * takes in any moves the MoveListeners make in response to it.
+	 */
 	private void fireMoveEvent(MoveEvent event) {
-		for (MoveListener ml : moveListeners)
-			ml.onMove(event);
+		beginMoveBatch();
+		try {
+			addToMoveBatch(event);
+			for (MoveListener ml : moveListeners)
+				ml.onMove(event);
+		} finally {
+			commitMoveBatch();
+		}
+	}
+
+	private void addToMoveBatch(MoveEvent event) {
+		Integer index = moveBatchIndex.get(event.getWhat());
+		if (index != null) {
+			MoveEvent earlier = moveBatch.get(index);
+			moveBatch.set(index, new MoveEvent(event.getWhat(), earlier.getFrom(), event.getTo()));
+		} else {
+			moveBatchIndex.put(event.getWhat(), moveBatch.size());
+			moveBatch.add(event);
+		}
+	}
+
+	/**
+	 * Starts holding back moves from the MoveBatchListeners until the
+	 * matching commitMoveBatch(). Batches can be nested; only the outermost
+	 * one is delivered.
+	 */
+	public void beginMoveBatch() {
+		moveBatchDepth++;
+	}
+
+	/**
+	 * Ends a batch. Once the outermost one is over, the views of the scenes
+	 * whose contents changed are published before the MoveBatchListeners
+	 * hear about the moves.
+	 */
+	public void commitMoveBatch() {
+		if (--moveBatchDepth > 0 || moveBatch.isEmpty())
+			return;
+		List<MoveEvent> events = moveBatch;
+		moveBatch = new ArrayList<MoveEvent>();
+		moveBatchIndex.clear();
+		synchronized (this) {
+			AtomicReferenceArray<SceneView> views = getSceneViews();
+			for (MoveEvent event : events) {
+				publishSceneView(views, event.getFrom());
+				publishSceneView(views, event.getTo());
+			}
+		}
+		for (MoveBatchListener mbl : moveBatchListeners)
+			mbl.onMoves(events);
 	}
 	
+	private AtomicReferenceArray<SceneView> getSceneViews() {
+		AtomicReferenceArray<SceneView> result = sceneViews;
+		if (result == null)
+			sceneViews = result = new AtomicReferenceArray<SceneView>(orderedScenes.size());
+		return result;
+	}
+
+	private void publishSceneView(AtomicReferenceArray<SceneView> views, Object where) {
+		if (where instanceof Scene && where != storageScene) {
+			Scene scene = (Scene) where;
+			views.set(scene.getIndex() + 1, SceneView.of(scene));
+		}
+	}
+
+	/**
+	 * Publishes the views of every scene, for when their contents have been
+	 * changed without firing move events, e.g. by loading a saved game.
+	 */
+	public void publishSceneViews() {
+		synchronized (this) {
+			AtomicReferenceArray<SceneView> views = getSceneViews();
+			for (Scene scene : orderedScenes)
+				publishSceneView(views, scene);
+		}
+	}
+
+	/**
+	 * What was in the scene at the end of the last batch of moves. This can
+	 * be called from any thread, e.g. to draw the scene, and doesn't wait for
+	 * the engine.
+	 * @return the view of the scene; the storage scene's is always empty
+	 */
+	public SceneView getSceneView(Scene scene) {
+		AtomicReferenceArray<SceneView> views = sceneViews;
+		int index = (scene == storageScene ? 0 : scene.getIndex() + 1);
+		SceneView view = null;
+		if (views != null && index < views.length())
+			view = views.get(index);
+		return (view == null ? new SceneView(scene) : view);
+	}
+
+	/**
+	 * Notes that the state of a scene is changing, so that the undo history
+	 * only has to look at what did. Everything that changes the state of a
+	 * scene, character or object during a game has to call one of these.
+	 */
+	void noteChange(Scene scene) {
+		changedScenes.set(scene == storageScene ? 0 : scene.getIndex() + 1);
+	}
+
+	void noteChange(Chr chr) {
+		changedChrs.set(chr.getIndex());
+	}
+
+	void noteChange(Obj obj) {
+		changedObjs.set(obj.getIndex());
+	}
+
+	void noteUserVariablesChange() {
+		userVariablesChanged = true;
+	}
+
+	BitSet getChangedScenes() {
+		return changedScenes;
+	}
+
+	BitSet getChangedChrs() {
+		return changedChrs;
+	}
+
+	BitSet getChangedObjs() {
+		return changedObjs;
+	}
+
+	boolean haveUserVariablesChanged() {
+		return userVariablesChanged;
+	}
+
+	void clearChanges() {
+		changedScenes.clear();
+		changedChrs.clear();
+		changedObjs.clear();
+		userVariablesChanged = false;
+	}
+
 	public void addMoveListener(MoveListener ml) {
 		moveListeners.add(ml);
 	}
@@ -264,9 +561,18 @@ public class World {
 		moveListeners.remove(ml);
 	}
 
+	public void addMoveBatchListener(MoveBatchListener mbl) {
+		moveBatchListeners.add(mbl);
+	}
+
+	public void removeMoveBatchListener(MoveBatchListener mbl) {
+		moveBatchListeners.remove(mbl);
+	}
+
 	private Chr removeFromChr(Obj obj) {
 		Chr owner = obj.getState().getCurrentOwner();
 		if (owner != null) {
+			noteChange(owner);
 			owner.getState().getInventory().remove(obj);
 			for (int i = 0; i < Chr.NUMBER_OF_ARMOR_TYPES; i++) {
 				if (owner.getState().getArmor(i) == obj) {
@@ -292,14 +598,10 @@ public class World {
 			return;
 		Object from;
 		synchronized (this) {
+			noteChange(obj);
 			from = removeFromCharOrScene(obj);
 			obj.getState().setCurrentOwner(chr);
 			chr.getState().getInventory().add(obj);
-			Collections.sort(chr.getState().getInventory(), new Comparator<Obj>() {
-				public int compare(Obj o1, Obj o2) {
-					return o1.getIndex() - o2.getIndex();
-				}
-			});
 		}
 		fireMoveEvent(new MoveEvent(obj, from, chr));
 	}
@@ -309,19 +611,10 @@ public class World {
 			return;
 		Object from;
 		synchronized (this) {
+			noteChange(obj);
 			from = removeFromCharOrScene(obj);
 			obj.getState().setCurrentScene(scene);
 			scene.getState().getObjs().add(obj);
-			Collections.sort(scene.getState().getObjs(), new Comparator<Obj>() {
-				public int compare(Obj o1, Obj o2) {
-					boolean o1Immobile = (o1.getType() == Obj.IMMOBILE_OBJECT);
-					boolean o2Immobile = (o2.getType() == Obj.IMMOBILE_OBJECT);
-					if (o1Immobile == o2Immobile) {
-						return o1.getIndex() - o2.getIndex();					
-					}
-					return (o1Immobile ? -1 : 1);
-				}
-			});
 		}
 		fireMoveEvent(new MoveEvent(obj, from, scene));
 	}
@@ -333,10 +626,11 @@ public class World {
 		if (from == scene)
 			return;
 		synchronized (this) {
+			noteChange(chr);
+			noteChange(scene);
 			if (from != null)
 				from.getState().getChrs().remove(chr);
 			scene.getState().getChrs().add(chr);
-			sortChrs(scene.getState().getChrs());
 			if (scene == storageScene) {
 				chr.setState(new Chr.State(chr));
 			} else if (chr.isPlayerCharacter()) {
@@ -349,14 +643,6 @@ public class World {
 		fireMoveEvent(new MoveEvent(chr, from, scene));
 	}
 
-	private void sortChrs(List<Chr> chrs) {
-		Collections.sort(chrs, new Comparator<Chr>() {
-			public int compare(Chr c1, Chr c2) {
-				return c1.getIndex() - c2.getIndex();
-			}
-		});
-	}
-
 	public List<Chr> getOrderedChrs() {
 		return orderedChrs;
 	}
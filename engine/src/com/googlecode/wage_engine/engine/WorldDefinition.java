@@ -0,0 +1,51 @@
+package com.googlecode.wage_engine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A loaded world that is shared by any number of games. Each game plays on
+ * a WorldInstance of its own, which shares the designs, scripts, sounds and
+ * patterns of the definition and only has its own copies of the scenes,
+ * objects and characters and their state.
+ *
+ * The world given to a definition must not be played on or changed once
+ * instances have been made from it.
+ */
+public class WorldDefinition {
+	private World world;
+
+	/**
+	 * @param world a fully loaded world; its scripts are bound if that
+	 *              hasn't been done already
+	 */
+	public WorldDefinition(World world) {
+		this.world = world;
+		if (world.getTextMatcher() == null)
+			world.bindScripts();
+	}
+
+	public static WorldDefinition load(File file) throws IOException {
+		return new WorldDefinition(new WorldLoader().loadWorld(file));
+	}
+
+	/**
+	 * @return the world as it was loaded, for reading only
+	 */
+	public World getWorld() {
+		return world;
+	}
+
+	public List<String> getUnresolvedNames() {
+		return world.getUnresolvedNames();
+	}
+
+	/**
+	 * @return a new world in its initial state, ready to be given to an
+	 *         Engine or HeadlessSession
+	 */
+	public WorldInstance newInstance() {
+		return new WorldInstance(this);
+	}
+}
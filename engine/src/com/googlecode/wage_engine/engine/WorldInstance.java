@@ -0,0 +1,59 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.List;
+
+/**
+ * One game's copy of a WorldDefinition. The scenes, objects and characters
+ * are shallow copies of the definition's, so they have their own state but
+ * share designs, scripts and text with every other instance.
+ */
+public class WorldInstance extends World {
+	private WorldDefinition definition;
+
+	WorldInstance(WorldDefinition definition) {
+		super(definition.getWorld().getGlobalScript());
+		this.definition = definition;
+		World template = definition.getWorld();
+		copySettings(template);
+		for (Scene scene : template.getOrderedScenes()) {
+			if (scene != template.getStorageScene())
+				addScene(((SceneImpl) scene).copy());
+		}
+		for (Obj obj : template.getOrderedObjs())
+			addObj(((ObjImpl) obj).copy());
+		for (Chr chr : template.getOrderedChrs())
+			addChr(((ChrImpl) chr).copy());
+		for (Sound sound : template.getOrderedSounds())
+			addSound(sound);
+		if (template.getPlayer() != null)
+			setPlayer(getOrderedChrs().get(template.getPlayer().getIndex()));
+		if (template.getCurrentState() != null)
+			setCurrentState(template.getCurrentState().copy());
+	}
+
+	public WorldDefinition getDefinition() {
+		return definition;
+	}
+
+	/**
+	 * The scripts are shared with the definition and were bound when it was
+	 * created, so there is nothing to do.
+	 */
+	@Override
+	public List<String> bindScripts() {
+		return getUnresolvedNames();
+	}
+
+	@Override
+	Object getInstanceOf(Object entity) {
+		if (entity instanceof Obj)
+			return getOrderedObjs().get(((Obj) entity).getIndex());
+		if (entity instanceof Chr)
+			return getOrderedChrs().get(((Chr) entity).getIndex());
+		if (entity == definition.getWorld().getStorageScene())
+			return getStorageScene();
+		if (entity instanceof Scene)
+			return getOrderedScenes().get(((Scene) entity).getIndex() + 1);
+		return entity;
+	}
+}
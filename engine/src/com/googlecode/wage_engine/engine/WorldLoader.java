@@ -55,6 +55,7 @@ public class WorldLoader {
 
 	public World loadWorld(ResourceModel model, File file) throws UnsupportedEncodingException {
 		World world = new World(new Script(model.getResource("GCOD", (short) 0).getData()));
+		reportDiagnostics("global script", world.getGlobalScript());
 		State initialState = new State();
 
 		String[] typeAndCreator = Utils.getFileTypeAndCreator(file.getAbsolutePath());
@@ -113,6 +114,7 @@ public class WorldLoader {
 				Resource code = model.getResource("ACOD", r.getID());
 				if (code != null) {
 					scene.setScript(new Script(code.getData()));
+					reportDiagnostics(scene.getName(), scene.getScript());
 				}
 				Resource text = model.getResource("ATXT", r.getID());
 				if (text != null) {
@@ -252,10 +254,20 @@ public class WorldLoader {
 
 		// store global info in state object for use with save/load actions
 		world.setCurrentState(initialState);	// pass off the state object to the world
-		
+
+		for (String name : world.bindScripts()) {
+			System.err.println("Unresolved name in script: " + name);
+		}
+
 		return world;
 	}
 	
+	private static void reportDiagnostics(String name, Script script) {
+		for (ScriptDiagnostic diagnostic : script.getDiagnostics()) {
+			System.err.println("Script for " + name + ": " + diagnostic);
+		}
+	}
+
 	private String[] readMenu(ResourceType menus, int resourceId) {
 		Resource r = menus.getResource((short) resourceId);
 		if (r != null) {
@@ -0,0 +1,431 @@
+package com.googlecode.wage_engine.engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Everything about a world that can change during a game, kept in one array
+ * of shorts indexed by the scenes', characters' and objects' order in the
+ * world. Taking a snapshot and restoring it doesn't go through the save file
+ * format, so it is cheap enough to do every turn.
+ *
+ * A snapshot only refers to things by their index, so it can be restored
+ * into any instance of the same WorldDefinition, not just the world it was
+ * taken from. Snapshots are never changed once taken, except by update(),
+ * and can be shared between threads.
+ */
+public class WorldSnapshot {
+	// Scenes are stored as their index in getOrderedScenes(), so the storage
+	// scene is 0, and nowhere is -1.
+	private static final int SCENE_WORLD_X = 0;
+	private static final int SCENE_WORLD_Y = 1;
+	private static final int SCENE_BLOCKED = 2;
+	private static final int SCENE_SOUND_FREQUENCY = 3;
+	private static final int SCENE_SOUND_TYPE = 4;
+	private static final int SCENE_VISITED = 5;
+	private static final int SCENE_SIZE = 6;
+
+	private static final int CHR_SCENE = 0;
+	private static final int CHR_BASE_PHYSICAL_STRENGTH = 1;
+	private static final int CHR_CURRENT_PHYSICAL_STRENGTH = 2;
+	private static final int CHR_BASE_PHYSICAL_HP = 3;
+	private static final int CHR_CURRENT_PHYSICAL_HP = 4;
+	private static final int CHR_BASE_NATURAL_ARMOR = 5;
+	private static final int CHR_CURRENT_NATURAL_ARMOR = 6;
+	private static final int CHR_BASE_PHYSICAL_ACCURACY = 7;
+	private static final int CHR_CURRENT_PHYSICAL_ACCURACY = 8;
+	private static final int CHR_BASE_SPIRITUAL_STRENGTH = 9;
+	private static final int CHR_CURRENT_SPIRITUAL_STRENGTH = 10;
+	private static final int CHR_BASE_SPIRITUAL_HP = 11;
+	private static final int CHR_CURRENT_SPIRITUAL_HP = 12;
+	private static final int CHR_BASE_RESISTANCE_TO_MAGIC = 13;
+	private static final int CHR_CURRENT_RESISTANCE_TO_MAGIC = 14;
+	private static final int CHR_BASE_SPIRITUAL_ACCURACY = 15;
+	private static final int CHR_CURRENT_SPIRITUAL_ACCURACY = 16;
+	private static final int CHR_BASE_RUNNING_SPEED = 17;
+	private static final int CHR_CURRENT_RUNNING_SPEED = 18;
+	private static final int CHR_REJECTS_OFFERS = 19;
+	private static final int CHR_FOLLOWS_OPPONENT = 20;
+	private static final int CHR_WEAPON_DAMAGE_1 = 21;
+	private static final int CHR_WEAPON_DAMAGE_2 = 22;
+	private static final int CHR_ARMOR = 23; // one for each armor type
+	private static final int CHR_VISITS = CHR_ARMOR + Chr.NUMBER_OF_ARMOR_TYPES;
+	private static final int CHR_KILLS = CHR_VISITS + 1;
+	private static final int CHR_EXPERIENCE = CHR_VISITS + 2;
+	private static final int CHR_FROZEN = CHR_VISITS + 3;
+	private static final int CHR_SIZE = CHR_VISITS + 4;
+
+	// An object is either owned by a character or in a scene.
+	private static final int OBJ_OWNER = 0;
+	private static final int OBJ_SCENE = 1;
+	private static final int OBJ_ACCURACY = 2;
+	private static final int OBJ_VALUE = 3;
+	private static final int OBJ_TYPE = 4;
+	private static final int OBJ_DAMAGE = 5;
+	private static final int OBJ_ATTACK_TYPE = 6;
+	private static final int OBJ_NUMBER_OF_USES = 7;
+	private static final int OBJ_SIZE = 8;
+
+	private short[] data;
+	private int player;
+	private int sceneCount;
+	private int chrCount;
+	private int objCount;
+
+	// the engine's own state, set by Engine.getSnapshot()
+	int loopCount;
+	int monster = -1;
+	int running = -1;
+	int aim = Chr.CHEST;
+	int opponentAim = Chr.CHEST;
+
+	private WorldSnapshot() {
+	}
+
+	public static WorldSnapshot capture(World world) {
+		WorldSnapshot snapshot = new WorldSnapshot();
+		List<Scene> scenes = world.getOrderedScenes();
+		List<Chr> chrs = world.getOrderedChrs();
+		List<Obj> objs = world.getOrderedObjs();
+		short[] userVariables = world.getPlayerContext().getUserVariables();
+		snapshot.sceneCount = scenes.size();
+		snapshot.chrCount = chrs.size();
+		snapshot.objCount = objs.size();
+		snapshot.player = world.getPlayer().getIndex();
+		short[] data = new short[scenes.size() * SCENE_SIZE + chrs.size() * CHR_SIZE
+			+ objs.size() * OBJ_SIZE + userVariables.length];
+		int i = 0;
+		for (Scene scene : scenes) {
+			captureScene(scene, data, i);
+			i += SCENE_SIZE;
+		}
+		for (Chr chr : chrs) {
+			captureChr(world, chr, data, i);
+			i += CHR_SIZE;
+		}
+		for (Obj obj : objs) {
+			captureObj(world, obj, data, i);
+			i += OBJ_SIZE;
+		}
+		System.arraycopy(userVariables, 0, data, i, userVariables.length);
+		snapshot.data = data;
+		return snapshot;
+	}
+
+	private static void captureScene(Scene scene, short[] data, int i) {
+		Scene.State state = scene.getState();
+		data[i + SCENE_WORLD_X] = (short) state.getWorldX();
+		data[i + SCENE_WORLD_Y] = (short) state.getWorldY();
+		int blocked = 0;
+		for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++) {
+			if (state.isDirBlocked(dir))
+				blocked |= 1 << dir;
+		}
+		data[i + SCENE_BLOCKED] = (short) blocked;
+		data[i + SCENE_SOUND_FREQUENCY] = (short) state.getSoundFrequency();
+		data[i + SCENE_SOUND_TYPE] = (short) state.getSoundType();
+		data[i + SCENE_VISITED] = (short) (state.wasVisited() ? 1 : 0);
+	}
+
+	private static void captureChr(World world, Chr chr, short[] data, int i) {
+		Chr.State state = chr.getState();
+		Context context = chr.getContext();
+		data[i + CHR_SCENE] = (short) indexOf(world, state.getCurrentScene());
+		data[i + CHR_BASE_PHYSICAL_STRENGTH] = (short) state.getBasePhysicalStrength();
+		data[i + CHR_CURRENT_PHYSICAL_STRENGTH] = (short) state.getCurrentPhysicalStrength();
+		data[i + CHR_BASE_PHYSICAL_HP] = (short) state.getBasePhysicalHp();
+		data[i + CHR_CURRENT_PHYSICAL_HP] = (short) state.getCurrentPhysicalHp();
+		data[i + CHR_BASE_NATURAL_ARMOR] = (short) state.getBaseNaturalArmor();
+		data[i + CHR_CURRENT_NATURAL_ARMOR] = (short) state.getCurrentNaturalArmor();
+		data[i + CHR_BASE_PHYSICAL_ACCURACY] = (short) state.getBasePhysicalAccuracy();
+		data[i + CHR_CURRENT_PHYSICAL_ACCURACY] = (short) state.getCurrentPhysicalAccuracy();
+		data[i + CHR_BASE_SPIRITUAL_STRENGTH] = (short) state.getBaseSpiritualStrength();
+		data[i + CHR_CURRENT_SPIRITUAL_STRENGTH] = (short) state.getCurrentSpiritualStrength();
+		data[i + CHR_BASE_SPIRITUAL_HP] = (short) state.getBaseSpiritualHp();
+		data[i + CHR_CURRENT_SPIRITUAL_HP] = (short) state.getCurrentSpiritualHp();
+		data[i + CHR_BASE_RESISTANCE_TO_MAGIC] = (short) state.getBaseResistanceToMagic();
+		data[i + CHR_CURRENT_RESISTANCE_TO_MAGIC] = (short) state.getCurrentResistanceToMagic();
+		data[i + CHR_BASE_SPIRITUAL_ACCURACY] = (short) state.getBaseSpiritualAccuracy();
+		data[i + CHR_CURRENT_SPIRITUAL_ACCURACY] = (short) state.getCurrentSpiritualAccuracy();
+		data[i + CHR_BASE_RUNNING_SPEED] = (short) state.getBaseRunningSpeed();
+		data[i + CHR_CURRENT_RUNNING_SPEED] = (short) state.getCurrentRunningSpeed();
+		data[i + CHR_REJECTS_OFFERS] = (short) state.getRejectsOffers();
+		data[i + CHR_FOLLOWS_OPPONENT] = (short) state.getFollowsOpponent();
+		data[i + CHR_WEAPON_DAMAGE_1] = (short) state.getWeaponDamage1();
+		data[i + CHR_WEAPON_DAMAGE_2] = (short) state.getWeaponDamage2();
+		for (int type = 0; type < Chr.NUMBER_OF_ARMOR_TYPES; type++) {
+			Obj armor = state.getArmor(type);
+			data[i + CHR_ARMOR + type] = (short) (armor == null ? -1 : armor.getIndex());
+		}
+		data[i + CHR_VISITS] = context.getVisits();
+		data[i + CHR_KILLS] = context.getKills();
+		data[i + CHR_EXPERIENCE] = context.getExperience();
+		data[i + CHR_FROZEN] = (short) (context.isFrozen() ? 1 : 0);
+	}
+
+	private static void captureObj(World world, Obj obj, short[] data, int i) {
+		Obj.State state = obj.getState();
+		Chr owner = state.getCurrentOwner();
+		data[i + OBJ_OWNER] = (short) (owner == null ? -1 : owner.getIndex());
+		data[i + OBJ_SCENE] = (short) indexOf(world, state.getCurrentScene());
+		data[i + OBJ_ACCURACY] = (short) state.getAccuracy();
+		data[i + OBJ_VALUE] = (short) state.getValue();
+		data[i + OBJ_TYPE] = (short) state.getType();
+		data[i + OBJ_DAMAGE] = (short) state.getDamage();
+		data[i + OBJ_ATTACK_TYPE] = (short) state.getAttackType();
+		data[i + OBJ_NUMBER_OF_USES] = (short) state.getNumberOfUses();
+	}
+
+	/**
+	 * Puts the world back the way it was when the snapshot was taken. No move
+	 * events are fired, but the scene views are published again.
+	 */
+	public void restore(World world) {
+		List<Scene> scenes = world.getOrderedScenes();
+		List<Chr> chrs = world.getOrderedChrs();
+		List<Obj> objs = world.getOrderedObjs();
+		if (scenes.size() != sceneCount || chrs.size() != chrCount || objs.size() != objCount)
+			throw new IllegalArgumentException("The snapshot is of a different world");
+		synchronized (world) {
+			int i = 0;
+			for (Scene scene : scenes) {
+				Scene.State state = scene.getState();
+				state.setWorldX(data[i + SCENE_WORLD_X]);
+				state.setWorldY(data[i + SCENE_WORLD_Y]);
+				for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++)
+					state.setDirBlocked(dir, (data[i + SCENE_BLOCKED] & (1 << dir)) != 0);
+				state.setSoundFrequency(data[i + SCENE_SOUND_FREQUENCY]);
+				state.setSoundType(data[i + SCENE_SOUND_TYPE]);
+				state.setVisited(data[i + SCENE_VISITED] != 0);
+				state.getObjs().clear();
+				state.getChrs().clear();
+				i += SCENE_SIZE;
+			}
+			for (Chr chr : chrs) {
+				Chr.State state = chr.getState();
+				Context context = chr.getContext();
+				Scene scene = sceneAt(world, data[i + CHR_SCENE]);
+				state.setCurrentScene(scene);
+				if (scene != null)
+					scene.getState().getChrs().add(chr);
+				state.setBasePhysicalStrength(data[i + CHR_BASE_PHYSICAL_STRENGTH]);
+				state.setCurrentPhysicalStrength(data[i + CHR_CURRENT_PHYSICAL_STRENGTH]);
+				state.setBasePhysicalHp(data[i + CHR_BASE_PHYSICAL_HP]);
+				state.setCurrentPhysicalHp(data[i + CHR_CURRENT_PHYSICAL_HP]);
+				state.setBaseNaturalArmor(data[i + CHR_BASE_NATURAL_ARMOR]);
+				state.setCurrentNaturalArmor(data[i + CHR_CURRENT_NATURAL_ARMOR]);
+				state.setBasePhysicalAccuracy(data[i + CHR_BASE_PHYSICAL_ACCURACY]);
+				state.setCurrentPhysicalAccuracy(data[i + CHR_CURRENT_PHYSICAL_ACCURACY]);
+				state.setBaseSpiritualStrength(data[i + CHR_BASE_SPIRITUAL_STRENGTH]);
+				state.setCurrentSpiritualStrength(data[i + CHR_CURRENT_SPIRITUAL_STRENGTH]);
+				state.setBaseSpiritualHp(data[i + CHR_BASE_SPIRITUAL_HP]);
+				state.setCurrentSpiritualHp(data[i + CHR_CURRENT_SPIRITUAL_HP]);
+				state.setBaseResistanceToMagic(data[i + CHR_BASE_RESISTANCE_TO_MAGIC]);
+				state.setCurrentResistanceToMagic(data[i + CHR_CURRENT_RESISTANCE_TO_MAGIC]);
+				state.setBaseSpiritualAccuracy(data[i + CHR_BASE_SPIRITUAL_ACCURACY]);
+				state.setCurrentSpiritualAccuracy(data[i + CHR_CURRENT_SPIRITUAL_ACCURACY]);
+				state.setBaseRunningSpeed(data[i + CHR_BASE_RUNNING_SPEED]);
+				state.setCurrentRunningSpeed(data[i + CHR_CURRENT_RUNNING_SPEED]);
+				state.setRejectsOffers(data[i + CHR_REJECTS_OFFERS]);
+				state.setFollowsOpponent(data[i + CHR_FOLLOWS_OPPONENT]);
+				state.setWeaponDamage1(data[i + CHR_WEAPON_DAMAGE_1]);
+				state.setWeaponDamage2(data[i + CHR_WEAPON_DAMAGE_2]);
+				for (int type = 0; type < Chr.NUMBER_OF_ARMOR_TYPES; type++) {
+					int armor = data[i + CHR_ARMOR + type];
+					state.setArmor(type, armor == -1 ? null : objs.get(armor));
+				}
+				state.getInventory().clear();
+				context.setVisits(data[i + CHR_VISITS]);
+				context.setKills(data[i + CHR_KILLS]);
+				context.setExperience(data[i + CHR_EXPERIENCE]);
+				context.setFrozen(data[i + CHR_FROZEN] != 0);
+				i += CHR_SIZE;
+			}
+			// Objects are added in the order the lists keep them in: by
+			// index, with immobile objects first in scenes. Each one then
+			// goes at the end without searching.
+			for (Obj obj : objs) {
+				Obj.State state = obj.getState();
+				int owner = data[i + OBJ_OWNER];
+				if (owner != -1) {
+					state.setCurrentOwner(chrs.get(owner));
+					chrs.get(owner).getState().getInventory().add(obj);
+				} else {
+					state.setCurrentOwner(null);
+					state.setCurrentScene(sceneAt(world, data[i + OBJ_SCENE]));
+				}
+				state.setAccuracy(data[i + OBJ_ACCURACY]);
+				state.setValue(data[i + OBJ_VALUE]);
+				state.setType(data[i + OBJ_TYPE]);
+				state.setDamage(data[i + OBJ_DAMAGE]);
+				state.setAttackType(data[i + OBJ_ATTACK_TYPE]);
+				state.setNumberOfUses(data[i + OBJ_NUMBER_OF_USES]);
+				i += OBJ_SIZE;
+			}
+			addObjsToScenes(objs, true);
+			addObjsToScenes(objs, false);
+			world.setPlayer(chrs.get(player));
+			short[] userVariables = world.getPlayerContext().getUserVariables();
+			System.arraycopy(data, i, userVariables, 0, userVariables.length);
+			world.publishSceneViews();
+		}
+	}
+
+	/**
+	 * The parts of a snapshot that a turn changed, with the values they had
+	 * before it, which is all that is needed to get the snapshot back from
+	 * the one after the turn.
+	 */
+	static class Delta {
+		public int[] positions;
+		public short[] values;
+		public int player;
+		public int loopCount;
+		public int monster;
+		public int running;
+		public int aim;
+		public int opponentAim;
+
+		private int count;
+
+		public boolean isEmpty() {
+			return positions.length == 0;
+		}
+
+		// Copies a record into the snapshot's data, keeping the values it
+		// replaces.
+		private void update(short[] data, int start, short[] record, int length) {
+			for (int i = 0; i < length; i++) {
+				if (data[start + i] != record[i]) {
+					positions[count] = start + i;
+					values[count] = data[start + i];
+					count++;
+					data[start + i] = record[i];
+				}
+			}
+		}
+
+		private void trim() {
+			positions = Arrays.copyOf(positions, count);
+			values = Arrays.copyOf(values, count);
+		}
+
+	}
+
+	/**
+	 * Brings the snapshot up to date with the parts of the world that the
+	 * world noted as changed since the last clearChanges(), and clears
+	 * them. Only those parts are looked at, so this costs in proportion to
+	 * what changed rather than to the size of the world. Unlike the rest of
+	 * the class, this changes the snapshot, so it is only for one that isn't
+	 * shared, such as the one an UndoHistory keeps.
+	 * @return what would have to be changed to get the snapshot back the way
+	 *         it was, including the engine's state, which the caller sets
+	 *         afterwards
+	 */
+	Delta update(World world) {
+		BitSet changedScenes = world.getChangedScenes();
+		BitSet changedChrs = world.getChangedChrs();
+		BitSet changedObjs = world.getChangedObjs();
+		short[] userVariables = world.getPlayerContext().getUserVariables();
+		int capacity = changedScenes.cardinality() * SCENE_SIZE + changedChrs.cardinality() * CHR_SIZE
+			+ changedObjs.cardinality() * OBJ_SIZE + (world.haveUserVariablesChanged() ? userVariables.length : 0);
+		Delta delta = new Delta();
+		delta.positions = new int[capacity];
+		delta.values = new short[capacity];
+		short[] record = new short[CHR_SIZE];
+		List<Scene> scenes = world.getOrderedScenes();
+		for (int i = changedScenes.nextSetBit(0); i >= 0; i = changedScenes.nextSetBit(i + 1)) {
+			captureScene(scenes.get(i), record, 0);
+			delta.update(data, i * SCENE_SIZE, record, SCENE_SIZE);
+		}
+		List<Chr> chrs = world.getOrderedChrs();
+		int chrStart = sceneCount * SCENE_SIZE;
+		for (int i = changedChrs.nextSetBit(0); i >= 0; i = changedChrs.nextSetBit(i + 1)) {
+			captureChr(world, chrs.get(i), record, 0);
+			delta.update(data, chrStart + i * CHR_SIZE, record, CHR_SIZE);
+		}
+		List<Obj> objs = world.getOrderedObjs();
+		int objStart = chrStart + chrCount * CHR_SIZE;
+		for (int i = changedObjs.nextSetBit(0); i >= 0; i = changedObjs.nextSetBit(i + 1)) {
+			captureObj(world, objs.get(i), record, 0);
+			delta.update(data, objStart + i * OBJ_SIZE, record, OBJ_SIZE);
+		}
+		if (world.haveUserVariablesChanged())
+			delta.update(data, objStart + objCount * OBJ_SIZE, userVariables, userVariables.length);
+		world.clearChanges();
+		delta.trim();
+		delta.player = player;
+		delta.loopCount = loopCount;
+		delta.monster = monster;
+		delta.running = running;
+		delta.aim = aim;
+		delta.opponentAim = opponentAim;
+		player = world.getPlayer().getIndex();
+		return delta;
+	}
+
+	WorldSnapshot copy() {
+		WorldSnapshot snapshot = new WorldSnapshot();
+		snapshot.data = data.clone();
+		snapshot.sceneCount = sceneCount;
+		snapshot.chrCount = chrCount;
+		snapshot.objCount = objCount;
+		snapshot.player = player;
+		snapshot.loopCount = loopCount;
+		snapshot.monster = monster;
+		snapshot.running = running;
+		snapshot.aim = aim;
+		snapshot.opponentAim = opponentAim;
+		return snapshot;
+	}
+
+	/**
+	 * @return a copy of this snapshot with the delta's values put back
+	 */
+	WorldSnapshot apply(Delta delta) {
+		WorldSnapshot snapshot = new WorldSnapshot();
+		snapshot.data = data.clone();
+		for (int i = 0; i < delta.positions.length; i++)
+			snapshot.data[delta.positions[i]] = delta.values[i];
+		snapshot.sceneCount = sceneCount;
+		snapshot.chrCount = chrCount;
+		snapshot.objCount = objCount;
+		snapshot.player = delta.player;
+		snapshot.loopCount = delta.loopCount;
+		snapshot.monster = delta.monster;
+		snapshot.running = delta.running;
+		snapshot.aim = delta.aim;
+		snapshot.opponentAim = delta.opponentAim;
+		return snapshot;
+	}
+
+	private static void addObjsToScenes(List<Obj> objs, boolean immobile) {
+		for (Obj obj : objs) {
+			Scene scene = obj.getState().getCurrentScene();
+			if (scene != null && (obj.getType() == Obj.IMMOBILE_OBJECT) == immobile)
+				scene.getState().getObjs().add(obj);
+		}
+	}
+
+	private static int indexOf(World world, Scene scene) {
+		if (scene == null)
+			return -1;
+		if (scene == world.getStorageScene())
+			return 0;
+		return scene.getIndex() + 1;
+	}
+
+	private static Scene sceneAt(World world, int index) {
+		return (index == -1 ? null : world.getOrderedScenes().get(index));
+	}
+
+	static Chr chrAt(World world, int index) {
+		return (index == -1 ? null : world.getOrderedChrs().get(index));
+	}
+
+	static int indexOf(Chr chr) {
+		return (chr == null ? -1 : chr.getIndex());
+	}
+}
@@ -0,0 +1,200 @@
+package com.googlecode.wage_engine.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import com.googlecode.wage_engine.engine.HeadlessSession;
+
+/**
+ * One player connected to the server. The selector thread reads lines into
+ * the command queue and writes out the output queue; a worker thread runs
+ * the commands. Everything shared between them is guarded by the connection.
+ */
+class Connection {
+	private static final int MAX_LINE_LENGTH = 1024;
+	private static final int MAX_QUEUED_COMMANDS = 16;
+	private static final int MAX_PENDING_OUTPUT = 64 * 1024;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private ByteArrayOutputStream line = new ByteArrayOutputStream();
+	private LinkedList<String> commands = new LinkedList<String>();
+	private LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+	private int pendingOutput;
+	private boolean started;
+	private boolean busy;
+	private boolean closing;
+	private boolean closeClaimed;
+	private long lastActive;
+
+	// Only touched by the worker running this connection's commands.
+	HeadlessSession session;
+	byte[] savedState;
+
+	Connection(SocketChannel channel, SelectionKey key) {
+		this.channel = channel;
+		this.key = key;
+		this.lastActive = System.currentTimeMillis();
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Splits what was read into lines and queues them as commands. Commands
+	 * arriving faster than they can be run are dropped.
+	 * @return true if there are commands to run and no worker is running them
+	 */
+	synchronized boolean read(ByteBuffer buffer) {
+		lastActive = System.currentTimeMillis();
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b == '\n') {
+				String command = decode(line.toByteArray()).trim();
+				line.reset();
+				if (commands.size() < MAX_QUEUED_COMMANDS)
+					commands.add(command);
+			} else if (b != '\r' && line.size() < MAX_LINE_LENGTH) {
+				line.write(b);
+			}
+		}
+		return claim();
+	}
+
+	/**
+	 * @return the next command to run, or null after marking the connection
+	 *         as no longer busy
+	 */
+	synchronized String nextCommand() {
+		if (commands.isEmpty() || closing) {
+			busy = false;
+			return null;
+		}
+		return commands.removeFirst();
+	}
+
+	/**
+	 * Marks the connection as busy so that only one worker runs it at a time.
+	 * A new connection always has something to do: show the player where
+	 * they are.
+	 * @return false if it is already busy or there is nothing to do
+	 */
+	synchronized boolean claim() {
+		if (busy || closing || (started && commands.isEmpty()))
+			return false;
+		busy = true;
+		started = true;
+		return true;
+	}
+
+	/**
+	 * Marks the connection as busy for evicting its session.
+	 * @return false if it is busy or hasn't been idle for long enough
+	 */
+	synchronized boolean claimIdle(long now, long idleTimeout) {
+		if (busy || closing || session == null || now - lastActive < idleTimeout)
+			return false;
+		busy = true;
+		return true;
+	}
+
+	/**
+	 * Marks a closing connection as busy for closing its session. Whoever
+	 * ends up with it first, the selector or the worker that was running it,
+	 * gets to do that, and only once.
+	 * @return false if it isn't closing, is busy or was claimed already
+	 */
+	synchronized boolean claimClose() {
+		if (!closing || busy || closeClaimed)
+			return false;
+		busy = true;
+		closeClaimed = true;
+		return true;
+	}
+
+	/**
+	 * Ends an eviction.
+	 * @return false if commands arrived in the meantime, in which case the
+	 *         connection is still busy and the caller should run them
+	 */
+	synchronized boolean release() {
+		if (!commands.isEmpty() && !closing)
+			return false;
+		busy = false;
+		return true;
+	}
+
+	/**
+	 * Queues text to be sent. A client that doesn't read what it is sent is
+	 * disconnected rather than letting its output pile up.
+	 */
+	synchronized void write(String text) {
+		if (text.length() == 0 || closing)
+			return;
+		byte[] bytes = encode(text);
+		pendingOutput += bytes.length;
+		if (pendingOutput > MAX_PENDING_OUTPUT) {
+			closeAfterOutput();
+			return;
+		}
+		output.add(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Writes as much of the output as the socket will take.
+	 * @return true if all of it was written
+	 */
+	synchronized boolean flush() throws IOException {
+		while (!output.isEmpty()) {
+			ByteBuffer buffer = output.getFirst();
+			channel.write(buffer);
+			if (buffer.hasRemaining())
+				return false;
+			output.removeFirst();
+			pendingOutput -= buffer.capacity();
+		}
+		return true;
+	}
+
+	synchronized boolean hasOutput() {
+		return !output.isEmpty();
+	}
+
+	/**
+	 * Closes the connection once the output written so far has been sent.
+	 */
+	synchronized void closeAfterOutput() {
+		closing = true;
+		commands.clear();
+	}
+
+	synchronized boolean isClosing() {
+		return closing;
+	}
+
+	private static String decode(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text.replace("\n", "\r\n").getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
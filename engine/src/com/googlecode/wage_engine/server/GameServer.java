@@ -0,0 +1,327 @@
+package com.googlecode.wage_engine.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.googlecode.wage_engine.engine.HeadlessSession;
+import com.googlecode.wage_engine.engine.WorldDefinition;
+
+/**
+ * Serves games of one world over plain TCP. Each line a client sends is a
+ * command for its own game and the text the turn produces is sent back;
+ * "/click name" clicks on something in the scene and "/quit" disconnects.
+ *
+ * One thread runs a selector for all of the connections and a small pool of
+ * workers runs the turns. Games that have been idle for a while are saved
+ * to a byte array and dropped, and are loaded again when the player next
+ * sends a command, so idle players cost little more than their socket.
+ */
+public class GameServer implements Runnable {
+	public static final int DEFAULT_PORT = 4000;
+	private static final long CHECK_INTERVAL = 1000;
+
+	private WorldDefinition definition;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private ExecutorService workers;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+	private List<Connection> connections = new ArrayList<Connection>();
+	private ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+	private long idleTimeout = 5 * 60 * 1000;
+	private int maxConnections = 10000;
+	private volatile boolean running;
+
+	public GameServer(WorldDefinition definition, int port) throws IOException {
+		this(definition, new InetSocketAddress(port), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param address where to listen; a port of 0 picks a free one
+	 */
+	public GameServer(WorldDefinition definition, InetSocketAddress address, int workerThreads) throws IOException {
+		this.definition = definition;
+		this.workers = Executors.newFixedThreadPool(workerThreads);
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().bind(address);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @param idleTimeout how many milliseconds without input before a game
+	 *                    is saved and dropped from memory
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Runs the server until stop() is called.
+	 */
+	public void run() {
+		running = true;
+		long lastCheck = System.currentTimeMillis();
+		try {
+			while (running) {
+				selector.select(CHECK_INTERVAL);
+				Connection pending;
+				while ((pending = pendingWrites.poll()) != null) {
+					if (pending.getKey().isValid())
+						pending.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection conn = (Connection) key.attachment();
+					try {
+						if (key.isReadable())
+							read(conn);
+						if (key.isValid() && key.isWritable())
+							write(conn);
+					} catch (IOException e) {
+						close(conn);
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastCheck >= CHECK_INTERVAL) {
+					evictIdle(now);
+					lastCheck = now;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (Connection conn : new ArrayList<Connection>(connections))
+				close(conn);
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			workers.shutdown();
+		}
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		if (connections.size() >= maxConnections) {
+			channel.close();
+			return;
+		}
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		Connection conn = new Connection(channel, key);
+		key.attach(conn);
+		connections.add(conn);
+		if (conn.claim())
+			workers.execute(new TurnTask(conn));
+	}
+
+	private void read(Connection conn) throws IOException {
+		readBuffer.clear();
+		int count = conn.getChannel().read(readBuffer);
+		if (count < 0) {
+			close(conn);
+			return;
+		}
+		readBuffer.flip();
+		if (conn.read(readBuffer))
+			workers.execute(new TurnTask(conn));
+	}
+
+	private void write(Connection conn) throws IOException {
+		if (conn.flush()) {
+			if (conn.isClosing())
+				close(conn);
+			else
+				conn.getKey().interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void close(Connection conn) {
+		conn.closeAfterOutput();
+		conn.getKey().cancel();
+		try {
+			conn.getChannel().close();
+		} catch (IOException e) {
+		}
+		connections.remove(conn);
+		if (conn.claimClose())
+			workers.execute(new CloseTask(conn));
+	}
+
+	private void evictIdle(long now) {
+		for (Connection conn : connections) {
+			if (conn.claimIdle(now, idleTimeout))
+				workers.execute(new EvictTask(conn));
+		}
+	}
+
+	// Lets the selector know there is output to send.
+	private void wakeForOutput(Connection conn) {
+		if (conn.hasOutput() || conn.isClosing()) {
+			pendingWrites.add(conn);
+			selector.wakeup();
+		}
+	}
+
+	private void openSession(Connection conn) {
+		conn.session = new HeadlessSession(definition.newInstance());
+		if (conn.savedState != null) {
+			try {
+				conn.write(conn.session.loadState(new ByteArrayInputStream(conn.savedState)).getText());
+				conn.savedState = null;
+				return;
+			} catch (IOException e) {
+				System.err.println("Couldn't restore an idle game: " + e);
+				conn.session.close();
+				conn.session = new HeadlessSession(definition.newInstance());
+				conn.savedState = null;
+			}
+		}
+		conn.write(conn.session.start().getText());
+	}
+
+	private void closeSession(Connection conn) {
+		if (conn.session != null) {
+			conn.session.close();
+			conn.session = null;
+		}
+		conn.savedState = null;
+	}
+
+	private void runCommand(Connection conn, String command) {
+		HeadlessSession.Turn turn;
+		if (command.equalsIgnoreCase("/quit")) {
+			conn.write("Goodbye.\n");
+			conn.closeAfterOutput();
+			return;
+		} else if (command.toLowerCase().startsWith("/click ")) {
+			turn = conn.session.click(command.substring(7).trim());
+			if (turn == null) {
+				conn.write("You don't see that here.\n");
+				return;
+			}
+		} else {
+			turn = conn.session.command(command);
+		}
+		conn.write(turn.getText());
+		if (turn.isGameOver()) {
+			conn.write(definition.getWorld().getGameOverMessage() + "\n");
+			conn.closeAfterOutput();
+		}
+	}
+
+	private class TurnTask implements Runnable {
+		private Connection conn;
+
+		public TurnTask(Connection conn) {
+			this.conn = conn;
+		}
+
+		public void run() {
+			try {
+				if (conn.session == null)
+					openSession(conn);
+				String command;
+				while ((command = conn.nextCommand()) != null) {
+					runCommand(conn, command);
+					wakeForOutput(conn);
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				conn.write("Sorry, something went wrong with your game.\n");
+				conn.closeAfterOutput();
+				conn.release();
+			}
+			wakeForOutput(conn);
+			if (conn.claimClose())
+				closeSession(conn);
+		}
+	}
+
+	private class EvictTask implements Runnable {
+		private Connection conn;
+
+		public EvictTask(Connection conn) {
+			this.conn = conn;
+		}
+
+		public void run() {
+			try {
+				byte[] state = conn.session.saveState();
+				if (state == null)
+					System.err.println("Couldn't save an idle game; it will start over.");
+				conn.session.close();
+				conn.session = null;
+				conn.savedState = state;
+			} finally {
+				if (!conn.release())
+					new TurnTask(conn).run();
+				else if (conn.claimClose())
+					closeSession(conn);
+			}
+		}
+	}
+
+	private class CloseTask implements Runnable {
+		private Connection conn;
+
+		public CloseTask(Connection conn) {
+			this.conn = conn;
+		}
+
+		public void run() {
+			closeSession(conn);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: GameServer world-file [port]");
+			System.exit(1);
+		}
+		int port = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+		WorldDefinition definition = WorldDefinition.load(new File(args[0]));
+		GameServer server = new GameServer(definition, port);
+		System.out.println("Serving " + definition.getWorld().getName() + " on port " + server.getPort());
+		server.run();
+	}
+}
@@ -0,0 +1,59 @@
+package com.googlecode.wage_engine.engine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ResourceIdIndexTest {
+	@Test
+	public void findsOrdinalsById() {
+		ResourceIdIndex index = new ResourceIdIndex();
+		index.add((short) 128);
+		index.add((short) 130);
+		index.add((short) 129);
+		assertEquals(0, index.get((short) 128));
+		assertEquals(2, index.get((short) 129));
+		assertEquals(1, index.get((short) 130));
+		assertEquals(-1, index.get((short) 131));
+		assertEquals(-1, index.get((short) 127));
+	}
+
+	@Test
+	public void isEmptyAtFirst() {
+		assertEquals(-1, new ResourceIdIndex().get((short) 0));
+	}
+
+	@Test
+	public void keepsTheFirstOfTwoWithTheSameId() {
+		ResourceIdIndex index = new ResourceIdIndex();
+		index.add((short) 5);
+		index.add((short) 5);
+		assertEquals(0, index.get((short) 5));
+	}
+
+	@Test
+	public void growsBothWays() {
+		ResourceIdIndex index = new ResourceIdIndex();
+		index.add((short) 1000);
+		index.add((short) -1000);
+		index.add((short) 3000);
+		index.add((short) 1001);
+		assertEquals(0, index.get((short) 1000));
+		assertEquals(1, index.get((short) -1000));
+		assertEquals(2, index.get((short) 3000));
+		assertEquals(3, index.get((short) 1001));
+		assertEquals(-1, index.get((short) 0));
+	}
+
+	@Test
+	public void coversTheWholeRangeOfShorts() {
+		ResourceIdIndex index = new ResourceIdIndex();
+		index.add((short) 0);
+		index.add(Short.MAX_VALUE);
+		index.add(Short.MIN_VALUE);
+		assertEquals(0, index.get((short) 0));
+		assertEquals(1, index.get(Short.MAX_VALUE));
+		assertEquals(2, index.get(Short.MIN_VALUE));
+		assertEquals(-1, index.get((short) 1));
+	}
+}
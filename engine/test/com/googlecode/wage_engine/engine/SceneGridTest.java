@@ -0,0 +1,84 @@
+package com.googlecode.wage_engine.engine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SceneGridTest {
+	private World world;
+	private SceneImpl hall;
+	private SceneImpl kitchen;
+	private SceneImpl garden;
+	private SceneImpl cellar;
+
+	private SceneImpl addScene(String name, int x, int y) {
+		SceneImpl scene = new SceneImpl();
+		scene.setName(name);
+		scene.setWorldX(x);
+		scene.setWorldY(y);
+		world.addScene(scene);
+		return scene;
+	}
+
+	@Before
+	public void setUp() {
+		world = new World(null);
+		hall = addScene("Hall", 0, 0);
+		kitchen = addScene("Kitchen", 1, 0);
+		garden = addScene("Garden", 0, -1);
+		cellar = addScene("Cellar", 0, 1);
+		garden.setDirBlocked(Scene.SOUTH, true);
+	}
+
+	@Test
+	public void findsScenesByPosition() {
+		assertSame(hall, world.getSceneAt(0, 0));
+		assertSame(kitchen, world.getSceneAt(1, 0));
+		assertSame(garden, world.getSceneAt(0, -1));
+		assertNull(world.getSceneAt(-1, 0));
+		assertNull(world.getSceneAt(1000000, -1000000));
+	}
+
+	@Test
+	public void keepsTheFirstSceneAddedAtAPlace() {
+		SceneImpl attic = addScene("Attic", 1, 0);
+		assertSame(kitchen, world.getSceneAt(1, 0));
+		assertSame(hall, world.getExit(attic, Scene.WEST));
+	}
+
+	@Test
+	public void followsExits() {
+		assertSame(garden, world.getExit(hall, Scene.NORTH));
+		assertSame(cellar, world.getExit(hall, Scene.SOUTH));
+		assertSame(kitchen, world.getExit(hall, Scene.EAST));
+		assertNull(world.getExit(hall, Scene.WEST));
+		assertSame(hall, world.getExit(kitchen, Scene.WEST));
+	}
+
+	@Test
+	public void doesntFollowBlockedExits() {
+		assertNull(world.getExit(garden, Scene.SOUTH));
+		assertTrue(world.isAdjacent(hall, garden));
+		assertFalse(world.isAdjacent(garden, hall));
+	}
+
+	@Test
+	public void hasNoExitsFromStorage() {
+		Scene storage = world.getStorageScene();
+		for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++)
+			assertNull(world.getExit(storage, dir));
+		assertNull(world.getExit(null, Scene.NORTH));
+	}
+
+	@Test
+	public void placesManyScenes() {
+		for (int i = 0; i < 100; i++)
+			addScene("Row " + i, i, 10);
+		for (int i = 0; i < 100; i++) {
+			assertEquals("Row " + i, world.getSceneAt(i, 10).getName());
+			if (i > 0)
+				assertSame(world.getSceneAt(i - 1, 10), world.getExit(world.getSceneAt(i, 10), Scene.WEST));
+		}
+	}
+}
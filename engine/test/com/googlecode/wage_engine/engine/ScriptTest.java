@@ -0,0 +1,112 @@
+package com.googlecode.wage_engine.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScriptTest {
+	private static final String[] COMMANDS = {
+		"hello", "count", "big", "count", "count", "stop", "xyzzy", "leave", "back", "hello"
+	};
+
+	private World world;
+	private SceneImpl hall;
+	private HeadlessSession session;
+
+	private static Script script(String text) {
+		byte[] body = ScriptTextConverter.parseScript(text);
+		byte[] data = new byte[body.length + 12];
+		System.arraycopy(body, 0, data, 12, body.length);
+		return new Script(data);
+	}
+
+	private SceneImpl addScene(String name, int x, int y, String script) {
+		SceneImpl scene = new SceneImpl();
+		scene.setResourceID((short) (100 + world.getOrderedScenes().size()));
+		scene.setName(name);
+		scene.setWorldX(x);
+		scene.setWorldY(y);
+		scene.setText("You are in the " + name.toLowerCase() + ".");
+		for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++)
+			scene.setDirMessage(dir, "");
+		scene.setScript(script(script));
+		world.addScene(scene);
+		return scene;
+	}
+
+	@Before
+	public void setUp() {
+		world = new World(script("IF{TEXT$=xyzzy}THEN\nPRINT{Nothing happens.}\nEND\n"));
+		hall = addScene("Hall", 0, 0,
+			"IF{TEXT$=hello}THEN\nPRINT{Hi there}\nEND\n" +
+			"IF{TEXT$=count}THEN\nLET{A1#=A1#+1}\nPRINT{counted}\nEND\n" +
+			"IF{A1#>2}OR{TEXT$=big}THEN\nPRINT{big}\nEND\n" +
+			"IF{TEXT$=stop}THEN\nPRINT{stopping}\nEXIT\n" +
+			"IF{TEXT$=leave}THEN\nMOVE{PLAYER@}TO{Cave}\nPRINT{still here}\nEND\n" +
+			"PRINT{carried on}\n");
+		addScene("Cave", 10, 10,
+			"IF{TEXT$=back}THEN\nMOVE{PLAYER@}TO{Hall}\nEND\n");
+		ChrImpl player = new ChrImpl();
+		player.setName("Player");
+		player.setInitialScene("Hall");
+		player.setPlayerCharacter(true);
+		player.setPhysicalHp(50);
+		player.setMaximumCarriedObjects(10);
+		player.setNameProperNoun(true);
+		world.addChr(player);
+		world.setPlayer(player);
+		world.bindScripts();
+		session = new HeadlessSession(world, new Random(1));
+		session.start();
+	}
+
+	private List<String> play() {
+		List<String> output = new ArrayList<String>();
+		for (String command : COMMANDS)
+			output.add(session.command(command).getText());
+		return output;
+	}
+
+	// Runs the hall's script and the global one until both are compiled.
+	private void warmUp() {
+		for (int i = 0; i < 100 && !(hall.getScript().isCompiled() && world.getGlobalScript().isCompiled()); i++)
+			session.command("look");
+	}
+
+	@Test
+	public void compiledScriptsDoWhatInterpretedOnesDo() {
+		WorldSnapshot start = session.getSnapshot();
+		List<String> interpreted = play();
+		assertFalse(hall.getScript().isCompiled());
+		assertTrue(interpreted.get(2).contains("big"));
+		assertTrue(interpreted.get(0).contains("carried on"));
+		assertFalse(interpreted.get(5).contains("carried on"));
+		assertFalse(interpreted.get(7).contains("still here"));
+		warmUp();
+		assertTrue(hall.getScript().isCompiled());
+		assertTrue(world.getGlobalScript().isCompiled());
+		session.restore(start);
+		assertEquals(interpreted, play());
+	}
+
+	@Test
+	public void keepsInterpretingScriptsTooLongToCompile() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			text.append("IF{TEXT$=read}THEN\nPRINT{Page " + i + "}\nEND\n");
+		SceneImpl library = addScene("Library", 20, 20, text.toString());
+		world.bindScripts();
+		world.move(world.getPlayer(), library);
+		for (int i = 0; i < 30; i++)
+			session.command("look");
+		assertFalse(library.getScript().isCompiled());
+		String output = session.command("read").getText();
+		assertTrue(output.contains("Page 0"));
+		assertTrue(output.contains("Page 1999"));
+	}
+}
@@ -0,0 +1,107 @@
+package com.googlecode.wage_engine.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SortedListTest {
+	private static final Comparator<Integer> ORDER = new Comparator<Integer>() {
+		public int compare(Integer i1, Integer i2) {
+			return i1.compareTo(i2);
+		}
+	};
+
+	@Test
+	public void keepsElementsInOrder() {
+		SortedList<Integer> list = new SortedList<Integer>(ORDER);
+		assertTrue(list.add(5));
+		assertTrue(list.add(1));
+		assertTrue(list.add(9));
+		assertTrue(list.add(3));
+		assertEquals("[1, 3, 5, 9]", list.toString());
+	}
+
+	@Test
+	public void ignoresElementsAlreadyAdded() {
+		SortedList<Integer> list = new SortedList<Integer>(ORDER);
+		Integer five = 5;
+		list.add(five);
+		assertFalse(list.add(five));
+		assertEquals(1, list.size());
+	}
+
+	@Test
+	public void removesElements() {
+		SortedList<Integer> list = new SortedList<Integer>(ORDER);
+		Integer[] elements = new Integer[] { 1, 2, 3, 4 };
+		for (Integer element : elements)
+			list.add(element);
+		assertTrue(list.remove(elements[2]));
+		assertEquals(Integer.valueOf(1), list.remove(0));
+		assertEquals("[2, 4]", list.toString());
+		assertFalse(list.remove(elements[0]));
+		assertFalse(list.remove("2"));
+		assertFalse(list.remove(null));
+	}
+
+	@Test
+	public void findsElementsByIdentity() {
+		SortedList<Integer> list = new SortedList<Integer>(ORDER);
+		Integer thousand = new Integer(1000);
+		list.add(thousand);
+		assertTrue(list.contains(thousand));
+		assertEquals(0, list.indexOf(thousand));
+		assertFalse(list.contains(new Integer(1000)));
+		assertEquals(-1, list.indexOf(new Integer(1000)));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void cantAddAtAnIndex() {
+		new SortedList<Integer>(ORDER).add(0, 1);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void checksIndices() {
+		SortedList<Integer> list = new SortedList<Integer>(ORDER);
+		list.add(1);
+		list.get(1);
+	}
+
+	@Test
+	public void clears() {
+		SortedList<Integer> list = new SortedList<Integer>(ORDER);
+		list.add(1);
+		list.add(2);
+		list.clear();
+		assertTrue(list.isEmpty());
+		list.add(3);
+		assertEquals("[3]", list.toString());
+	}
+
+	@Test
+	public void agreesWithSorting() {
+		Random random = new Random(1);
+		SortedList<Integer> list = new SortedList<Integer>(ORDER);
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			if (!expected.isEmpty() && random.nextInt(3) == 0) {
+				Integer element = expected.remove(random.nextInt(expected.size()));
+				assertTrue(list.remove(element));
+			} else {
+				Integer element = new Integer(random.nextInt(200));
+				if (!list.contains(element) && Collections.binarySearch(expected, element) < 0) {
+					assertTrue(list.add(element));
+					expected.add(element);
+					Collections.sort(expected);
+				}
+			}
+			assertEquals(expected, list);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.googlecode.wage_engine.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TextMatcherTest {
+	private static TextMatcher build(String... words) {
+		TextMatcher matcher = new TextMatcher();
+		for (String word : words)
+			matcher.add(word);
+		matcher.build();
+		return matcher;
+	}
+
+	@Test
+	public void findsOverlappingWords() {
+		TextMatcher matcher = build("he", "she", "his", "hers");
+		BitSet result = matcher.match("ushers");
+		assertTrue(result.get(0));
+		assertTrue(result.get(1));
+		assertFalse(result.get(2));
+		assertTrue(result.get(3));
+	}
+
+	@Test
+	public void matchesInsideWordsLikeContains() {
+		// scripts have always tested TEXT$ with String.contains(), so a word
+		// matches across word boundaries too
+		TextMatcher matcher = build("north", "east", "go north");
+		BitSet result = matcher.match("go northeast");
+		assertTrue(result.get(0));
+		assertTrue(result.get(1));
+		assertTrue(result.get(2));
+		assertFalse(matcher.match("gonorth").get(2));
+	}
+
+	@Test
+	public void restartsAfterCharactersOutsideOfAscii() {
+		TextMatcher matcher = build("ab");
+		assertFalse(matcher.match("a\u00e9b").get(0));
+		assertTrue(matcher.match("\u00e9ab").get(0));
+	}
+
+	@Test
+	public void ignoresWordsThatCantBeMatched() {
+		TextMatcher matcher = new TextMatcher();
+		assertEquals(-1, matcher.add(""));
+		assertEquals(-1, matcher.add("caf\u00e9"));
+		assertEquals(0, matcher.add("Cafe"));
+		assertEquals(0, matcher.add("cafe"));
+		matcher.build();
+		assertEquals(1, matcher.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void cantAddAfterBuilding() {
+		build("a").add("b");
+	}
+
+	@Test
+	public void agreesWithContains() {
+		Random random = new Random(1);
+		for (int round = 0; round < 200; round++) {
+			String[] words = new String[1 + random.nextInt(8)];
+			for (int i = 0; i < words.length; i++)
+				words[i] = randomText(random, 1 + random.nextInt(4));
+			TextMatcher matcher = new TextMatcher();
+			int[] indices = new int[words.length];
+			for (int i = 0; i < words.length; i++)
+				indices[i] = matcher.add(words[i]);
+			matcher.build();
+			String text = randomText(random, random.nextInt(30));
+			BitSet result = matcher.match(text);
+			for (int i = 0; i < words.length; i++)
+				assertEquals(text + " / " + words[i], text.contains(words[i]), result.get(indices[i]));
+		}
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			sb.append("ab ".charAt(random.nextInt(3)));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,152 @@
+package com.googlecode.wage_engine.engine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorldSnapshotTest {
+	private World world;
+	private SceneImpl hall;
+	private SceneImpl cave;
+	private ObjImpl sword;
+	private ObjImpl key;
+	private ChrImpl hero;
+	private ChrImpl guard;
+
+	private SceneImpl addScene(String name, int x, int y) {
+		SceneImpl scene = new SceneImpl();
+		scene.setName(name);
+		scene.setWorldX(x);
+		scene.setWorldY(y);
+		world.addScene(scene);
+		return scene;
+	}
+
+	private ObjImpl addObj(String name, int type) {
+		ObjImpl obj = new ObjImpl();
+		obj.setName(name);
+		obj.setType(type);
+		obj.setNumberOfUses(-1);
+		world.addObj(obj);
+		return obj;
+	}
+
+	private ChrImpl addChr(String name, boolean player) {
+		ChrImpl chr = new ChrImpl();
+		chr.setName(name);
+		chr.setPlayerCharacter(player);
+		chr.setPhysicalHp(50);
+		world.addChr(chr);
+		return chr;
+	}
+
+	@Before
+	public void setUp() {
+		world = new World(null);
+		hall = addScene("Hall", 0, 0);
+		cave = addScene("Cave", 0, 1);
+		sword = addObj("sword", Obj.REGULAR_WEAPON);
+		key = addObj("key", Obj.MOBILE_OBJECT);
+		hero = addChr("Hero", true);
+		guard = addChr("Guard", false);
+		world.setPlayer(hero);
+		world.move(hero, hall);
+		world.move(guard, cave);
+		world.move(sword, hall);
+		world.move(key, guard);
+		world.clearChanges();
+	}
+
+	// Changes a little of everything a snapshot keeps, noting it as the
+	// engine would.
+	private void playTurn() {
+		world.move(sword, hero);
+		world.move(key, cave);
+		world.move(hero, cave);
+		hero.getState().setCurrentPhysicalHp(20);
+		world.noteChange(hero);
+		world.getPlayerContext().setUserVariable(3, (short) 7);
+		world.noteUserVariablesChange();
+	}
+
+	private void assertBeforeTurn() {
+		assertSame(hall, sword.getState().getCurrentScene());
+		assertNull(sword.getState().getCurrentOwner());
+		assertSame(guard, key.getState().getCurrentOwner());
+		assertSame(hall, world.getPlayerScene());
+		assertEquals(50, hero.getState().getCurrentPhysicalHp());
+		assertEquals(0, world.getPlayerContext().getUserVariable(3));
+		assertFalse(cave.getState().wasVisited());
+		assertTrue(hero.getState().getInventory().isEmpty());
+		assertTrue(cave.getState().getObjs().isEmpty());
+	}
+
+	private void assertAfterTurn() {
+		assertSame(hero, sword.getState().getCurrentOwner());
+		assertSame(cave, key.getState().getCurrentScene());
+		assertSame(cave, world.getPlayerScene());
+		assertEquals(20, hero.getState().getCurrentPhysicalHp());
+		assertEquals(7, world.getPlayerContext().getUserVariable(3));
+		assertTrue(cave.getState().wasVisited());
+		assertTrue(hall.getState().getObjs().isEmpty());
+	}
+
+	@Test
+	public void restoresWhatWasCaptured() {
+		WorldSnapshot before = WorldSnapshot.capture(world);
+		playTurn();
+		WorldSnapshot after = WorldSnapshot.capture(world);
+		before.restore(world);
+		assertBeforeTurn();
+		after.restore(world);
+		assertAfterTurn();
+	}
+
+	@Test
+	public void updatesToTheWorldAfterATurn() {
+		WorldSnapshot snapshot = WorldSnapshot.capture(world);
+		playTurn();
+		WorldSnapshot.Delta delta = snapshot.update(world);
+		assertFalse(delta.isEmpty());
+		WorldSnapshot before = snapshot.apply(delta);
+		before.restore(world);
+		assertBeforeTurn();
+		snapshot.restore(world);
+		assertAfterTurn();
+	}
+
+	@Test
+	public void updatesOnlyWhatWasNoted() {
+		WorldSnapshot snapshot = WorldSnapshot.capture(world);
+		hero.getState().setCurrentPhysicalHp(20);
+		assertTrue(snapshot.update(world).isEmpty());
+		world.noteChange(hero);
+		WorldSnapshot.Delta delta = snapshot.update(world);
+		assertEquals(1, delta.positions.length);
+		assertTrue(snapshot.update(world).isEmpty());
+	}
+
+	@Test
+	public void goesBackOneTurnAtATime() {
+		WorldSnapshot start = WorldSnapshot.capture(world);
+		WorldSnapshot snapshot = start.copy();
+		world.move(sword, hero);
+		WorldSnapshot.Delta first = snapshot.update(world);
+		world.move(hero, cave);
+		WorldSnapshot.Delta second = snapshot.update(world);
+		WorldSnapshot middle = snapshot.apply(second);
+		middle.restore(world);
+		assertSame(hero, sword.getState().getCurrentOwner());
+		assertSame(hall, world.getPlayerScene());
+		middle.apply(first).restore(world);
+		assertBeforeTurn();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesAnotherWorld() {
+		WorldSnapshot snapshot = WorldSnapshot.capture(world);
+		addScene("Attic", 1, 0);
+		snapshot.restore(world);
+	}
+}
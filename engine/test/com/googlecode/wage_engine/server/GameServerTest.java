@@ -0,0 +1,131 @@
+package com.googlecode.wage_engine.server;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.wage_engine.engine.ChrImpl;
+import com.googlecode.wage_engine.engine.Scene;
+import com.googlecode.wage_engine.engine.SceneImpl;
+import com.googlecode.wage_engine.engine.Script;
+import com.googlecode.wage_engine.engine.ScriptTextConverter;
+import com.googlecode.wage_engine.engine.State;
+import com.googlecode.wage_engine.engine.World;
+import com.googlecode.wage_engine.engine.WorldDefinition;
+
+public class GameServerTest {
+	private GameServer server;
+	private Thread thread;
+	private Socket socket;
+	private BufferedReader in;
+	private OutputStream out;
+
+	private static Script script(String text) {
+		byte[] body = ScriptTextConverter.parseScript(text);
+		byte[] data = new byte[body.length + 12];
+		System.arraycopy(body, 0, data, 12, body.length);
+		return new Script(data);
+	}
+
+	private static WorldDefinition buildWorld() {
+		World world = new World(script(""));
+		SceneImpl hall = new SceneImpl();
+		hall.setResourceID((short) 100);
+		hall.setName("Hall");
+		hall.setText("You are in the hall.");
+		for (int dir = Scene.NORTH; dir <= Scene.WEST; dir++)
+			hall.setDirMessage(dir, "");
+		hall.setScript(script(
+			"IF{TEXT$=hello}THEN\nPRINT{Hi there}\nEND\n" +
+			"IF{TEXT$=count}THEN\nLET{A1#=A1#+1}\nPRINT{counted}\nEND\n" +
+			"IF{TEXT$=count}AND{A1#>1}THEN\nPRINT{counted twice}\nEND\n"));
+		world.addScene(hall);
+		ChrImpl player = new ChrImpl();
+		player.setResourceID((short) 101);
+		player.setName("Player");
+		player.setInitialScene("Hall");
+		player.setPlayerCharacter(true);
+		player.setPhysicalHp(50);
+		player.setMaximumCarriedObjects(10);
+		player.setNameProperNoun(true);
+		world.addChr(player);
+		world.setPlayer(player);
+		State state = new State();
+		state.setNumScenes((short) 1);
+		state.setChrsHexOffset(State.SCENES_INDEX + State.SCENE_SIZE);
+		state.setNumChars((short) 1);
+		state.setObjsHexOffset(state.getChrsHexOffset() + State.CHR_SIZE);
+		state.setNumObjs((short) 0);
+		state.setPlayerHexOffset(state.getChrsHexOffset());
+		world.setCurrentState(state);
+		world.bindScripts();
+		return new WorldDefinition(world);
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new GameServer(buildWorld(), new InetSocketAddress(0), 2);
+		thread = new Thread(server, "GameServer");
+		thread.start();
+		socket = new Socket("localhost", server.getPort());
+		socket.setSoTimeout(10000);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		out = socket.getOutputStream();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		socket.close();
+		server.stop();
+		thread.join(10000);
+	}
+
+	private void send(String command) throws IOException {
+		out.write((command + "\n").getBytes("UTF-8"));
+		out.flush();
+	}
+
+	// Reads lines until one of them is the given one, which fails with a
+	// timeout if it never comes.
+	private void expect(String line) throws IOException {
+		String read;
+		while ((read = in.readLine()) != null) {
+			if (read.equals(line))
+				return;
+		}
+		fail("Disconnected before \"" + line + "\"");
+	}
+
+	@Test
+	public void runsCommands() throws IOException {
+		expect("You are in the hall.");
+		send("hello");
+		expect("Hi there");
+		send("/quit");
+		expect("Goodbye.");
+		assertNull(in.readLine());
+	}
+
+	@Test
+	public void reloadsIdleGames() throws Exception {
+		server.setIdleTimeout(100);
+		expect("You are in the hall.");
+		send("count");
+		expect("counted");
+		// long enough for the server to check for idle games at least once
+		Thread.sleep(2500);
+		send("count");
+		// the scene is described again as the saved game is loaded
+		expect("You are in the hall.");
+		expect("counted twice");
+	}
+}